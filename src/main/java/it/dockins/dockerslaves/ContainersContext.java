@@ -36,6 +36,16 @@ public class ContainersContext implements BuildBadgeAction {
 
     protected String workdirVolume;
 
+    /**
+     * Docker host pod runs on, as volumes and containers only make sense on this one.
+     */
+    protected String dockerHost;
+
+    /**
+     * Memory reserved on docker host by pod's containers, in bytes.
+     */
+    protected long memoryReservation;
+
     protected Container remotingContainer;
 
     protected Container buildContainer;
@@ -69,6 +79,22 @@ public class ContainersContext implements BuildBadgeAction {
         this.workdirVolume = workdirVolume;
     }
 
+    public String getDockerHost() {
+        return dockerHost;
+    }
+
+    public void setDockerHost(String dockerHost) {
+        this.dockerHost = dockerHost;
+    }
+
+    public long getMemoryReservation() {
+        return memoryReservation;
+    }
+
+    public void setMemoryReservation(long memoryReservation) {
+        this.memoryReservation = memoryReservation;
+    }
+
     public Container getRemotingContainer() {
         return remotingContainer;
     }
@@ -10,6 +10,8 @@ import it.dockins.dockerslaves.spi.DockerHostSourceDescriptor;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -38,6 +40,11 @@ public class DefaultDockerHostSource extends DockerHostSource {
         return new DockerHostConfig(getDockerServerEndpoint(), job);
     }
 
+    @Override
+    public List<String> getHosts() {
+        return Collections.singletonList(DockerHostConfig.getHost(getDockerServerEndpoint()));
+    }
+
     @Extension
     public static class DescriptorImpl extends DockerHostSourceDescriptor {
 
@@ -25,28 +25,54 @@
 
 package it.dockins.dockerslaves;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import it.dockins.dockerslaves.spec.ContainerDefinition;
 import it.dockins.dockerslaves.spec.Hint;
 import it.dockins.dockerslaves.spi.DockerDriver;
+import it.dockins.dockerslaves.spi.DockerDriverFactory;
 import it.dockins.dockerslaves.spec.ContainerSetDefinition;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Proc;
+import hudson.model.Computer;
+import hudson.model.Job;
 import hudson.model.TaskListener;
 import it.dockins.dockerslaves.spec.SideContainerDefinition;
 import it.dockins.dockerslaves.spi.DockerProvisioner;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Provision {@link Container}s based on ${@link ContainerSetDefinition} to provide a queued task
  * an executor.
+ * <p>
+ * Provisioning runs as a graph of background tasks, each one only waiting for those it depends on: volume lookup,
+ * remoting/SCM image pull and build image resolution run concurrently, then SCM and build containers are created
+ * while remoting channel is being established, and side containers not depending on workspace are started as soon
+ * as remoting container is up. {@link DockerProvisioner} methods remain blocking, waiting for the task they expose.
  */
 public class DefaultDockerProvisioner extends DockerProvisioner {
 
+    static final int MAX_ATTEMPTS = Integer.getInteger(DefaultDockerProvisioner.class.getName() + ".maxAttempts", 2);
+
+    private static final ListeningExecutorService EXECUTOR = MoreExecutors.listeningDecorator(Computer.threadPoolForRemoting);
+
     protected final ContainersContext context;
 
-    protected final DockerDriver driver;
+    /** Driver for the docker host pod runs on, replaced if provisioning fails over to another host */
+    protected DockerDriver driver;
 
     protected final ContainerSetDefinition spec;
 
@@ -54,6 +80,40 @@ public class DefaultDockerProvisioner extends DockerProvisioner {
 
     protected final String scmImage;
 
+    /** Completes once remoting container has started, so dependent containers can be started */
+    private transient SettableFuture<Container> remotingStarted;
+
+    /** Build container being prepared ahead of first build command */
+    private transient Future<Container> preparedBuildContainer;
+
+    /** Build image resolved ahead of time, so it's only resolved (and pulled) once, <code>null</code> if it depends on workspace */
+    private transient volatile Future<String> preparedBuildImage;
+
+    /** SCM container being prepared while remoting starts */
+    private transient Future<Container> preparedScmContainer;
+
+    /** Side containers being created while SCM checkout runs, when they don't depend on workspace */
+    private transient Future<SideContainersLauncher> preparedSideContainers;
+
+    /** Computer connected to remoting container, which channel can be used to reach pod's network */
+    private transient DockerComputer computer;
+
+    /** Pooled remoting container in use, to be released once cleaned up */
+    private transient RemotingContainerPool.Entry pooled;
+
+    /** Workspace volume leased for exclusive use by this pod, to be released once cleaned up */
+    private transient String leased;
+
+    private transient String leasedBy;
+
+    /** Connects to another docker host if provisioning fails */
+    private transient Failover failover;
+
+    /** Creates drivers for background work on pod's docker host, independent from this build's driver */
+    private transient DockerDriverFactory driverFactory;
+
+    private transient Job job;
+
 
     public DefaultDockerProvisioner(ContainersContext context, DockerDriver driver, ContainerSetDefinition spec, String remotingImage, String scmImage) throws IOException, InterruptedException {
         this.context = context;
@@ -68,8 +128,87 @@ public class DefaultDockerProvisioner extends DockerProvisioner {
         return context;
     }
 
+    public void setFailover(Failover failover) {
+        this.failover = failover;
+    }
+
+    /**
+     * Let background work on pod's docker host, like remoting container pool replenishment, connect on it's own.
+     * @param job context to resolve docker host credentials
+     */
+    public void setDriverFactory(DockerDriverFactory driverFactory, Job job) {
+        this.driverFactory = driverFactory;
+        this.job = job;
+    }
+
+    /**
+     * Launch remoting container, retrying on another docker host if it fails. As this happens before build runs its
+     * first step, build doesn't notice.
+     */
     @Override
-    public Container launchRemotingContainer(final DockerComputer computer, TaskListener listener) throws IOException, InterruptedException {
+    public Container launchRemotingContainer(final DockerComputer computer, final TaskListener listener) throws IOException, InterruptedException {
+        this.computer = computer;
+        final Set<String> failedHosts = new HashSet<>();
+        while (true) {
+            final String host = driver.getHost();
+            try {
+                final Container remotingContainer = doLaunchRemotingContainer(computer, listener);
+                if (host != null) {
+                    HostHealth.forHost(host).success();
+                }
+                return remotingContainer;
+            } catch (IOException e) {
+                if (host == null) throw e;
+                HostHealth.forHost(host).failure();
+                failedHosts.add(host);
+                if (failover == null || failedHosts.size() >= MAX_ATTEMPTS) throw e;
+
+                final DockerDriver next = failover.connect(failedHosts);
+                if (next == null) throw e;
+                listener.getLogger().println("Failed to provision containers on " + host + ", retrying on " + next.getHost() + ": " + e.getMessage());
+                discard(listener);
+                driver.close();
+                driver = next;
+                final DockerSlave slave = computer.getNode();
+                if (slave != null) {
+                    // so admission and placement count pod on the host it now runs on
+                    DockerSlotRegistry.get().move(slave, next.getHost());
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove resources allocated on docker host by a failed attempt to launch remoting container, and reset context
+     * so it can be retried on another host.
+     */
+    private void discard(TaskListener listener) throws IOException, InterruptedException {
+        removeQuietly(takePreparedBuildContainer(null, listener), listener);
+        removeQuietly(takePrepared(preparedScmContainer, "SCM", listener), listener);
+        preparedScmContainer = null;
+        removeQuietly(context.getRemotingContainer(), listener);
+        context.setRemotingContainer(null);
+        if (pooled != null) {
+            RemotingContainerPool.forHost(driver.getHost(), remotingImage).release(pooled);
+            pooled = null;
+        }
+        if (leased != null) {
+            WorkspaceVolumeManager.forHost(driver.getHost()).release(leased, leasedBy);
+            leased = null;
+        }
+        // workspace volume only exists on failed host, orphan reaper will remove the one we may have created
+        context.setWorkdirVolume(null);
+        context.setDockerHost(null);
+    }
+
+    private Container doLaunchRemotingContainer(final DockerComputer computer, final TaskListener listener) throws IOException, InterruptedException {
+        // tasks keep using the driver they were started with, even if provisioning fails over meanwhile
+        final DockerDriver driver = this.driver;
+        final DockerSlave slave = computer.getNode();
+        driver.setLabel(ResourceLabels.POD, slave.getNodeName());
+        driver.setLabel(ResourceLabels.BUILD, String.valueOf(slave.getQueueItemId()));
+        context.setDockerHost(driver.getHost());
+
         // if remoting container already exists, we reuse it
         final Container existing = context.getRemotingContainer();
         if (existing != null) {
@@ -78,48 +217,419 @@ public class DefaultDockerProvisioner extends DockerProvisioner {
             }
         }
 
+        // Independent tasks run concurrently
+        final ListenableFuture<String> buildImage = EXECUTOR.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return resolveBuildImage(driver, listener);
+            }
+        });
+        final ListenableFuture<Void> remotingImageReady = EXECUTOR.submit(new ImageCheck(driver, remotingImage, listener));
+        final ListenableFuture<Void> scmImageReady = context.isPreScm() ? EXECUTOR.submit(new ImageCheck(driver, scmImage, listener)) : null;
+        final ListenableFuture<Boolean> volumeExists = EXECUTOR.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return driver.hasVolume(listener, context.getWorkdirVolume());
+            }
+        });
+
+        remotingStarted = SettableFuture.create();
+        try {
+            final Container remotingContainer = startRemotingContainer(computer, listener, volumeExists, remotingImageReady, buildImage, scmImageReady);
+            remotingStarted.set(remotingContainer);
+            prepareSideContainers(listener);
+            return remotingContainer;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // let containers prepared meanwhile be removed
+            remotingStarted.setException(e);
+            throw e;
+        }
+    }
+
+    private Container startRemotingContainer(DockerComputer computer, TaskListener listener, Future<Boolean> volumeExists, Future<Void> remotingImageReady,
+                                             ListenableFuture<String> buildImage, Future<Void> scmImageReady) throws IOException, InterruptedException {
         String volume = context.getWorkdirVolume();
-        if (!driver.hasVolume(listener, volume)) {
+        if (!await(volumeExists)) {
+            // No workspace to reuse, so we can use a remoting container prepared ahead of time with a fresh one
+            final Container pooled = startPooledRemotingContainer(computer, listener, buildImage, scmImageReady);
+            if (pooled != null) {
+                return pooled;
+            }
             volume = driver.createVolume(listener);
             context.setWorkdirVolume(volume);
+        } else {
+            volume = leaseWorkspace(computer, volume, remotingImageReady, listener);
         }
+        recordVolumeUse(driver.getHost(), volume);
+        await(remotingImageReady);
 
-        final Container remotingContainer = driver.launchRemotingContainer(listener, remotingImage, volume, computer);
+        final Container remotingContainer = driver.createRemotingContainer(listener, remotingImage, volume);
+        if (remotingContainer == null) {
+            // not supported by driver, so nothing can overlap with remoting startup
+            final Container launched = driver.launchRemotingContainer(listener, remotingImage, volume, computer);
+            context.setRemotingContainer(launched);
+            prepareBuildContainer(buildImage, launched, null, null, listener);
+            prepareScmContainer(scmImageReady, launched, listener);
+            return launched;
+        }
         context.setRemotingContainer(remotingContainer);
+
+        // other containers get created while remoting channel is being established
+        prepareBuildContainer(buildImage, remotingContainer, null, null, listener);
+        prepareScmContainer(scmImageReady, remotingContainer, listener);
+        driver.startRemotingContainer(listener, remotingContainer, computer);
         return remotingContainer;
     }
 
+    /**
+     * Get exclusive use of the workspace to reuse, or a copy of it if a concurrent build of the job is using it.
+     */
+    private String leaseWorkspace(DockerComputer computer, String volume, Future<Void> remotingImageReady, TaskListener listener) throws IOException, InterruptedException {
+        final String host = driver.getHost();
+        if (host == null) {
+            // can't tell volumes from distinct hosts apart
+            return volume;
+        }
+        final WorkspaceVolumeManager manager = WorkspaceVolumeManager.forHost(host);
+        final String pod = computer.getNode().getNodeName();
+        if (manager.lease(volume, pod)) {
+            leased = volume;
+            leasedBy = pod;
+            return volume;
+        }
+
+        listener.getLogger().println("Workspace " + volume + " is used by a concurrent build, copying it");
+        await(remotingImageReady);
+        String copy;
+        try {
+            copy = driver.cloneVolume(listener, volume, remotingImage);
+        } catch (IOException e) {
+            listener.getLogger().println("Failed to copy workspace, starting from a fresh one: " + e.getMessage());
+            copy = null;
+        }
+        if (copy == null) {
+            copy = driver.createVolume(listener);
+        }
+        context.setWorkdirVolume(copy);
+        manager.lease(copy, pod);
+        leased = copy;
+        leasedBy = pod;
+        return copy;
+    }
+
+    private static void recordVolumeUse(String host, String volume) {
+        if (host != null) {
+            WorkspaceVolumeManager.forHost(host).used(volume);
+        }
+    }
+
+    /**
+     * Resolve build image before SCM checkout, if it doesn't depend on workspace, so build container can be
+     * prepared while remoting starts.
+     */
+    private String resolveBuildImage(DockerDriver driver, TaskListener listener) throws InterruptedException {
+        final ContainerDefinition build = spec.getBuildHostImage();
+        if (build.requiresWorkspace()) {
+            return null;
+        }
+        try {
+            return build.getImage(driver, null, listener);
+        } catch (IOException e) {
+            // build will fail to resolve it as well and report the failure
+            LOGGER.log(Level.FINE, "Failed to resolve build image ahead of time", e);
+            return null;
+        }
+    }
+
+    private Container startPooledRemotingContainer(DockerComputer computer, TaskListener listener, ListenableFuture<String> buildImage, Future<Void> scmImageReady) throws IOException, InterruptedException {
+        final String host = driver.getHost();
+        if (host == null || RemotingContainerPool.getTargetSize() <= 0) {
+            return null;
+        }
+
+        // don't delay remoting for build image to be pulled, a non-matching pooled build container will be replaced
+        final String resolved = buildImage.isDone() ? await(buildImage) : null;
+        final RemotingContainerPool pool = RemotingContainerPool.forHost(host, remotingImage);
+        final RemotingContainerPool.Entry entry = pool.claim(resolved != null ? RemotingContainerPool.buildKey(resolved, spec.getBuildHostImage().getHints()) : null);
+        if (driverFactory != null) {
+            pool.replenish(driverFactory, job);
+        }
+        if (entry == null) {
+            return null;
+        }
+        pooled = entry;
+
+        try {
+            driver.startRemotingContainer(listener, entry.getContainer(), computer);
+        } catch (IOException e) {
+            listener.getLogger().println("Failed to start prepared remoting container, creating a new one: " + e.getMessage());
+            removeQuietly(entry.getBuildContainer(), listener);
+            removeQuietly(entry.getContainer(), listener);
+            return null;
+        }
+        context.setWorkdirVolume(entry.getVolume());
+        context.setRemotingContainer(entry.getContainer());
+        recordVolumeUse(host, entry.getVolume());
+
+        prepareBuildContainer(buildImage, entry.getContainer(), entry.getBuildContainer(), entry.getBuildKey(), listener);
+        prepareScmContainer(scmImageReady, entry.getContainer(), listener);
+        return entry.getContainer();
+    }
+
+    /**
+     * Create build container in background as soon as build image is resolved, and start it once remoting container
+     * is up, so it's ready by the time first build command runs.
+     * @param pooled build container prepared with a pooled remoting container, used if it matches build image
+     */
+    private void prepareBuildContainer(final ListenableFuture<String> buildImage, final Container remotingContainer,
+                                       final Container pooled, final String pooledKey, final TaskListener listener) {
+        final DockerDriver driver = this.driver;
+        final ContainerDefinition build = spec.getBuildHostImage();
+        preparedBuildImage = buildImage;
+        preparedBuildContainer = startOnceRemotingStarted(EXECUTOR.submit(new Callable<Container>() {
+            @Override
+            public Container call() throws Exception {
+                final String image = await(buildImage);
+                if (pooled != null) {
+                    if (image != null && RemotingContainerPool.buildKey(image, build.getHints()).equals(pooledKey)) {
+                        return pooled;
+                    }
+                    removeQuietly(driver, pooled, listener);
+                }
+                if (image == null) {
+                    return null;
+                }
+                // null if not supported by driver
+                return driver.createBuildContainer(listener, image, remotingContainer, build.getHints());
+            }
+        }), listener);
+    }
+
+    /**
+     * Create SCM container in background as soon as SCM image is available, and start it once remoting container
+     * is up, so SCM checkout can run without delay.
+     */
+    private void prepareScmContainer(final Future<Void> scmImageReady, final Container remotingContainer, final TaskListener listener) {
+        if (scmImageReady == null) return;
+        final DockerDriver driver = this.driver;
+        preparedScmContainer = startOnceRemotingStarted(EXECUTOR.submit(new Callable<Container>() {
+            @Override
+            public Container call() throws Exception {
+                await(scmImageReady);
+                // null if not supported by driver
+                return driver.createBuildContainer(listener, scmImage, remotingContainer, Collections.<Hint>emptyList());
+            }
+        }), listener);
+    }
+
+    private Future<Container> startOnceRemotingStarted(final Future<Container> created, final TaskListener listener) {
+        final SettableFuture<Container> remoting = remotingStarted;
+        final DockerDriver driver = this.driver;
+        return EXECUTOR.submit(new Callable<Container>() {
+            @Override
+            public Container call() throws Exception {
+                final Container container = await(created);
+                if (container == null) {
+                    return null;
+                }
+                try {
+                    await(remoting);
+                    driver.startContainer(listener, container);
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    removeQuietly(driver, container, listener);
+                    throw e;
+                }
+                return container;
+            }
+        });
+    }
+
+    /**
+     * Create side containers right after remoting container, unless some of them depend on workspace, in which case
+     * they all wait for SCM checkout. They're only started along with build container, as they see workspace through
+     * remoting container's volumes.
+     */
+    private void prepareSideContainers(final TaskListener listener) {
+        final List<SideContainerDefinition> definitions = spec.getSideContainers();
+        if (definitions.isEmpty()) return;
+        for (SideContainerDefinition definition : definitions) {
+            if (definition.getSpec().requiresWorkspace()) return;
+        }
+
+        final SideContainersLauncher launcher = new SideContainersLauncher(driver, context.getRemotingContainer(), computer, null, listener);
+        preparedSideContainers = EXECUTOR.submit(new Callable<SideContainersLauncher>() {
+            @Override
+            public SideContainersLauncher call() throws Exception {
+                try {
+                    launcher.create(definitions);
+                    launcher.awaitLevel();
+                    return launcher;
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    launcher.abort();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Retrieve a container prepared ahead of time, if any.
+     * @return <code>null</code> if none was prepared, or preparation failed
+     */
+    private Container takePrepared(Future<Container> future, String name, TaskListener listener) throws InterruptedException {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            listener.getLogger().println("Failed to prepare " + name + " container ahead of time: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Retrieve build container prepared ahead of time, if any.
+     * @param buildImage image build container is expected to run, or <code>null</code> to accept any
+     */
+    private Container takePreparedBuildContainer(String buildImage, TaskListener listener) throws IOException, InterruptedException {
+        final Future<Container> future = preparedBuildContainer;
+        preparedBuildContainer = null;
+        final Container container = takePrepared(future, "build", listener);
+        if (container != null && buildImage != null && !buildImage.equals(getPreparedBuildImage())) {
+            removeQuietly(container, listener);
+            return null;
+        }
+        return container;
+    }
+
+    private String getPreparedBuildImage() throws IOException, InterruptedException {
+        final Future<String> future = preparedBuildImage;
+        return future != null ? await(future) : null;
+    }
+
+    /**
+     * Build image, as resolved ahead of time if it was, so a pull forced by {@link ContainerDefinition} doesn't run
+     * twice.
+     */
+    private String getBuildImage(ContainerDefinition build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+        final String prepared = build.requiresWorkspace() ? null : getPreparedBuildImage();
+        return prepared != null ? prepared : build.getImage(driver, workspace, listener);
+    }
+
+    private void removeQuietly(Container container, TaskListener listener) throws InterruptedException {
+        removeQuietly(driver, container, listener);
+    }
+
+    private static void removeQuietly(DockerDriver driver, Container container, TaskListener listener) throws InterruptedException {
+        if (container == null) return;
+        try {
+            driver.removeContainer(listener, container);
+        } catch (IOException e) {
+            // most probably container doesn't exist anymore
+            LOGGER.log(Level.FINE, "Failed to remove container " + container.getId(), e);
+        }
+    }
+
     @Override
     public Container launchBuildContainers(Launcher.ProcStarter starter, TaskListener listener) throws IOException, InterruptedException {
+        final ContainerDefinition build = spec.getBuildHostImage();
+        final String buildImage;
         if (spec.getSideContainers().size() > 0 && context.getSideContainers().size() == 0) {
             // In a ideal world we would run side containers when DockerSlave.DockerSlaveSCMListener detect scm checkout completed
             // but then we don't have a ProcStarter reference. So do it first time a command is ran during the build
             // after scm checkout completed. We detect this is the first time as spec > context
-            createSideContainers(starter, listener);
+            buildImage = createSideContainers(starter, listener, build, takePreparedSideContainers(listener));
+        } else {
+            buildImage = getBuildImage(build, starter.pwd(), listener);
         }
+        recordDemand(buildImage, build.getHints());
 
-        final ContainerDefinition build = spec.getBuildHostImage();
-        String buildImage = build.getImage(driver, starter.pwd(), listener);
-        final Container buildContainer = driver.launchBuildContainer(listener, buildImage, context.getRemotingContainer(), build.getHints());
+        Container buildContainer = takePreparedBuildContainer(buildImage, listener);
+        if (buildContainer == null) {
+            buildContainer = driver.launchBuildContainer(listener, buildImage, context.getRemotingContainer(), build.getHints());
+        }
         context.setBuildContainer(buildContainer);
+        watch(buildContainer);
         return buildContainer;
     }
 
+    private void recordDemand(String buildImage, List<Hint> hints) {
+        final String host = driver.getHost();
+        if (host != null && RemotingContainerPool.getTargetSize() > 0) {
+            RemotingContainerPool.forHost(host, remotingImage).recordDemand(buildImage, hints);
+        }
+    }
+
     @Override
     public Container launchScmContainer(TaskListener listener) throws IOException, InterruptedException {
-        final Container scmContainer = driver.launchBuildContainer(listener, scmImage, context.getRemotingContainer(), Collections.<Hint>emptyList());
-        context.setBuildContainer(scmContainer);
+        final Future<Container> future = preparedScmContainer;
+        preparedScmContainer = null;
+        Container scmContainer = takePrepared(future, "SCM", listener);
+        if (scmContainer == null) {
+            scmContainer = driver.launchBuildContainer(listener, scmImage, context.getRemotingContainer(), Collections.<Hint>emptyList());
+        }
+        context.setScmContainer(scmContainer);
+        watch(scmContainer);
         return scmContainer;
     }
 
-    private void createSideContainers(Launcher.ProcStarter starter, TaskListener listener) throws IOException, InterruptedException {
+    /**
+     * Retrieve side containers created ahead of time, if any.
+     * @return <code>null</code> if none were created, or creation failed
+     */
+    private SideContainersLauncher takePreparedSideContainers(TaskListener listener) throws InterruptedException {
+        final Future<SideContainersLauncher> future = preparedSideContainers;
+        preparedSideContainers = null;
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            listener.getLogger().println("Failed to create side containers ahead of time: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Launch side containers following their dependencies, while build image is resolved on current thread.
+     * @param prepared launcher side containers have been created with ahead of time, if any
+     * @return build image
+     */
+    private String createSideContainers(Launcher.ProcStarter starter, TaskListener listener, ContainerDefinition build, SideContainersLauncher prepared) throws IOException, InterruptedException {
+        final List<List<SideContainerDefinition>> levels = SideContainersLauncher.levels(spec.getSideContainers());
+        final SideContainersLauncher launcher = prepared != null ? prepared
+                : new SideContainersLauncher(driver, context.getRemotingContainer(), computer, starter.pwd(), listener);
+        try {
+            launcher.start(levels.get(0));
+            final String buildImage = getBuildImage(build, starter.pwd(), listener);
+            launcher.awaitLevel();
+            for (List<SideContainerDefinition> level : levels.subList(1, levels.size())) {
+                launcher.start(level);
+                launcher.awaitLevel();
+            }
+            putSideContainers(launcher);
+            return buildImage;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            launcher.abort();
+            throw e;
+        }
+    }
+
+    private void putSideContainers(SideContainersLauncher launcher) {
         for (SideContainerDefinition definition : spec.getSideContainers()) {
-            final String name = definition.getName();
-            final ContainerDefinition sidecar = definition.getSpec();
-            final String image = sidecar.getImage(driver, starter.pwd(), listener);
-            listener.getLogger().println("Starting " + name + " container");
-            Container container = driver.launchSideContainer(listener, image, context.getRemotingContainer(), sidecar.getHints());
-            context.getSideContainers().put(name, container);
+            context.getSideContainers().put(definition.getName(), launcher.getContainers().get(definition.getName()));
+        }
+    }
+
+    /**
+     * Get build aborted as soon as container dies. Side containers aren't watched, as some are designed to only run
+     * an initialization task.
+     */
+    private void watch(Container container) throws IOException, InterruptedException {
+        if (computer != null) {
+            driver.watchContainer(container, computer);
         }
     }
 
@@ -143,6 +653,25 @@ public class DefaultDockerProvisioner extends DockerProvisioner {
 
     @Override
     public void clean(TaskListener listener) throws IOException, InterruptedException {
+        if (pooled != null) {
+            // from now on, orphan reaper is responsible for pooled resources we fail to remove
+            RemotingContainerPool.forHost(driver.getHost(), remotingImage).release(pooled);
+        }
+        if (leased != null) {
+            // next build will reuse workspace of the last completed one
+            WorkspaceVolumeManager.forHost(driver.getHost()).release(leased, leasedBy);
+        }
+
+        // containers prepared ahead of time but never used, typically as SCM checkout failed
+        removeQuietly(takePreparedBuildContainer(null, listener), listener);
+        removeQuietly(takePrepared(preparedScmContainer, "SCM", listener), listener);
+        preparedScmContainer = null;
+        final SideContainersLauncher preparedSide = takePreparedSideContainers(listener);
+        if (preparedSide != null) {
+            // created but never started
+            preparedSide.abort();
+        }
+
         for (Container instance : context.getSideContainers().values()) {
             driver.removeContainer(listener, instance);
         }
@@ -157,4 +686,60 @@ public class DefaultDockerProvisioner extends DockerProvisioner {
 
         driver.close();
     }
+
+    /**
+     * Connect to another docker host when provisioning fails.
+     */
+    public interface Failover {
+
+        /**
+         * @param failedHosts docker hosts provisioning failed on, which should not be selected
+         * @return <code>null</code> if no other docker host is available
+         */
+        DockerDriver connect(Set<String> failedHosts) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Wait for a provisioning task, rethrowing it's failure.
+     */
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Make an image available on docker host.
+     */
+    private static class ImageCheck implements Callable<Void> {
+
+        private final DockerDriver driver;
+
+        private final String image;
+
+        private final TaskListener listener;
+
+        ImageCheck(DockerDriver driver, String image, TaskListener listener) {
+            this.driver = driver;
+            this.image = image;
+            this.listener = listener;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            if (!driver.checkImageExists(listener, image)) {
+                driver.pullImage(listener, image);
+            }
+            return null;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DefaultDockerProvisioner.class.getName());
 }
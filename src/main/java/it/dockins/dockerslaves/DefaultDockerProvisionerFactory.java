@@ -30,7 +30,12 @@ import it.dockins.dockerslaves.spi.DockerDriver;
 import it.dockins.dockerslaves.spec.ContainerSetDefinition;
 import hudson.model.Job;
 import hudson.model.Run;
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.spec.ContainerDefinition;
+import it.dockins.dockerslaves.spec.ImageIdContainerDefinition;
+import it.dockins.dockerslaves.spec.SideContainerDefinition;
 import it.dockins.dockerslaves.spi.DockerDriverFactory;
+import it.dockins.dockerslaves.spi.DockerHostRequest;
 import it.dockins.dockerslaves.spi.DockerProvisioner;
 import it.dockins.dockerslaves.spi.DockerProvisionerFactory;
 import it.dockins.dockerslaves.spi.DockerProvisionerFactoryDescriptor;
@@ -40,6 +45,12 @@ import org.kohsuke.stapler.DataBoundSetter;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class DefaultDockerProvisionerFactory extends DockerProvisionerFactory {
 
@@ -59,6 +70,11 @@ public class DefaultDockerProvisionerFactory extends DockerProvisionerFactory {
         return dockerDriverFactory;
     }
 
+    @Override
+    public List<String> getDockerHosts() {
+        return dockerDriverFactory.getDockerHosts();
+    }
+
     public String getScmImage() {
         return StringUtils.isBlank(scmImage) ? "buildpack-deps:scm" : scmImage;
     }
@@ -81,28 +97,161 @@ public class DefaultDockerProvisionerFactory extends DockerProvisionerFactory {
 
         // TODO define a configurable volume strategy to retrieve a (maybe persistent) workspace
 
-        Run lastBuild = job.getLastCompletedBuild();
-        if (lastBuild != null) {
-            ContainersContext previousContext = lastBuild.getAction(ContainersContext.class);
-            if (previousContext != null && previousContext.getWorkdirVolume() != null) {
+        ContainersContext previousContext = getPreviousContext(job);
+        if (previousContext != null && previousContext.getWorkdirVolume() != null) {
+            // volume only exists on the docker host previous build ran on
+            final String host = previousContext.getDockerHost();
+            if (host == null || host.equals(context.getDockerHost())) {
                 context.setWorkdirVolume(previousContext.getWorkdirVolume());
             }
         }
     }
 
+    private static ContainersContext getPreviousContext(Job job) {
+        Run lastBuild = job.getLastCompletedBuild();
+        return lastBuild != null ? lastBuild.getAction(ContainersContext.class) : null;
+    }
+
     @Override
     public DockerProvisioner createProvisionerForClassicJob(Job job, ContainerSetDefinition spec) throws IOException, InterruptedException {
-        final DockerDriver driver = dockerDriverFactory.forJob(job);
+        return createProvisionerForClassicJob(job, spec, -1);
+    }
+
+    @Override
+    public DockerProvisioner createProvisionerForClassicJob(Job job, ContainerSetDefinition spec, long queueItemId) throws IOException, InterruptedException {
+        final DockerHostRequest request = createHostRequest(job, spec, true).forQueueItem(queueItemId);
+        final DockerDriver driver = createDriver(job, request);
         ContainersContext context = new ContainersContext();
+        context.setDockerHost(driver.getHost());
+        context.setMemoryReservation(spec.getMemoryReservation());
         prepareWorkspace(job, context);
-        return new DefaultDockerProvisioner(context, driver, spec, getRemotingImage(), getScmImage());
+        final DefaultDockerProvisioner provisioner = new DefaultDockerProvisioner(context, driver, spec, getRemotingImage(), getScmImage());
+        provisioner.setFailover(failover(job, request));
+        provisioner.setDriverFactory(dockerDriverFactory, job);
+        return provisioner;
     }
 
     @Override
     public DockerProvisioner createProvisionerForPipeline(Job job, ContainerSetDefinition spec) throws IOException, InterruptedException {
-        final DockerDriver driver = dockerDriverFactory.forJob(job);
+        return createProvisionerForPipeline(job, spec, -1);
+    }
+
+    @Override
+    public DockerProvisioner createProvisionerForPipeline(Job job, ContainerSetDefinition spec, long queueItemId) throws IOException, InterruptedException {
+        final DockerHostRequest request = createHostRequest(job, spec, false).forQueueItem(queueItemId);
+        final DockerDriver driver = createDriver(job, request);
         ContainersContext context = new ContainersContext(false);
-        return new DefaultDockerProvisioner(context, driver, spec, getRemotingImage(), getScmImage());
+        context.setDockerHost(driver.getHost());
+        context.setMemoryReservation(spec.getMemoryReservation());
+        final DefaultDockerProvisioner provisioner = new DefaultDockerProvisioner(context, driver, spec, getRemotingImage(), getScmImage());
+        provisioner.setFailover(failover(job, request));
+        provisioner.setDriverFactory(dockerDriverFactory, job);
+        return provisioner;
+    }
+
+    /**
+     * Connect to another docker host than the ones provisioning failed on, if docker host source has one.
+     */
+    private DefaultDockerProvisioner.Failover failover(final Job job, final DockerHostRequest request) {
+        return new DefaultDockerProvisioner.Failover() {
+            @Override
+            public DockerDriver connect(Set<String> failedHosts) throws IOException, InterruptedException {
+                final DockerDriver driver;
+                try {
+                    driver = createDriver(job, request.excluding(failedHosts));
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to connect to another docker host", e);
+                    return null;
+                }
+                if (failedHosts.contains(driver.getHost())) {
+                    // docker host source doesn't have another one
+                    driver.close();
+                    return null;
+                }
+                return driver;
+            }
+        };
+    }
+
+    /**
+     * Create a driver labelling resources with job they're created for, so orphans can be reaped.
+     */
+    private DockerDriver createDriver(Job job, DockerHostRequest request) throws IOException, InterruptedException {
+        final DockerDriver driver = dockerDriverFactory.forJob(job, request);
+        driver.setLabel(ResourceLabels.INSTANCE, ResourceLabels.getInstanceId());
+        driver.setLabel(ResourceLabels.JOB, job.getFullName());
+        OrphanReaper.record(driver, dockerDriverFactory, job);
+        // so admission control knows how much memory pods can reserve on this host
+        HostMemory.forHost(driver.getHost()).updateIfStale(driver);
+        return driver;
+    }
+
+    /**
+     * Ask for the docker host holding job's workspace, if it is to be reused, and images build will run.
+     */
+    private DockerHostRequest createHostRequest(Job job, ContainerSetDefinition spec, boolean reuseWorkspace) {
+        String preferredHost = null;
+        if (reuseWorkspace) {
+            final ContainersContext previousContext = getPreviousContext(job);
+            if (previousContext != null && previousContext.getWorkdirVolume() != null) {
+                preferredHost = previousContext.getDockerHost();
+            }
+        }
+
+        final List<String> images = new ArrayList<>();
+        images.add(getRemotingImage());
+        if (reuseWorkspace) {
+            images.add(getScmImage());
+        }
+        addImage(images, spec.getBuildHostImage());
+        for (SideContainerDefinition definition : spec.getSideContainers()) {
+            addImage(images, definition.getSpec());
+        }
+        return new DockerHostRequest(preferredHost, images, spec.getMemoryReservation());
+    }
+
+    private static void addImage(List<String> images, ContainerDefinition definition) {
+        if (definition instanceof ImageIdContainerDefinition) {
+            images.add(((ImageIdContainerDefinition) definition).getImage());
+        }
+    }
+
+    /**
+     * Pod will only be placed once item leaves the queue, so rather than guessing placement now, images are pulled on
+     * the docker host holding job's workspace if it is to be reused, otherwise on every candidate host.
+     */
+    @Override
+    public void prefetchImages(Job job, ContainerSetDefinition spec, TaskListener listener) throws IOException, InterruptedException {
+        final DockerHostRequest request = createHostRequest(job, spec, true);
+        final List<String> hosts = request.getPreferredHost() != null
+                ? Collections.singletonList(request.getPreferredHost())
+                : dockerDriverFactory.getDockerHosts();
+        if (hosts.isEmpty()) {
+            // single docker host, or factory can't tell
+            try (DockerDriver driver = dockerDriverFactory.forJob(job, request)) {
+                prefetchImages(driver, spec, listener);
+            }
+            return;
+        }
+        for (String host : hosts) {
+            try (DockerDriver driver = dockerDriverFactory.forHost(job, host)) {
+                if (driver != null) {
+                    prefetchImages(driver, spec, listener);
+                }
+            } catch (IOException e) {
+                // don't deprive other hosts of prefetched images
+                LOGGER.log(Level.FINE, "Failed to prefetch images on " + host, e);
+            }
+        }
+    }
+
+    private void prefetchImages(DockerDriver driver, ContainerSetDefinition spec, TaskListener listener) throws IOException, InterruptedException {
+        driver.prefetchImageIfMissing(listener, getRemotingImage());
+        driver.prefetchImageIfMissing(listener, getScmImage());
+        spec.getBuildHostImage().prefetchImage(driver, listener);
+        for (SideContainerDefinition definition : spec.getSideContainers()) {
+            definition.getSpec().prefetchImage(driver, listener);
+        }
     }
 
     @Extension
@@ -114,4 +263,6 @@ public class DefaultDockerProvisionerFactory extends DockerProvisionerFactory {
             return "Compose docker containers";
         }
     }
+
+    private static final Logger LOGGER = Logger.getLogger(DefaultDockerProvisionerFactory.class.getName());
 }
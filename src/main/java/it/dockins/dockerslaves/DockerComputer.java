@@ -27,10 +27,15 @@ package it.dockins.dockerslaves;
 
 import hudson.EnvVars;
 import hudson.model.Computer;
+import hudson.model.Executor;
+import hudson.model.Result;
+import jenkins.model.CauseOfInterruption;
 import it.dockins.dockerslaves.api.OneShotComputer;
 import hudson.slaves.ComputerLauncher;
 import it.dockins.dockerslaves.spi.DockerProvisioner;
 
+import org.apache.commons.lang.StringUtils;
+
 import java.io.IOException;
 import java.util.logging.Logger;
 
@@ -87,6 +92,36 @@ public class DockerComputer extends OneShotComputer {
         return provisioner;
     }
 
+    /**
+     * One of the pod's containers died, abort the build rather than wait for next command to fail.
+     */
+    public void containerTerminated(String containerId, String reason) {
+        final String description = "Container " + StringUtils.left(containerId, 12) + " " + reason;
+        LOGGER.info(description + ", aborting build on " + getName());
+        for (Executor executor : getExecutors()) {
+            if (executor.isBusy()) {
+                executor.interrupt(Result.FAILURE, new ContainerTerminated(description));
+            }
+        }
+    }
+
+    /**
+     * Build has been interrupted as one of it's containers died.
+     */
+    public static class ContainerTerminated extends CauseOfInterruption {
+
+        private final String description;
+
+        public ContainerTerminated(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return description;
+        }
+    }
+
     private static final Logger LOGGER = Logger.getLogger(DockerComputer.class.getName());
 
     public ComputerLauncher createComputerLauncher() {
@@ -29,6 +29,7 @@ import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.Queue;
 import hudson.model.Run;
@@ -57,11 +58,30 @@ public class DockerSlave extends OneShotSlave {
 
     private final long queueItemId;
 
+    /** Full name of the job this slave builds, if known */
+    private final String jobName;
+
     public DockerSlave(String name, String nodeDescription, String labelString, DockerProvisioner provisioner, Queue.Item queueItem) throws Descriptor.FormException, IOException {
         // TODO would be better to get notified when the build start, and get the actual build ID. But can't find the API for that
-        super(name.replaceAll("/", " » "), nodeDescription, SLAVE_ROOT, labelString, new DockerComputerLauncher());
+        super(toNodeName(name), nodeDescription, SLAVE_ROOT, labelString, new DockerComputerLauncher());
         this.provisioner = provisioner;
         this.queueItemId = queueItem.getId();
+        this.jobName = getJobName(queueItem);
+    }
+
+    /**
+     * Node name a slave created with this name gets.
+     */
+    static String toNodeName(String name) {
+        return name.replaceAll("/", " » ");
+    }
+
+    /**
+     * Full name of the job a queue item builds, if known.
+     */
+    static String getJobName(Queue.Item queueItem) {
+        final Queue.Task owner = queueItem.task.getOwnerTask();
+        return owner instanceof Item ? ((Item) owner).getFullName() : null;
     }
 
     public DockerComputer createComputer() {
@@ -82,6 +102,14 @@ public class DockerSlave extends OneShotSlave {
         return queueItemId;
     }
 
+    public String getJobName() {
+        return jobName;
+    }
+
+    public DockerProvisioner getProvisioner() {
+        return provisioner;
+    }
+
     /**
      * Create a custom ${@link Launcher} which relies on <code>docker run</code> to start a new process
      */
@@ -32,17 +32,23 @@ import hudson.model.Descriptor;
 import hudson.model.Job;
 import hudson.slaves.Cloud;
 import it.dockins.dockerslaves.drivers.PlainDockerAPIDockerDriverFactory;
+import it.dockins.dockerslaves.hints.MemoryHint;
 import it.dockins.dockerslaves.spec.ContainerSetDefinition;
 import it.dockins.dockerslaves.spi.DockerProvisioner;
 import it.dockins.dockerslaves.spi.DockerProvisionerFactory;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
+import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * {@link Cloud} implementation designed to launch a set of containers (aka "pod") to establish a Jenkins executor.
@@ -59,12 +65,33 @@ public class DockerSlaves extends Plugin implements Describable<DockerSlaves> {
 
     private int maxSlaves = 10;
 
+    private int maxSlavesPerHost;
+
+    private List<FolderQuota> folderQuotas;
+
+    private List<PriorityClass> priorityClasses;
+
+    private String defaultContainerMemory;
+
+    private String reservedHostMemory;
+
+    public static final int DEFAULT_MAX_CONCURRENT_PULLS = 2;
+
+    private int maxConcurrentPulls = DEFAULT_MAX_CONCURRENT_PULLS;
+
+    private int remotingContainerPoolSize;
+
+    private int workspaceVolumesBudget;
+
     public void start() throws IOException {
         load();
     }
 
     @Override
     public void configure(StaplerRequest req, JSONObject formData) throws IOException, ServletException, Descriptor.FormException {
+        // form has no entry for an empty list
+        folderQuotas = null;
+        priorityClasses = null;
         req.bindJSON(this, formData);
         save();
     }
@@ -95,10 +122,17 @@ public class DockerSlaves extends Plugin implements Describable<DockerSlaves> {
     }
 
     public DockerProvisioner createStandardJobProvisionerFactory(Job job) throws IOException, InterruptedException {
+        return createStandardJobProvisionerFactory(job, -1);
+    }
+
+    /**
+     * @param queueItemId queue item which docker slot is reserved, <code>-1</code> if none
+     */
+    public DockerProvisioner createStandardJobProvisionerFactory(Job job, long queueItemId) throws IOException, InterruptedException {
         // TODO iterate on job's ItemGroup and it's parents so end-user can configure this at folder level.
 
         ContainerSetDefinition spec = (ContainerSetDefinition) job.getProperty(ContainerSetDefinition.class);
-        return getDockerProvisionerFactory().createProvisionerForClassicJob(job, spec);
+        return getDockerProvisionerFactory().createProvisionerForClassicJob(job, spec, queueItemId);
     }
 
     public int getMaxSlaves() {
@@ -110,8 +144,125 @@ public class DockerSlaves extends Plugin implements Describable<DockerSlaves> {
         this.maxSlaves = maxSlaves;
     }
 
+    /**
+     * Maximum number of slaves running on a docker host, <code>0</code> for no limit.
+     */
+    public int getMaxSlavesPerHost() {
+        return maxSlavesPerHost;
+    }
+
+    @DataBoundSetter
+    public void setMaxSlavesPerHost(int maxSlavesPerHost) {
+        this.maxSlavesPerHost = maxSlavesPerHost;
+    }
+
+    public List<FolderQuota> getFolderQuotas() {
+        return folderQuotas != null ? folderQuotas : Collections.<FolderQuota>emptyList();
+    }
+
+    @DataBoundSetter
+    public void setFolderQuotas(List<FolderQuota> folderQuotas) {
+        this.folderQuotas = folderQuotas;
+    }
+
+    public List<PriorityClass> getPriorityClasses() {
+        return priorityClasses != null ? priorityClasses : Collections.<PriorityClass>emptyList();
+    }
+
+    @DataBoundSetter
+    public void setPriorityClasses(List<PriorityClass> priorityClasses) {
+        this.priorityClasses = priorityClasses;
+    }
+
+    /**
+     * Memory reserved for containers without a {@link MemoryHint}, in <code>docker run -m</code> format.
+     */
+    public String getDefaultContainerMemory() {
+        return defaultContainerMemory;
+    }
+
+    @DataBoundSetter
+    public void setDefaultContainerMemory(String defaultContainerMemory) {
+        this.defaultContainerMemory = defaultContainerMemory;
+    }
+
+    public long getDefaultContainerMemoryInBytes() {
+        return parseMemory(defaultContainerMemory);
+    }
+
+    /**
+     * Memory of docker hosts pods can't reserve, left to the system and docker daemon.
+     */
+    public String getReservedHostMemory() {
+        return reservedHostMemory;
+    }
+
+    @DataBoundSetter
+    public void setReservedHostMemory(String reservedHostMemory) {
+        this.reservedHostMemory = reservedHostMemory;
+    }
+
+    public long getReservedHostMemoryInBytes() {
+        return parseMemory(reservedHostMemory);
+    }
+
+    private static long parseMemory(String memory) {
+        if (StringUtils.isBlank(memory)) {
+            return 0;
+        }
+        try {
+            return MemoryHint.parseMemory(memory);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Maximum number of image pulls to run concurrently on a docker host.
+     */
+    public int getMaxConcurrentPulls() {
+        return maxConcurrentPulls;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPulls(int maxConcurrentPulls) {
+        this.maxConcurrentPulls = maxConcurrentPulls;
+    }
+
+    /**
+     * Number of remoting containers to prepare ahead of time per docker host.
+     */
+    public int getRemotingContainerPoolSize() {
+        return remotingContainerPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setRemotingContainerPoolSize(int remotingContainerPoolSize) {
+        this.remotingContainerPoolSize = remotingContainerPoolSize;
+    }
+
+    /**
+     * Disk space, in gigabytes, workspace volumes can use per docker host, <code>0</code> for no limit.
+     */
+    public int getWorkspaceVolumesBudget() {
+        return workspaceVolumesBudget;
+    }
+
+    @DataBoundSetter
+    public void setWorkspaceVolumesBudget(int workspaceVolumesBudget) {
+        this.workspaceVolumesBudget = workspaceVolumesBudget;
+    }
+
     public DockerProvisioner createProvisionerForPipeline(Job job, ContainerSetDefinition spec) throws IOException, InterruptedException {
-        return getDockerProvisionerFactory().createProvisionerForPipeline(job, spec);
+        return createProvisionerForPipeline(job, spec, -1);
+    }
+
+    /**
+     * @param queueItemId queue item which docker slot is reserved, <code>-1</code> if none
+     */
+    public DockerProvisioner createProvisionerForPipeline(Job job, ContainerSetDefinition spec, long queueItemId) throws IOException, InterruptedException {
+        return getDockerProvisionerFactory().createProvisionerForPipeline(job, spec, queueItemId);
     }
 
     public static DockerSlaves get() {
@@ -145,4 +296,6 @@ public class DockerSlaves extends Plugin implements Describable<DockerSlaves> {
     public String remotingContainerImageName;
 
     public DockerServerEndpoint dockerHost;
+
+    private static final Logger LOGGER = Logger.getLogger(DockerSlaves.class.getName());
 }
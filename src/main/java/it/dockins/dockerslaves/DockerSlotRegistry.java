@@ -0,0 +1,290 @@
+package it.dockins.dockerslaves;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Node;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep track of {@link DockerSlave}s as nodes get added and removed, so {@link ProvisionScheduler} can check for a
+ * free slot without scanning all nodes for every queue item.
+ * <p>
+ * Slots are counted globally, per docker host with the memory their pods reserve, and per item: job, and all of its
+ * folders. A slot is {@link #reserve(long, String, String, long) reserved} as soon as its queue item is admitted, so
+ * items admitted in the same queue maintenance are accounted for before the node actually gets added. Slot is then
+ * {@link #move(long, String) moved} to the docker host its pod gets placed on, as it's selected.
+ */
+@Extension
+public class DockerSlotRegistry extends NodeListener {
+
+    /** Queue item ID to the slot created to build it */
+    private final ConcurrentMap<Long, Slot> slots = new ConcurrentHashMap<>();
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private final ConcurrentMap<String, AtomicInteger> hosts = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicLong> hostsMemory = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicInteger> items = new ConcurrentHashMap<>();
+
+    /** Incremented as slots get reserved or released, so derived data can be cached until next change */
+    private final AtomicLong changes = new AtomicLong();
+
+    /** Moving average of slots lifetime, in milliseconds */
+    private volatile long averageDuration = -1;
+
+    public static DockerSlotRegistry get() {
+        return Jenkins.getInstance().getExtensionList(NodeListener.class).get(DockerSlotRegistry.class);
+    }
+
+    /**
+     * Register nodes loaded from configuration, before queue starts dispatching items.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void init() {
+        final DockerSlotRegistry registry = get();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            registry.onCreated(node);
+        }
+    }
+
+    /**
+     * Number of docker slots in use.
+     */
+    public int getCount() {
+        return count.get();
+    }
+
+    /**
+     * Number of docker slots in use on a docker host.
+     */
+    public int getCount(String host) {
+        final AtomicInteger c = hosts.get(host);
+        return c != null ? c.get() : 0;
+    }
+
+    /**
+     * Memory reserved by pods on a docker host, in bytes.
+     */
+    public long getReservedMemory(String host) {
+        final AtomicLong m = hostsMemory.get(host);
+        return m != null ? m.get() : 0;
+    }
+
+    /**
+     * Number of docker slots in use by an item: a job, or all jobs within a folder including sub-folders.
+     */
+    public int getItemCount(String fullName) {
+        final AtomicInteger c = items.get(fullName);
+        return c != null ? c.get() : 0;
+    }
+
+    /**
+     * Average time a slot is used, from node creation to removal.
+     * @return <code>-1</code> if unknown
+     */
+    public long getAverageDuration() {
+        return averageDuration;
+    }
+
+    public long getChanges() {
+        return changes.get();
+    }
+
+    /**
+     * Has a {@link DockerSlave} already been created for this queue item?
+     */
+    public boolean hasSlot(long queueItemId) {
+        return slots.containsKey(queueItemId);
+    }
+
+    /**
+     * Account for a slot before its node gets added to Jenkins.
+     */
+    public void reserve(DockerSlave slave) {
+        reserve(slave.getQueueItemId(), new Slot(slave));
+    }
+
+    /**
+     * Account for a slot as soon as a queue item is admitted, before its pod is placed on a docker host.
+     * @param node name of the node to be created
+     * @param job full name of the job item builds, if known
+     * @param memory memory reserved by pod's containers
+     */
+    public void reserve(long queueItemId, String node, String job, long memory) {
+        reserve(queueItemId, new Slot(node, null, memory, job));
+    }
+
+    private void reserve(long queueItemId, Slot slot) {
+        if (slots.putIfAbsent(queueItemId, slot) == null) {
+            count.incrementAndGet();
+            synchronized (slot) {
+                add(hosts, slot.host, 1);
+                addMemory(slot.host, slot.memory);
+            }
+            for (String item : slot.items) {
+                add(items, item, 1);
+            }
+            changes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Release a slot, typically as its node is removed or failed to be added.
+     */
+    public void release(DockerSlave slave) {
+        release(slave.getQueueItemId(), slave.getNodeName());
+    }
+
+    /**
+     * Release a slot reserved for a node which won't be created.
+     */
+    public void release(long queueItemId, String node) {
+        final Slot slot = slots.get(queueItemId);
+        if (slot != null && slot.node.equals(node) && slots.remove(queueItemId, slot)) {
+            count.decrementAndGet();
+            synchronized (slot) {
+                add(hosts, slot.host, -1);
+                addMemory(slot.host, -slot.memory);
+            }
+            for (String item : slot.items) {
+                add(items, item, -1);
+            }
+            final long duration = System.currentTimeMillis() - slot.reservedAt;
+            final long average = averageDuration;
+            averageDuration = average < 0 ? duration : (7 * average + duration) / 8;
+            changes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Account for a slot's pod on another docker host, as provisioning failed over.
+     */
+    public void move(DockerSlave slave, String host) {
+        final Slot slot = slots.get(slave.getQueueItemId());
+        if (slot != null && slot.node.equals(slave.getNodeName())) {
+            move(slot, host);
+        }
+    }
+
+    /**
+     * Account for a reserved slot's pod on the docker host it's placed on, as soon as it's selected so pods placed
+     * concurrently see its memory and slot used.
+     */
+    public void move(long queueItemId, String host) {
+        final Slot slot = slots.get(queueItemId);
+        if (slot != null) {
+            move(slot, host);
+        }
+    }
+
+    private void move(Slot slot, String host) {
+        synchronized (slot) {
+            if (host == null ? slot.host == null : host.equals(slot.host)) {
+                return;
+            }
+            add(hosts, slot.host, -1);
+            addMemory(slot.host, -slot.memory);
+            slot.host = host;
+            add(hosts, slot.host, 1);
+            addMemory(slot.host, slot.memory);
+        }
+        changes.incrementAndGet();
+    }
+
+    private static void add(ConcurrentMap<String, AtomicInteger> counters, String key, int delta) {
+        if (key == null) return;
+        AtomicInteger c = counters.get(key);
+        if (c == null) {
+            final AtomicInteger created = new AtomicInteger();
+            c = counters.putIfAbsent(key, created);
+            if (c == null) {
+                c = created;
+            }
+        }
+        c.addAndGet(delta);
+    }
+
+    private void addMemory(String host, long delta) {
+        if (host == null || delta == 0) return;
+        AtomicLong m = hostsMemory.get(host);
+        if (m == null) {
+            final AtomicLong created = new AtomicLong();
+            m = hostsMemory.putIfAbsent(host, created);
+            if (m == null) {
+                m = created;
+            }
+        }
+        m.addAndGet(delta);
+    }
+
+    @Override
+    protected void onCreated(@Nonnull Node node) {
+        if (node instanceof DockerSlave) {
+            reserve((DockerSlave) node);
+        }
+    }
+
+    @Override
+    protected void onUpdated(@Nonnull Node oldOne, @Nonnull Node newOne) {
+        if (oldOne instanceof DockerSlave && newOne instanceof DockerSlave
+                && ((DockerSlave) oldOne).getQueueItemId() == ((DockerSlave) newOne).getQueueItemId()
+                && oldOne.getNodeName().equals(newOne.getNodeName())) {
+            // same pod, keep its slot so it's still accounted from the time it was reserved
+            return;
+        }
+        onDeleted(oldOne);
+        onCreated(newOne);
+    }
+
+    @Override
+    protected void onDeleted(@Nonnull Node node) {
+        if (node instanceof DockerSlave) {
+            release((DockerSlave) node);
+        }
+    }
+
+    private static class Slot {
+
+        private final String node;
+
+        /** Docker host pod runs on, guarded by slot's lock as it changes on failover */
+        private String host;
+
+        /** Memory reserved by pod's containers */
+        private final long memory;
+
+        /** Folders job belongs to, from top-level down to its parent, then job itself */
+        private final List<String> items = new ArrayList<>();
+
+        private final long reservedAt = System.currentTimeMillis();
+
+        Slot(DockerSlave slave) {
+            this(slave.getNodeName(), slave.getProvisioner().getContext().getDockerHost(),
+                    slave.getProvisioner().getContext().getMemoryReservation(), slave.getJobName());
+        }
+
+        Slot(String node, String host, long memory, String job) {
+            this.node = node;
+            this.host = host;
+            this.memory = memory;
+            if (job != null) {
+                for (int i = job.indexOf('/'); i > 0; i = job.indexOf('/', i + 1)) {
+                    items.add(job.substring(0, i));
+                }
+                items.add(job);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package it.dockins.dockerslaves;
+
+import hudson.model.Queue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Order items waiting for a docker slot, so {@link ProvisionScheduler} gives free slots to the first ones in line
+ * rather than to whichever item the queue happens to check first.
+ * <p>
+ * Higher {@link PriorityClass priority} items come first. Among items of the same priority, slots are shared by
+ * groups - the {@link FolderQuota} folder a job belongs to, or its top-level folder - in proportion to group's weight
+ * and considering slots group already uses, so a large batch from one group doesn't starve the others. Within a
+ * group, items are served in queue order.
+ * <p>
+ * Ranking is only computed again as items join or leave the line, or slots get used or released. Items not checked
+ * by {@link ProvisionScheduler} for {@link #PENDING_TIMEOUT}, typically because some other dispatcher blocks them,
+ * drop out of line so they don't hold others.
+ */
+public class FairShareQueue {
+
+    static final long PENDING_TIMEOUT = Long.getLong(FairShareQueue.class.getName() + ".pendingTimeout", TimeUnit.SECONDS.toMillis(15));
+
+    private final Map<Long, Pending> pending = new HashMap<>();
+
+    private boolean ranked;
+
+    private long rankedAt;
+
+    /** {@link DockerSlotRegistry#getChanges()} when ranking was computed */
+    private long rankedChanges = -1;
+
+    /**
+     * Record item is waiting for a docker slot, and get its position in line.
+     * @param job full name of the job item builds
+     * @return <code>0</code> for first in line
+     */
+    public synchronized int getPosition(Queue.Item item, String job) {
+        final long now = System.currentTimeMillis();
+        Pending p = pending.get(item.getId());
+        if (p == null) {
+            p = Pending.forJob(job, item.getInQueueSince());
+            pending.put(item.getId(), p);
+            ranked = false;
+        }
+        p.seen = now;
+
+        final DockerSlotRegistry slots = DockerSlotRegistry.get();
+        if (!ranked || rankedChanges != slots.getChanges() || now - rankedAt > PENDING_TIMEOUT) {
+            rank(slots, now);
+        }
+        return p.position;
+    }
+
+    /**
+     * Number of items waiting for a docker slot.
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Item got a slot, or left the queue.
+     */
+    public synchronized void remove(long queueItemId) {
+        if (pending.remove(queueItemId) != null) {
+            ranked = false;
+        }
+    }
+
+    private void rank(DockerSlotRegistry slots, long now) {
+        final List<Pending> line = new ArrayList<>();
+        for (Iterator<Pending> it = pending.values().iterator(); it.hasNext(); ) {
+            final Pending p = it.next();
+            if (now - p.seen > PENDING_TIMEOUT) {
+                it.remove();
+            } else {
+                line.add(p);
+            }
+        }
+
+        final Map<String, Integer> used = new HashMap<>();
+        for (Pending p : line) {
+            if (!used.containsKey(p.group)) {
+                used.put(p.group, slots.getItemCount(p.group));
+            }
+        }
+        rank(line, used);
+
+        ranked = true;
+        rankedAt = now;
+        rankedChanges = slots.getChanges();
+    }
+
+    /**
+     * Assign items their position in line.
+     * @param used slots each group already uses, updated with the ones it gets as line moves forward
+     */
+    static void rank(List<Pending> line, Map<String, Integer> used) {
+        Collections.sort(line, new Comparator<Pending>() {
+            @Override
+            public int compare(Pending a, Pending b) {
+                if (a.priority != b.priority) {
+                    return a.priority > b.priority ? -1 : 1;
+                }
+                return Long.compare(a.since, b.since);
+            }
+        });
+
+        int position = 0;
+        int i = 0;
+        while (i < line.size()) {
+            // one priority at a time, each group's items in queue order
+            final int priority = line.get(i).priority;
+            final Map<String, Deque<Pending>> groups = new LinkedHashMap<>();
+            for (; i < line.size() && line.get(i).priority == priority; i++) {
+                final Pending p = line.get(i);
+                Deque<Pending> group = groups.get(p.group);
+                if (group == null) {
+                    groups.put(p.group, group = new ArrayDeque<>());
+                    if (!used.containsKey(p.group)) {
+                        used.put(p.group, 0);
+                    }
+                }
+                group.add(p);
+            }
+
+            while (!groups.isEmpty()) {
+                String next = null;
+                double share = 0;
+                for (Map.Entry<String, Deque<Pending>> group : groups.entrySet()) {
+                    final Pending head = group.getValue().peek();
+                    final double s = (double) used.get(group.getKey()) / head.weight;
+                    // groups are in order of their first item, so ties go to the one waiting longer
+                    if (next == null || s < share) {
+                        next = group.getKey();
+                        share = s;
+                    }
+                }
+                final Deque<Pending> group = groups.get(next);
+                group.poll().position = position++;
+                used.put(next, used.get(next) + 1);
+                if (group.isEmpty()) {
+                    groups.remove(next);
+                }
+            }
+        }
+    }
+
+    static final class Pending {
+
+        private final String group;
+
+        private final int weight;
+
+        private final int priority;
+
+        private final long since;
+
+        private long seen;
+
+        private int position;
+
+        Pending(String group, int weight, int priority, long since) {
+            this.group = group;
+            this.weight = weight;
+            this.priority = priority;
+            this.since = since;
+        }
+
+        /**
+         * Item building a job, grouped and prioritized as per configured {@link FolderQuota}s and
+         * {@link PriorityClass}es.
+         */
+        static Pending forJob(String job, long since) {
+            FolderQuota share = null;
+            for (FolderQuota quota : DockerSlaves.get().getFolderQuotas()) {
+                if (job.startsWith(quota.getFolder() + "/")
+                        && (share == null || quota.getFolder().length() > share.getFolder().length())) {
+                    share = quota;
+                }
+            }
+            final int priority = PriorityClass.getPriority(job);
+            if (share != null) {
+                return new Pending(share.getFolder(), share.getWeight(), priority, since);
+            }
+            final int i = job.indexOf('/');
+            return new Pending(i > 0 ? job.substring(0, i) : job, 1, priority, since);
+        }
+
+        int getPosition() {
+            return position;
+        }
+    }
+}
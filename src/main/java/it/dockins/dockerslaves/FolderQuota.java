@@ -0,0 +1,63 @@
+package it.dockins.dockerslaves;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Share of docker slots jobs within a folder, including sub-folders, get: a maximum number of slots they can use at
+ * the same time, and a weight for the fair share among folders competing for slots.
+ */
+public class FolderQuota extends AbstractDescribableImpl<FolderQuota> {
+
+    private final String folder;
+
+    private final int maxSlaves;
+
+    private int weight = 1;
+
+    @DataBoundConstructor
+    public FolderQuota(String folder, int maxSlaves) {
+        this.folder = StringUtils.strip(folder, "/ ");
+        this.maxSlaves = maxSlaves;
+    }
+
+    /**
+     * Full name of the folder.
+     */
+    public String getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return <code>0</code> for no limit
+     */
+    public int getMaxSlaves() {
+        return maxSlaves;
+    }
+
+    public int getWeight() {
+        // not set by former versions
+        return weight > 0 ? weight : 1;
+    }
+
+    @DataBoundSetter
+    public void setWeight(int weight) {
+        this.weight = Math.max(1, weight);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<FolderQuota> {
+
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Folder share";
+        }
+    }
+}
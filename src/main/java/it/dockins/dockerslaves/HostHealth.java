@@ -0,0 +1,150 @@
+package it.dockins.dockerslaves;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker for a docker host, so a daemon which fails or hangs gets out of rotation rather than failing a
+ * share of the builds.
+ * <p>
+ * Outcome of the last {@link #WINDOW} calls is tracked, a call slower than {@link #SLOW_CALL} counting as a failure.
+ * Once {@link #FAILURE_RATE} percent of them failed, circuit opens and host isn't selected for new pods. After
+ * {@link #OPEN_DURATION} circuit gets half-open: host is still not selected for builds, but next call, typically a
+ * background capacity check, probes it and closes the circuit on success or opens it again on failure.
+ */
+public class HostHealth {
+
+    static final int WINDOW = Integer.getInteger(HostHealth.class.getName() + ".window", 10);
+
+    static final int MIN_CALLS = Integer.getInteger(HostHealth.class.getName() + ".minCalls", 3);
+
+    static final int FAILURE_RATE = Integer.getInteger(HostHealth.class.getName() + ".failureRate", 50);
+
+    static final long SLOW_CALL = Long.getLong(HostHealth.class.getName() + ".slowCall", TimeUnit.SECONDS.toMillis(10));
+
+    static final long OPEN_DURATION = Long.getLong(HostHealth.class.getName() + ".openDuration", TimeUnit.MINUTES.toMillis(1));
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final ConcurrentMap<String, HostHealth> HOSTS = new ConcurrentHashMap<>();
+
+    public static HostHealth forHost(String host) {
+        HostHealth health = HOSTS.get(host);
+        if (health == null) {
+            final HostHealth created = new HostHealth(host);
+            health = HOSTS.putIfAbsent(host, created);
+            if (health == null) {
+                health = created;
+            }
+        }
+        return health;
+    }
+
+    private final String host;
+
+    /** Outcome of last calls, as a ring buffer */
+    private final boolean[] failed = new boolean[WINDOW];
+
+    private int calls;
+
+    private int next;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    /** Moving average of calls latency, in milliseconds */
+    private long latency = -1;
+
+    private HostHealth(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Can new pods be placed on this host?
+     */
+    public synchronized boolean isAvailable() {
+        return getState() == State.CLOSED;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= OPEN_DURATION) {
+            state = State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * @return <code>-1</code> if unknown
+     */
+    public synchronized long getLatency() {
+        return latency;
+    }
+
+    public synchronized void success() {
+        switch (getState()) {
+            case HALF_OPEN:
+                LOGGER.log(Level.INFO, "Docker host {0} is healthy again", host);
+                close();
+                break;
+            case CLOSED:
+                record(false);
+                break;
+        }
+    }
+
+    /**
+     * @param latency time the call took, in milliseconds
+     */
+    public synchronized void success(long latency) {
+        this.latency = this.latency < 0 ? latency : (3 * this.latency + latency) / 4;
+        if (latency > SLOW_CALL) {
+            failure();
+        } else {
+            success();
+        }
+    }
+
+    public synchronized void failure() {
+        switch (getState()) {
+            case HALF_OPEN:
+                open();
+                break;
+            case CLOSED:
+                record(true);
+                int failures = 0;
+                for (int i = 0; i < Math.min(calls, WINDOW); i++) {
+                    if (failed[i]) failures++;
+                }
+                if (calls >= MIN_CALLS && failures * 100 >= FAILURE_RATE * Math.min(calls, WINDOW)) {
+                    open();
+                }
+                break;
+        }
+    }
+
+    private void record(boolean failure) {
+        failed[next] = failure;
+        next = (next + 1) % WINDOW;
+        calls++;
+    }
+
+    private void open() {
+        LOGGER.log(Level.WARNING, "Docker host {0} is unhealthy, removing it from rotation", host);
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        calls = 0;
+        next = 0;
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        calls = 0;
+        next = 0;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(HostHealth.class.getName());
+}
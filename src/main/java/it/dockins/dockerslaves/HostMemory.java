@@ -0,0 +1,77 @@
+package it.dockins.dockerslaves;
+
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.spi.DockerDriver;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Memory of a docker host pods can reserve, as used to admit and place pods as per their
+ * {@link it.dockins.dockerslaves.hints.MemoryHint}s.
+ * <p>
+ * Total memory is reported by daemon, and only checked again once older than {@link #REFRESH_PERIOD} as it hardly
+ * ever changes. Until known, host is assumed to fit any pod.
+ */
+public class HostMemory {
+
+    static final long REFRESH_PERIOD = Long.getLong(HostMemory.class.getName() + ".refreshPeriod", TimeUnit.MINUTES.toMillis(10));
+
+    private static final ConcurrentMap<String, HostMemory> HOSTS = new ConcurrentHashMap<>();
+
+    public static HostMemory forHost(String host) {
+        HostMemory memory = HOSTS.get(host);
+        if (memory == null) {
+            final HostMemory created = new HostMemory(host);
+            memory = HOSTS.putIfAbsent(host, created);
+            if (memory == null) {
+                memory = created;
+            }
+        }
+        return memory;
+    }
+
+    private final String host;
+
+    private volatile long total = -1;
+
+    private volatile long updated;
+
+    private HostMemory(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Host's total memory minus {@link DockerSlaves#getReservedHostMemory()}, in bytes.
+     * @return <code>-1</code> if unknown
+     */
+    public long getAllocatable() {
+        final long total = this.total;
+        return total < 0 ? -1 : Math.max(0, total - DockerSlaves.get().getReservedHostMemoryInBytes());
+    }
+
+    /**
+     * Ask daemon for host's total memory, unless we know it already.
+     */
+    public void updateIfStale(DockerDriver driver) throws InterruptedException {
+        if (System.currentTimeMillis() - updated >= REFRESH_PERIOD) {
+            update(driver);
+        }
+    }
+
+    public void update(DockerDriver driver) throws InterruptedException {
+        try {
+            total = driver.getMemoryTotal(TaskListener.NULL);
+        } catch (IOException e) {
+            // keep last known value, and don't retry for every pod
+            LOGGER.log(Level.FINE, "Failed to get total memory of " + host, e);
+        }
+        updated = System.currentTimeMillis();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(HostMemory.class.getName());
+}
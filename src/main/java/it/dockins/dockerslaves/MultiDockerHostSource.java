@@ -0,0 +1,214 @@
+package it.dockins.dockerslaves;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Job;
+import it.dockins.dockerslaves.placement.LeastPodsStrategy;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import it.dockins.dockerslaves.spi.DockerHostConfig;
+import it.dockins.dockerslaves.spi.DockerHostRequest;
+import it.dockins.dockerslaves.spi.DockerHostSource;
+import it.dockins.dockerslaves.spi.DockerHostSourceDescriptor;
+import it.dockins.dockerslaves.spi.DockerProvisionerFactory;
+import it.dockins.dockerslaves.spi.HostCapacity;
+import it.dockins.dockerslaves.spi.PlacementStrategy;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spread pods over a set of docker daemons, selecting one for each pod with a {@link PlacementStrategy}.
+ * <p>
+ * Strategies rely on a {@link HostCapacity} per docker host, counting pods and their memory reservations as tracked
+ * by {@link DockerSlotRegistry}, against {@link HostMemory allocatable memory}. A pod's slot is moved to the selected
+ * host while still holding the selection lock, so concurrent selections account for it. Hosts are probed in
+ * background once every {@link #REFRESH_PERIOD}, so host selection never waits for a daemon.
+ * <p>
+ * Hosts which {@link HostHealth} circuit is open, or already running {@link DockerSlaves#getMaxSlavesPerHost()} pods,
+ * are left out of rotation, as long as another one is available.
+ */
+public class MultiDockerHostSource extends DockerHostSource {
+
+    static final long REFRESH_PERIOD = Long.getLong(MultiDockerHostSource.class.getName() + ".refreshPeriod", TimeUnit.SECONDS.toMillis(30));
+
+    private static final ConcurrentMap<String, HostState> HOSTS = new ConcurrentHashMap<>();
+
+    private final List<DockerServerEndpoint> dockerServerEndpoints;
+
+    private final PlacementStrategy placementStrategy;
+
+    @DataBoundConstructor
+    public MultiDockerHostSource(List<DockerServerEndpoint> dockerServerEndpoints, PlacementStrategy placementStrategy) {
+        this.dockerServerEndpoints = dockerServerEndpoints;
+        this.placementStrategy = placementStrategy;
+    }
+
+    public List<DockerServerEndpoint> getDockerServerEndpoints() {
+        return dockerServerEndpoints != null ? dockerServerEndpoints : Collections.<DockerServerEndpoint>emptyList();
+    }
+
+    public PlacementStrategy getPlacementStrategy() {
+        return placementStrategy != null ? placementStrategy : new LeastPodsStrategy();
+    }
+
+    @Override
+    public List<String> getHosts() {
+        final List<String> hosts = new ArrayList<>();
+        for (DockerServerEndpoint endpoint : getDockerServerEndpoints()) {
+            hosts.add(DockerHostConfig.getHost(endpoint));
+        }
+        return hosts;
+    }
+
+    @Override
+    public DockerHostConfig getDockerHost(Job job) throws IOException, InterruptedException {
+        return getDockerHost(job, DockerHostRequest.NONE);
+    }
+
+    @Override
+    public DockerHostConfig getDockerHost(Job job, DockerHostRequest request) throws IOException, InterruptedException {
+        final List<DockerServerEndpoint> endpoints = getDockerServerEndpoints();
+        if (endpoints.isEmpty()) {
+            return new DockerHostConfig(DefaultDockerHostSource.DEFAULT, job);
+        }
+
+        final DockerSlotRegistry slots = DockerSlotRegistry.get();
+        final int maxSlavesPerHost = DockerSlaves.get().getMaxSlavesPerHost();
+        final Map<String, DockerServerEndpoint> hosts = new HashMap<>();
+        final List<HostCapacity> healthy = new ArrayList<>();
+        final List<HostCapacity> unhealthy = new ArrayList<>();
+        final DockerServerEndpoint endpoint;
+        synchronized (HOSTS) {
+            for (DockerServerEndpoint candidate : endpoints) {
+                final String host = DockerHostConfig.getHost(candidate);
+                final HostState state = HostState.forHost(host);
+                // also probes unhealthy hosts, so they can get back in rotation
+                state.refreshIfStale(job);
+                hosts.put(host, candidate);
+                if (request.getExcludedHosts().contains(host)) continue;
+                final boolean full = maxSlavesPerHost > 0 && slots.getCount(host) >= maxSlavesPerHost;
+                if (HostHealth.forHost(host).isAvailable() && !full) {
+                    healthy.add(state.getCapacity());
+                } else {
+                    unhealthy.add(state.getCapacity());
+                }
+            }
+            if (healthy.isEmpty() && unhealthy.isEmpty()) {
+                throw new IOException("No docker host available but " + request.getExcludedHosts());
+            }
+            // rather try an unhealthy or full host than fail the build right away
+            final HostCapacity selected = getPlacementStrategy().select(healthy.isEmpty() ? unhealthy : healthy, request);
+            endpoint = hosts.get(selected.getHost());
+            if (request.getQueueItemId() >= 0) {
+                // so next pod placed sees this one, rather than all pods admitted together going to the same host
+                slots.move(request.getQueueItemId(), selected.getHost());
+            }
+        }
+        return new DockerHostConfig(endpoint, job);
+    }
+
+    @Override
+    public DockerHostConfig getDockerHost(Job job, String host) throws IOException, InterruptedException {
+        for (DockerServerEndpoint endpoint : getDockerServerEndpoints()) {
+            if (host.equals(DockerHostConfig.getHost(endpoint))) {
+                return new DockerHostConfig(endpoint, job);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Capacity of a docker host, shared by all sources using it.
+     */
+    private static class HostState {
+
+        static HostState forHost(String host) {
+            HostState state = HOSTS.get(host);
+            if (state == null) {
+                final HostState created = new HostState(host);
+                state = HOSTS.putIfAbsent(host, created);
+                if (state == null) {
+                    state = created;
+                }
+            }
+            return state;
+        }
+
+        private final String host;
+
+        private volatile long refreshed;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private HostState(String host) {
+            this.host = host;
+        }
+
+        HostCapacity getCapacity() {
+            final DockerSlotRegistry slots = DockerSlotRegistry.get();
+            return new HostCapacity(host, slots.getCount(host), slots.getReservedMemory(host), HostMemory.forHost(host).getAllocatable());
+        }
+
+        void refreshIfStale(final Job job) {
+            if (System.currentTimeMillis() - refreshed < REFRESH_PERIOD || !refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh(job);
+                    } finally {
+                        refreshing.set(false);
+                    }
+                }
+            });
+        }
+
+        private void refresh(Job job) {
+            final DockerProvisionerFactory factory = DockerSlaves.get().getDockerProvisionerFactory();
+            if (!(factory instanceof DefaultDockerProvisionerFactory)) {
+                // can't tell which driver builds use
+                refreshed = System.currentTimeMillis();
+                return;
+            }
+            // connecting with the driver builds use records host's health
+            try (DockerDriver driver = ((DefaultDockerProvisionerFactory) factory).getDockerDriverFactory().forHost(job, host)) {
+                if (driver != null) {
+                    HostMemory.forHost(host).updateIfStale(driver);
+                }
+            } catch (IOException e) {
+                // host selection will handle an unreachable host
+                LOGGER.log(Level.FINE, "Failed to connect to " + host, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            refreshed = System.currentTimeMillis();
+        }
+    }
+
+    @Extension
+    public static class DescriptorImpl extends DockerHostSourceDescriptor {
+
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Several Docker daemons";
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MultiDockerHostSource.class.getName());
+}
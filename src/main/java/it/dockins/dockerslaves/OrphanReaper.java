@@ -0,0 +1,260 @@
+package it.dockins.dockerslaves;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.spec.ContainerSetDefinition;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import it.dockins.dockerslaves.spi.DockerDriverFactory;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically remove containers and volumes left behind on docker hosts, typically as
+ * {@link DockerComputer#terminate()} failed to clean the pod, or workspace volumes no build will reuse.
+ * <p>
+ * Each docker host is asked for all resources labelled with this Jenkins instance's {@link ResourceLabels#INSTANCE},
+ * with a single list call for containers and one for volumes. A resource is an orphan if the {@link DockerSlave} it
+ * has been created for is gone, it isn't used by a live pod or pooled, and it's older than {@link #GRACE_PERIOD}.
+ * Workspace volumes are also kept as long as they're the last workspace of their job, to be reused by next build,
+ * unless {@link WorkspaceVolumeManager} has to evict them to fit in disk budget.
+ */
+@Extension
+public class OrphanReaper extends AsyncPeriodicWork {
+
+    static final long RECURRENCE = Long.getLong(OrphanReaper.class.getName() + ".recurrence", TimeUnit.MINUTES.toMillis(10));
+
+    static final long GRACE_PERIOD = Long.getLong(OrphanReaper.class.getName() + ".gracePeriod", TimeUnit.MINUTES.toMillis(10));
+
+    static final int BATCH_SIZE = Integer.getInteger(OrphanReaper.class.getName() + ".batchSize", 10);
+
+    /** Docker hosts builds have been provisioned on, with a driver factory and job to connect to them */
+    private static final ConcurrentMap<String, HostRef> HOSTS = new ConcurrentHashMap<>();
+
+    private static volatile boolean discovered;
+
+    /**
+     * Record a docker host resources have been created on.
+     */
+    public static void record(DockerDriver driver, DockerDriverFactory factory, Job job) {
+        final String host = driver.getHost();
+        if (host != null) {
+            HOSTS.put(host, new HostRef(factory, job.getFullName()));
+        }
+    }
+
+    public OrphanReaper() {
+        super("Docker slaves orphan reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        if (!discovered) {
+            discoverHosts();
+        }
+        for (Map.Entry<String, HostRef> host : HOSTS.entrySet()) {
+            final Job job = Jenkins.getInstance().getItemByFullName(host.getValue().job, Job.class);
+            if (job == null) {
+                // will be recorded again by next build on this host
+                HOSTS.remove(host.getKey(), host.getValue());
+                continue;
+            }
+            // connect to this very host, whatever placement would select for a new build
+            try (DockerDriver driver = host.getValue().factory.forHost(job, host.getKey())) {
+                if (driver == null) {
+                    // not configured anymore
+                    HOSTS.remove(host.getKey(), host.getValue());
+                    continue;
+                }
+                reap(driver, listener);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove orphaned resources from " + host.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * After a restart, find docker hosts from jobs configured to run in containers, as orphans are most likely to
+     * have been left behind by builds running when Jenkins stopped.
+     */
+    private void discoverHosts() {
+        final DockerSlaves plugin = DockerSlaves.get();
+        if (!(plugin.getDockerProvisionerFactory() instanceof DefaultDockerProvisionerFactory)) {
+            discovered = true;
+            return;
+        }
+        final DockerDriverFactory factory = ((DefaultDockerProvisionerFactory) plugin.getDockerProvisionerFactory()).getDockerDriverFactory();
+        final List<String> hosts = factory.getDockerHosts();
+        for (AbstractProject job : Jenkins.getInstance().getAllItems(AbstractProject.class)) {
+            if (job.getProperty(ContainerSetDefinition.class) == null) continue;
+            if (!hosts.isEmpty()) {
+                // any job running in containers can be used to resolve docker hosts credentials
+                for (String host : hosts) {
+                    HOSTS.putIfAbsent(host, new HostRef(factory, job.getFullName()));
+                }
+                break;
+            }
+            try (DockerDriver driver = factory.forJob(job)) {
+                record(driver, factory, job);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                LOGGER.log(Level.FINE, "Failed to connect to docker host for " + job.getFullName(), e);
+            }
+        }
+        discovered = true;
+    }
+
+    private void reap(final DockerDriver driver, final TaskListener listener) throws IOException, InterruptedException {
+        final String instance = ResourceLabels.getInstanceId();
+        final Map<String, Map<String, String>> containers = driver.listContainers(listener, ResourceLabels.INSTANCE, instance);
+        final Map<String, Map<String, String>> volumes = driver.listVolumes(listener, ResourceLabels.INSTANCE, instance);
+
+        // Only look at live pods once resources have been listed, so we don't miss a pod created meanwhile
+        final Set<String> pods = new HashSet<>();
+        final Set<String> used = new HashSet<>();
+        for (Node node : Jenkins.getInstance().getNodes()) {
+            if (!(node instanceof DockerSlave)) continue;
+            pods.add(node.getNodeName());
+            final ContainersContext context = ((DockerSlave) node).getProvisioner().getContext();
+            used.add(context.getWorkdirVolume());
+            for (Container container : new Container[] {context.getRemotingContainer(), context.getBuildContainer(), context.getScmContainer()}) {
+                if (container != null) used.add(container.getId());
+            }
+            for (Container container : context.getSideContainers().values()) {
+                used.add(container.getId());
+            }
+        }
+
+        final List<Callable<Void>> removals = new ArrayList<>();
+        for (final Map.Entry<String, Map<String, String>> container : containers.entrySet()) {
+            if (!isOrphan(container.getKey(), container.getValue(), pods, used)) continue;
+            removals.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    driver.removeContainer(listener, new Container(null, container.getKey()));
+                    return null;
+                }
+            });
+        }
+        final int removed = removeInBatches(removals);
+
+        // containers have been removed first, so volumes they used can be removed as well
+        removals.clear();
+        for (final Map.Entry<String, Map<String, String>> volume : volumes.entrySet()) {
+            if (!isOrphan(volume.getKey(), volume.getValue(), pods, used)) continue;
+            if (isLastWorkspace(volume.getKey(), volume.getValue().get(ResourceLabels.JOB))) continue;
+            removals.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    driver.removeVolume(listener, volume.getKey());
+                    return null;
+                }
+            });
+        }
+        final int removedVolumes = removeInBatches(removals);
+
+        if (removed + removedVolumes > 0) {
+            LOGGER.log(Level.INFO, "Removed {0} orphaned containers and {1} orphaned volumes from {2}",
+                    new Object[] {removed, removedVolumes, driver.getHost()});
+        }
+
+        // Then evict least recently used workspaces if remaining ones use too much disk space
+        final Set<String> keep = new HashSet<>(used);
+        for (Map.Entry<String, Map<String, String>> volume : volumes.entrySet()) {
+            if (pods.contains(volume.getValue().get(ResourceLabels.POD)) || RemotingContainerPool.isPooled(volume.getKey())
+                    || !isOlderThanGracePeriod(volume.getValue())) {
+                keep.add(volume.getKey());
+            }
+        }
+        WorkspaceVolumeManager.forHost(driver.getHost()).enforceBudget(driver, volumes, keep, listener);
+    }
+
+    private static boolean isOrphan(String id, Map<String, String> labels, Set<String> pods, Set<String> used) {
+        if (pods.contains(labels.get(ResourceLabels.POD))) return false;
+        if (used.contains(id) || RemotingContainerPool.isPooled(id)) return false;
+        return isOlderThanGracePeriod(labels);
+    }
+
+    private static boolean isOlderThanGracePeriod(Map<String, String> labels) {
+        try {
+            final long created = Long.parseLong(labels.get(ResourceLabels.CREATED));
+            return System.currentTimeMillis() - created > GRACE_PERIOD;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Is volume the workspace next build of it's job will reuse?
+     */
+    private static boolean isLastWorkspace(String volume, String jobName) {
+        if (jobName == null) return false;
+        final Job job = Jenkins.getInstance().getItemByFullName(jobName, Job.class);
+        if (job == null) return false;
+        final Run build = job.getLastCompletedBuild();
+        if (build == null) return false;
+        final ContainersContext context = build.getAction(ContainersContext.class);
+        return context != null && volume.equals(context.getWorkdirVolume());
+    }
+
+    /**
+     * Run removals in parallel, a batch at a time so we don't overload docker daemon.
+     * @return number of resources actually removed
+     */
+    private static int removeInBatches(List<Callable<Void>> removals) throws InterruptedException {
+        int removed = 0;
+        for (int i = 0; i < removals.size(); i += BATCH_SIZE) {
+            final List<Future<Void>> batch = new ArrayList<>();
+            for (Callable<Void> removal : removals.subList(i, Math.min(i + BATCH_SIZE, removals.size()))) {
+                batch.add(Computer.threadPoolForRemoting.submit(removal));
+            }
+            for (Future<Void> future : batch) {
+                try {
+                    future.get();
+                    removed++;
+                } catch (ExecutionException e) {
+                    // most probably still in use, or already removed
+                    LOGGER.log(Level.FINE, "Failed to remove orphaned resource", e.getCause());
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static final class HostRef {
+
+        private final DockerDriverFactory factory;
+
+        private final String job;
+
+        HostRef(DockerDriverFactory factory, String job) {
+            this.factory = factory;
+            this.job = job;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(OrphanReaper.class.getName());
+}
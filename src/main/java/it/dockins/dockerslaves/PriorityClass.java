@@ -0,0 +1,93 @@
+package it.dockins.dockerslaves;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import javax.annotation.Nonnull;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Priority of jobs which full name matches a pattern, like release branches over pull requests. Higher priority
+ * jobs get docker slots first, fair share only applies among jobs of the same priority.
+ */
+public class PriorityClass extends AbstractDescribableImpl<PriorityClass> {
+
+    private final String name;
+
+    private final String pattern;
+
+    private final int priority;
+
+    private transient Pattern compiled;
+
+    @DataBoundConstructor
+    public PriorityClass(String name, String pattern, int priority) {
+        this.name = name;
+        this.pattern = pattern;
+        this.priority = priority;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Regular expression job's full name has to match.
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public boolean matches(String job) {
+        if (compiled == null) {
+            try {
+                compiled = Pattern.compile(pattern);
+            } catch (PatternSyntaxException e) {
+                return false;
+            }
+        }
+        return compiled.matcher(job).matches();
+    }
+
+    /**
+     * Priority of a job, as per the highest priority class it matches.
+     * @return <code>0</code> if none
+     */
+    public static int getPriority(String job) {
+        Integer priority = null;
+        for (PriorityClass c : DockerSlaves.get().getPriorityClasses()) {
+            if (c.matches(job) && (priority == null || c.getPriority() > priority)) {
+                priority = c.getPriority();
+            }
+        }
+        return priority != null ? priority : 0;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<PriorityClass> {
+
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Priority class";
+        }
+
+        public FormValidation doCheckPattern(@QueryParameter String value) {
+            try {
+                Pattern.compile(value);
+                return FormValidation.ok();
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e.getDescription());
+            }
+        }
+    }
+}
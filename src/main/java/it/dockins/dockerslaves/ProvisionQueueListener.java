@@ -25,19 +25,26 @@
 
 package it.dockins.dockerslaves;
 
+import it.dockins.dockerslaves.pipeline.DockerNodeStepExecution.PlaceholderTask;
 import it.dockins.dockerslaves.spec.ContainerSetDefinition;
 import hudson.Extension;
 import hudson.model.AbstractProject;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Job;
 import hudson.model.Node;
 import hudson.model.Queue;
+import hudson.model.Run;
 import hudson.model.queue.QueueListener;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
+import hudson.util.LogTaskListener;
 import jenkins.model.Jenkins;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,46 +58,138 @@ import java.util.logging.Logger;
 @Extension
 public class ProvisionQueueListener extends QueueListener {
 
+    /** Queue items we already triggered image prefetch for */
+    private final Set<Long> prefetched = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * While item is waiting in queue, pull images it will require so this overlaps with queue wait time.
+     */
     @Override
-    public void onEnterBuildable(final Queue.BuildableItem item) {
+    public void onEnterWaiting(Queue.WaitingItem item) {
+        prefetchImages(item);
+    }
+
+    @Override
+    public void onEnterBlocked(Queue.BlockedItem item) {
+        prefetchImages(item);
+    }
+
+    private void prefetchImages(final Queue.Item item) {
+        final Job job;
+        final ContainerSetDefinition def;
         if (item.task instanceof AbstractProject) {
-            AbstractProject job = (AbstractProject) item.task;
-            ContainerSetDefinition def = (ContainerSetDefinition) job.getProperty(ContainerSetDefinition.class);
-            if (def == null) return;
+            job = (AbstractProject) item.task;
+            def = (ContainerSetDefinition) job.getProperty(ContainerSetDefinition.class);
+        } else if (item.task instanceof PlaceholderTask) {
+            final Run<?, ?> run = ((PlaceholderTask) item.task).run();
+            if (run == null) return;
+            job = run.getParent();
+            def = ((PlaceholderTask) item.task).getSpec();
+        } else {
+            return;
+        }
+        if (def == null) return;
+        if (!prefetched.add(item.getId())) return;
 
-            try {
-                final Node node = prepareExecutorFor(item, job);
-
-                DockerSlaveAssignmentAction action = new DockerSlaveAssignmentAction(node.getNodeName());
-                item.addAction(action);
-
-                Computer.threadPoolForRemoting.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            Jenkins.getInstance().addNode(node);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Failure to create Docker Slave", e);
-                // TODO: should fail the build here, not just cancel the item without explanation
-                Jenkins.getInstance().getQueue().cancel(item);
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DockerSlaves.get().getDockerProvisionerFactory().prefetchImages(job, def, new LogTaskListener(LOGGER, Level.FINE));
+                } catch (Exception e) {
+                    // build will pull images itself and report failure
+                    LOGGER.log(Level.FINE, "Failed to prefetch images for " + job.getFullName(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Item has been admitted by {@link ProvisionScheduler}, create the {@link DockerSlave} to host it.
+     */
+    @Override
+    public void onEnterBuildable(final Queue.BuildableItem item) {
+        if (!ProvisionScheduler.requiresDockerSlot(item.task)) return;
+        ProvisionScheduler.get().getLine().remove(item.getId());
+
+        final String slaveName = getSlaveName(item);
+        final String nodeName = DockerSlave.toNodeName(slaveName);
+        item.addAction(new DockerSlaveAssignmentAction(nodeName));
+
+        // account for this slot right away, so other items don't get admitted before node is actually added
+        final DockerSlotRegistry slots = DockerSlotRegistry.get();
+        slots.reserve(item.getId(), nodeName, DockerSlave.getJobName(item), ProvisionScheduler.getSpec(item.task).getMemoryReservation());
+
+        // creating provisioner talks to docker host, which must not happen while holding queue lock
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                final DockerSlave node;
+                try {
+                    node = prepareExecutorFor(item, slaveName);
+                } catch (Exception e) {
+                    slots.release(item.getId(), nodeName);
+                    LOGGER.log(Level.SEVERE, "Failure to create Docker Slave", e);
+                    // TODO: should fail the build here, not just cancel the item without explanation
+                    Jenkins.getInstance().getQueue().cancel(item);
+                    return;
+                }
+                slots.move(node, node.getProvisioner().getContext().getDockerHost());
+
+                if (Jenkins.getInstance().getQueue().getItem(item.getId()) == null) {
+                    // cancelled meanwhile
+                    discard(node);
+                    return;
+                }
+                try {
+                    Jenkins.getInstance().addNode(node);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to add " + nodeName, e);
+                    discard(node);
+                }
             }
+        });
+    }
+
+    private static String getSlaveName(Queue.BuildableItem item) {
+        if (item.task instanceof PlaceholderTask) {
+            return ((PlaceholderTask) item.task).getSlaveName();
         }
+        return "Container for item " + item.getId();
     }
 
-    private Node prepareExecutorFor(final Queue.BuildableItem item, final AbstractProject job) throws Descriptor.FormException, IOException, InterruptedException {
+    private DockerSlave prepareExecutorFor(final Queue.BuildableItem item, String slaveName) throws Descriptor.FormException, IOException, InterruptedException {
+        DockerSlaves plugin = DockerSlaves.get();
+
+        if (item.task instanceof PlaceholderTask) {
+            final PlaceholderTask task = (PlaceholderTask) item.task;
+            final Run<?, ?> run = task.run();
+            if (run == null) {
+                throw new IOException("Build for " + task.getDisplayName() + " is gone");
+            }
+            LOGGER.info("Creating a container slave to host " + slaveName + ", item id " + item.getId());
+            return new DockerSlave(slaveName, task.getSlaveDescription(), task.getLabel(),
+                    plugin.createProvisionerForPipeline(run.getParent(), task.getSpec(), item.getId()), item);
+        }
+
+        final AbstractProject job = (AbstractProject) item.task;
         LOGGER.info("Creating a container slave to host " + job.toString() + ", item id " + item.getId());
 
-        // Immediately create a slave for this item
         // Real provisioning will happen later
-        String slaveName = "Container for item " + item.getId();
         String description = "Container slave for building " + job.getFullName();
-        DockerSlaves plugin = DockerSlaves.get();
-        return new DockerSlave(slaveName, description, null, plugin.createStandardJobProvisionerFactory(job),item);
+        return new DockerSlave(slaveName, description, null, plugin.createStandardJobProvisionerFactory(job, item.getId()),item);
+    }
+
+    /**
+     * Give up a slave which won't be added, releasing it's slot and docker host connection.
+     */
+    private static void discard(DockerSlave node) {
+        DockerSlotRegistry.get().release(node);
+        try {
+            node.getProvisioner().clean(new LogTaskListener(LOGGER, Level.FINE));
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.FINE, "Failed to clean up " + node.getNodeName(), e);
+        }
     }
 
     /**
@@ -98,6 +197,8 @@ public class ProvisionQueueListener extends QueueListener {
      */
     @Override
     public void onLeft(Queue.LeftItem item) {
+        prefetched.remove(item.getId());
+        ProvisionScheduler.get().getLine().remove(item.getId());
         if (item.isCancelled()) {
             DockerSlaveAssignmentAction action = item.getAction(DockerSlaveAssignmentAction.class);
             if( action == null) return;
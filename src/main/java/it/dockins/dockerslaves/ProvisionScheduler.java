@@ -1,56 +1,176 @@
 package it.dockins.dockerslaves;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AbstractProject;
-import hudson.model.Node;
+import hudson.model.Item;
 import hudson.model.Queue;
 import hudson.model.queue.CauseOfBlockage;
 import hudson.model.queue.QueueTaskDispatcher;
+import it.dockins.dockerslaves.pipeline.DockerNodeStepExecution.PlaceholderTask;
 import it.dockins.dockerslaves.spec.ContainerSetDefinition;
 import jenkins.model.Jenkins;
 
+import java.util.List;
+
 /**
  * Responsible for allowing tasks to go into buildable state.
+ * <p>
+ * This is the admission control for docker slots: classic jobs and pipeline <code>dockerNode</code> blocks only get a
+ * {@link DockerSlave} created once they're buildable, so all of them wait here for a slot to be available globally,
+ * within their folder's {@link FolderQuota} and on at least one docker host, which also needs enough free memory for
+ * containers' {@link it.dockins.dockerslaves.hints.MemoryHint memory reservations}. Items get free slots in the order
+ * {@link FairShareQueue} ranks them.
  */
 @Extension
 public class ProvisionScheduler extends QueueTaskDispatcher {
 
+    private final FairShareQueue line = new FairShareQueue();
+
+    public static ProvisionScheduler get() {
+        return Jenkins.getInstance().getExtensionList(QueueTaskDispatcher.class).get(ProvisionScheduler.class);
+    }
+
+    /**
+     * Items waiting for a docker slot, in the order they'll get one.
+     */
+    public FairShareQueue getLine() {
+        return line;
+    }
+
     @Override
     public CauseOfBlockage canRun(Queue.Item item) {
-        if (item.task instanceof AbstractProject) {
-            AbstractProject job = (AbstractProject) item.task;
-            ContainerSetDefinition def = (ContainerSetDefinition) job.getProperty(ContainerSetDefinition.class);
-            if (def == null) {
-                return null;
+        if (!requiresDockerSlot(item.task)) {
+            return null;
+        }
+
+        DockerSlaves plugin = DockerSlaves.get();
+        DockerSlotRegistry slots = DockerSlotRegistry.get();
+        if (slots.hasSlot(item.getId())) {
+            return null;
+        }
+
+        final Queue.Task owner = item.task.getOwnerTask();
+        final String job = owner instanceof Item ? ((Item) owner).getFullName() : owner.getFullDisplayName();
+        for (FolderQuota quota : plugin.getFolderQuotas()) {
+            if (quota.getMaxSlaves() > 0 && job.startsWith(quota.getFolder() + "/") && slots.getItemCount(quota.getFolder()) >= quota.getMaxSlaves()) {
+                // don't hold the line for others
+                line.remove(item.getId());
+                return new WaitForFolderQuota(quota);
             }
+        }
+
+        // free slots go to the first items in line, whatever order queue checks them
+        final int position = line.getPosition(item, job);
+        final int free = plugin.getMaxSlaves() - slots.getCount();
+        if (position >= free) {
+            final long average = slots.getAverageDuration();
+            final long wait = average > 0 ? (position - free + 1) * average / Math.max(1, plugin.getMaxSlaves()) : -1;
+            return new WaitForADockerSlot(position + 1, line.size(), wait);
+        }
 
-            int slaveCount = 0;
-            DockerSlaves plugin = DockerSlaves.get();
-            for (Node node : Jenkins.getInstance().getNodes()) {
-                if (node instanceof DockerSlave) {
-                    if (((DockerSlave)node).getQueueItemId() == item.getId()) {
-                        return null;
-                    }
-                    slaveCount++;
+        // pod needs a docker host with a free slot, and enough memory for containers' reservations
+        final List<String> hosts = plugin.getDockerProvisionerFactory().getDockerHosts();
+        if (!hosts.isEmpty()) {
+            final int maxSlavesPerHost = plugin.getMaxSlavesPerHost();
+            final long memory = getSpec(item.task).getMemoryReservation();
+            boolean slot = false;
+            boolean fits = false;
+            for (String host : hosts) {
+                if (maxSlavesPerHost > 0 && slots.getCount(host) >= maxSlavesPerHost) continue;
+                slot = true;
+                final long allocatable = HostMemory.forHost(host).getAllocatable();
+                if (allocatable < 0 || allocatable - slots.getReservedMemory(host) >= memory) {
+                    fits = true;
+                    break;
                 }
             }
-
-            if (slaveCount >= plugin.getMaxSlaves()) {
-                return new WaitForADockerSlot();
-            } else {
-                return null;
+            if (!slot) {
+                return new WaitForADockerHost();
+            }
+            if (!fits) {
+                return new WaitForMemory(memory);
             }
-        } else {
-            return null;
         }
+        return null;
+    }
+
+    /**
+     * Containers task will run in.
+     * @return <code>null</code> if task doesn't run in docker containers
+     */
+    static ContainerSetDefinition getSpec(Queue.Task task) {
+        if (task instanceof AbstractProject) {
+            return (ContainerSetDefinition) ((AbstractProject) task).getProperty(ContainerSetDefinition.class);
+        }
+        if (task instanceof PlaceholderTask) {
+            return ((PlaceholderTask) task).getSpec();
+        }
+        return null;
+    }
+
+    /**
+     * Does task need a {@link DockerSlave} to be created for it? A <code>dockerNode</code> block resumed after a
+     * restart doesn't, as it's body is already running.
+     */
+    static boolean requiresDockerSlot(Queue.Task task) {
+        if (task instanceof PlaceholderTask && ((PlaceholderTask) task).isContinued()) {
+            return false;
+        }
+        return getSpec(task) != null;
     }
 
     static final class WaitForADockerSlot extends CauseOfBlockage {
-        private WaitForADockerSlot() {
+        private final int position;
+        private final int waiting;
+        private final long wait;
+
+        private WaitForADockerSlot(int position, int waiting, long wait) {
+            this.position = position;
+            this.waiting = waiting;
+            this.wait = wait;
+        }
+
+        public String getShortDescription() {
+            final StringBuilder description = new StringBuilder("Waiting for a Docker slot, position ")
+                    .append(position).append(" of ").append(waiting);
+            if (wait > 0) {
+                description.append(", expected wait ").append(Util.getTimeSpanString(wait));
+            }
+            return description.toString();
+        }
+    }
+
+    static final class WaitForADockerHost extends CauseOfBlockage {
+        private WaitForADockerHost() {
+        }
+
+        public String getShortDescription() {
+            return "Waiting for a Docker host to have a free slot";
+        }
+    }
+
+    static final class WaitForMemory extends CauseOfBlockage {
+        private final long memory;
+
+        private WaitForMemory(long memory) {
+            this.memory = memory;
+        }
+
+        public String getShortDescription() {
+            return "Waiting for a Docker host with " + memory / (1024 * 1024) + " MB of free memory";
+        }
+    }
+
+    static final class WaitForFolderQuota extends CauseOfBlockage {
+        private final FolderQuota quota;
+
+        private WaitForFolderQuota(FolderQuota quota) {
+            this.quota = quota;
         }
 
         public String getShortDescription() {
-            return "Waiting for a Docker slot";
+            return "Waiting for a Docker slot, folder " + quota.getFolder() + " already uses " + quota.getMaxSlaves();
         }
     }
 }
@@ -0,0 +1,323 @@
+package it.dockins.dockerslaves;
+
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.util.LogTaskListener;
+import it.dockins.dockerslaves.spec.Hint;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import it.dockins.dockerslaves.spi.DockerDriverFactory;
+import jenkins.model.Jenkins;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keep remoting containers, with their workspace volume, created ahead of time on a docker host, so a build only has
+ * to start one to get an executor.
+ * <p>
+ * Containers are kept created but not started: remoting runs over container's stdio, which can't be handed over to a
+ * computer once the remoting process has started. Pool is replenished in background as containers are claimed, up to
+ * {@link DockerSlaves#getRemotingContainerPoolSize()} but never more than {@link DockerSlaves#getMaxSlaves()}.
+ * <p>
+ * As a build container has to join it's remoting container's namespaces, pooled remoting containers also come with a
+ * build container created (and decorated) for them. Build image and hints are chosen according to recent demand, so
+ * pool composition follows the jobs actually running on this host.
+ */
+public class RemotingContainerPool {
+
+    private static final long DEMAND_HALF_LIFE = Long.getLong(RemotingContainerPool.class.getName() + ".demandHalfLife", TimeUnit.MINUTES.toMillis(10));
+
+    private static final ConcurrentMap<String, RemotingContainerPool> POOLS = new ConcurrentHashMap<>();
+
+    public static RemotingContainerPool forHost(String host, String image) {
+        final String key = host + " " + image;
+        RemotingContainerPool pool = POOLS.get(key);
+        if (pool == null) {
+            final RemotingContainerPool created = new RemotingContainerPool(host, image);
+            pool = POOLS.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Identify build containers which can be used interchangeably.
+     */
+    public static String buildKey(String image, List<Hint> hints) {
+        if (hints == null || hints.isEmpty()) {
+            return image;
+        }
+        return image + "#" + Util.getDigestOf(Jenkins.XSTREAM2.toXML(hints));
+    }
+
+    /**
+     * A remoting container ready to be started, with the workspace volume it has been created for, and maybe a build
+     * container to be started next.
+     */
+    public static final class Entry {
+
+        private final Container container;
+
+        private final String volume;
+
+        private Container buildContainer;
+
+        private String buildKey;
+
+        Entry(Container container, String volume) {
+            this.container = container;
+            this.volume = volume;
+        }
+
+        public Container getContainer() {
+            return container;
+        }
+
+        public String getVolume() {
+            return volume;
+        }
+
+        public Container getBuildContainer() {
+            return buildContainer;
+        }
+
+        public String getBuildKey() {
+            return buildKey;
+        }
+    }
+
+    /**
+     * Recent demand for a build container, decaying over time.
+     */
+    private static final class Demand {
+
+        private final String image;
+
+        private final List<Hint> hints;
+
+        private double weight;
+
+        private long updated = System.currentTimeMillis();
+
+        Demand(String image, List<Hint> hints) {
+            this.image = image;
+            this.hints = hints;
+        }
+
+        double getWeight(long now) {
+            return weight * Math.pow(0.5, (double) (now - updated) / DEMAND_HALF_LIFE);
+        }
+
+        void increment(long now) {
+            weight = getWeight(now) + 1;
+            updated = now;
+        }
+    }
+
+    private final String host;
+
+    private final String image;
+
+    private final LinkedList<Entry> entries = new LinkedList<>();
+
+    private final List<Entry> claimed = new LinkedList<>();
+
+    private final Map<String, Demand> demand = new HashMap<>();
+
+    /** Number of containers being created */
+    private int pending;
+
+    private RemotingContainerPool(String host, String image) {
+        this.host = host;
+        this.image = image;
+    }
+
+    public static int getTargetSize() {
+        final DockerSlaves plugin = DockerSlaves.get();
+        return Math.min(plugin.getRemotingContainerPoolSize(), plugin.getMaxSlaves());
+    }
+
+    /**
+     * Take a prepared remoting container from pool, preferably one with a build container matching build key.
+     * Caller is responsible to remove a non-matching build container.
+     * @return <code>null</code> if pool is empty
+     */
+    public synchronized Entry claim(String buildKey) {
+        Entry fallback = null;
+        for (Entry entry : entries) {
+            if (buildKey != null && buildKey.equals(entry.buildKey)) {
+                fallback = entry;
+                break;
+            }
+            if (fallback == null || (fallback.buildContainer != null && entry.buildContainer == null)) {
+                fallback = entry;
+            }
+        }
+        if (fallback != null) {
+            entries.remove(fallback);
+            claimed.add(fallback);
+        }
+        return fallback;
+    }
+
+    /**
+     * Claimed entry's containers are now tracked by the build, typically once it has been cleaned up.
+     */
+    public synchronized void release(Entry entry) {
+        claimed.remove(entry);
+    }
+
+    /**
+     * Is container or volume part of a pool, or claimed but not yet released? Such resources carry labels for the
+     * build which triggered their creation, not the one using them.
+     */
+    public static boolean isPooled(String id) {
+        for (RemotingContainerPool pool : POOLS.values()) {
+            synchronized (pool) {
+                for (List<Entry> list : Arrays.asList(pool.entries, pool.claimed)) {
+                    for (Entry entry : list) {
+                        if (id.equals(entry.volume) || id.equals(entry.container.getId())
+                                || (entry.buildContainer != null && id.equals(entry.buildContainer.getId()))) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Record a build container has been required for this image and hints.
+     */
+    public synchronized void recordDemand(String image, List<Hint> hints) {
+        final String key = buildKey(image, hints);
+        Demand d = demand.get(key);
+        if (d == null) {
+            d = new Demand(image, hints);
+            demand.put(key, d);
+        }
+        d.increment(System.currentTimeMillis());
+    }
+
+    /**
+     * Select build container to prepare for next pooled remoting container: the one which share in pool is the most
+     * below it's share in recent demand.
+     */
+    private synchronized String nextBuildKey() {
+        final long now = System.currentTimeMillis();
+        double total = 0;
+        for (Demand d : demand.values()) {
+            total += d.getWeight(now);
+        }
+        if (total <= 0) {
+            return null;
+        }
+
+        final Map<String, Integer> pooled = new HashMap<>();
+        for (Entry entry : entries) {
+            if (entry.buildKey == null) continue;
+            final Integer count = pooled.get(entry.buildKey);
+            pooled.put(entry.buildKey, count == null ? 1 : count + 1);
+        }
+
+        final int target = getTargetSize();
+        String selected = null;
+        double max = 0;
+        for (Map.Entry<String, Demand> d : demand.entrySet()) {
+            final Integer count = pooled.get(d.getKey());
+            final double deficit = target * d.getValue().getWeight(now) / total - (count == null ? 0 : count);
+            if (deficit > max) {
+                max = deficit;
+                selected = d.getKey();
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Create containers in background until pool reaches target size. Pool connects to docker host with it's own
+     * driver, as build's one may be closed meanwhile, and only labels resources with this Jenkins instance: they're
+     * not created for the build which triggered replenishment.
+     * @param job context to resolve docker host credentials
+     */
+    public void replenish(final DockerDriverFactory factory, final Job job) {
+        final int missing;
+        synchronized (this) {
+            missing = getTargetSize() - entries.size() - pending;
+            if (missing <= 0) return;
+            pending += missing;
+        }
+
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                final LogTaskListener listener = new LogTaskListener(LOGGER, Level.FINE);
+                int remaining = missing;
+                try (DockerDriver driver = factory.forHost(job, host)) {
+                    if (driver == null) {
+                        LOGGER.log(Level.FINE, "Can''t connect to {0} to replenish remoting container pool", host);
+                        return;
+                    }
+                    driver.setLabel(ResourceLabels.INSTANCE, ResourceLabels.getInstanceId());
+                    for (; remaining > 0; remaining--) {
+                        final String volume = driver.createVolume(listener);
+                        final Container container = driver.createRemotingContainer(listener, image, volume);
+                        if (container == null) {
+                            // not supported by driver, so nothing can be pooled
+                            driver.removeVolume(listener, volume);
+                            return;
+                        }
+                        final Entry entry = new Entry(container, volume);
+                        prepareBuildContainer(driver, entry, listener);
+                        synchronized (RemotingContainerPool.this) {
+                            entries.add(entry);
+                            pending--;
+                        }
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to create a remoting container for pool on " + host, e);
+                } finally {
+                    synchronized (RemotingContainerPool.this) {
+                        pending -= remaining;
+                    }
+                }
+            }
+        });
+    }
+
+    private void prepareBuildContainer(DockerDriver driver, Entry entry, LogTaskListener listener) {
+        final String key = nextBuildKey();
+        if (key == null) return;
+        final Demand d;
+        synchronized (this) {
+            d = demand.get(key);
+        }
+        try {
+            entry.buildContainer = driver.createBuildContainer(listener, d.image, entry.container, d.hints);
+            if (entry.buildContainer != null) {
+                entry.buildKey = key;
+            }
+        } catch (Exception e) {
+            // remoting container is still usable on it's own
+            LOGGER.log(Level.FINE, "Failed to create a build container for pool on " + host, e);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RemotingContainerPool.class.getName());
+}
@@ -0,0 +1,42 @@
+package it.dockins.dockerslaves;
+
+import jenkins.model.Jenkins;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Labels set on all containers and volumes created for a build, so resources left behind on a docker host can be
+ * identified and removed by {@link OrphanReaper}.
+ */
+public final class ResourceLabels {
+
+    /** Set on all resources created by this plugin. */
+    public static final String MANAGED = "it.dockins.dockerslaves.managed";
+
+    /** Jenkins instance which created the resource, so instances sharing a docker host don't remove each other's. */
+    public static final String INSTANCE = "it.dockins.dockerslaves.instance";
+
+    /** Full name of the job resource has been created for. */
+    public static final String JOB = "it.dockins.dockerslaves.job";
+
+    /** Queue item the pod has been provisioned for, as build number isn't known yet. */
+    public static final String BUILD = "it.dockins.dockerslaves.build";
+
+    /** Name of the {@link DockerSlave} the pod has been created for. */
+    public static final String POD = "it.dockins.dockerslaves.pod";
+
+    /** Creation time in milliseconds, so resources being set up get a grace period. */
+    public static final String CREATED = "it.dockins.dockerslaves.created";
+
+    /** Labels reported when listing resources. */
+    public static final List<String> ALL = Collections.unmodifiableList(Arrays.asList(INSTANCE, JOB, BUILD, POD, CREATED));
+
+    private ResourceLabels() {
+    }
+
+    public static String getInstanceId() {
+        return Jenkins.getInstance().getLegacyInstanceId();
+    }
+}
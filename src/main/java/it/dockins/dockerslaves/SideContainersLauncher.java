@@ -0,0 +1,301 @@
+package it.dockins.dockerslaves;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.spec.ContainerDefinition;
+import it.dockins.dockerslaves.spec.ReadinessProbe;
+import it.dockins.dockerslaves.spec.SideContainerDefinition;
+import it.dockins.dockerslaves.spi.DockerDriver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Launch a pod's side containers following their dependencies. Containers are started level by level, all containers
+ * of a level in parallel, next level being started once all containers from previous one are ready.
+ * <p>
+ * Containers can be {@link #create(List) created} ahead of time, typically while SCM checkout runs, so starting them
+ * along with build container only has to start them.
+ * <p>
+ * If any container fails to start or get ready, others are interrupted and removed.
+ * <p>
+ * Workers block until their container is ready, so they run on the shared cached remoting pool rather than a fixed
+ * size pool which builds would starve each other of, at most {@link #MAX_CONCURRENT} of a pod at a time.
+ */
+class SideContainersLauncher {
+
+    static final int MAX_CONCURRENT = Integer.getInteger(SideContainersLauncher.class.getName() + ".maxConcurrent", 4);
+
+    /**
+     * Sort side containers in levels, so all dependencies of a container belong to previous levels.
+     */
+    static List<List<SideContainerDefinition>> levels(List<SideContainerDefinition> definitions) throws AbortException {
+        final Set<String> names = new HashSet<>();
+        for (SideContainerDefinition definition : definitions) {
+            if (!names.add(definition.getName())) {
+                throw new AbortException("Duplicate side container name " + definition.getName());
+            }
+        }
+        for (SideContainerDefinition definition : definitions) {
+            for (String dependency : definition.getDependencies()) {
+                if (!names.contains(dependency)) {
+                    throw new AbortException(definition.getName() + " container depends on unknown container " + dependency);
+                }
+            }
+        }
+
+        final List<List<SideContainerDefinition>> levels = new ArrayList<>();
+        final Set<String> placed = new HashSet<>();
+        final List<SideContainerDefinition> remaining = new ArrayList<>(definitions);
+        while (!remaining.isEmpty()) {
+            final List<SideContainerDefinition> level = new ArrayList<>();
+            for (SideContainerDefinition definition : remaining) {
+                if (placed.containsAll(definition.getDependencies())) {
+                    level.add(definition);
+                }
+            }
+            if (level.isEmpty()) {
+                final List<String> cycle = new ArrayList<>();
+                for (SideContainerDefinition definition : remaining) {
+                    cycle.add(definition.getName());
+                }
+                throw new AbortException("Cyclic dependency between side containers " + cycle);
+            }
+            for (SideContainerDefinition definition : level) {
+                placed.add(definition.getName());
+            }
+            remaining.removeAll(level);
+            levels.add(level);
+        }
+        return levels;
+    }
+
+    private final DockerDriver driver;
+
+    private final Container remotingContainer;
+
+    private final DockerComputer computer;
+
+    private final FilePath workspace;
+
+    private final TaskListener listener;
+
+    private final AtomicBoolean aborted = new AtomicBoolean();
+
+    private final Set<Thread> workers = new HashSet<>();
+
+    private final Map<String, Container> containers = new ConcurrentHashMap<>();
+
+    /** Containers created ahead of time but not started yet, by name */
+    private final Map<String, Container> created = new ConcurrentHashMap<>();
+
+    private final List<Future<Void>> futures = new ArrayList<>();
+
+    private CompletionService<Void> level;
+
+    /** Whether current level only creates containers */
+    private boolean createOnly;
+
+    private final Map<Future<Void>, String> pending = new HashMap<>();
+
+    /** Tasks waiting for one of the pod's {@link #MAX_CONCURRENT} workers */
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+
+    private int running;
+
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            synchronized (queued) {
+                if (running >= Math.max(1, MAX_CONCURRENT)) {
+                    queued.add(task);
+                    return;
+                }
+                running++;
+            }
+            dispatch(task);
+        }
+
+        private void dispatch(final Runnable task) {
+            Computer.threadPoolForRemoting.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        final Runnable next;
+                        synchronized (queued) {
+                            next = queued.poll();
+                            if (next == null) {
+                                running--;
+                            }
+                        }
+                        if (next != null) {
+                            dispatch(next);
+                        }
+                    }
+                }
+            });
+        }
+    };
+
+    SideContainersLauncher(DockerDriver driver, Container remotingContainer, DockerComputer computer, FilePath workspace, TaskListener listener) {
+        this.driver = driver;
+        this.remotingContainer = remotingContainer;
+        this.computer = computer;
+        this.workspace = workspace;
+        this.listener = listener;
+    }
+
+    /**
+     * Create containers in parallel, without starting them. Wait for them with {@link #awaitLevel()}.
+     */
+    void create(List<SideContainerDefinition> definitions) {
+        submit(definitions, true);
+    }
+
+    /**
+     * Start all containers of a level in parallel, the ones {@link #create(List) created} ahead of time included.
+     */
+    void start(List<SideContainerDefinition> definitions) {
+        submit(definitions, false);
+    }
+
+    private void submit(List<SideContainerDefinition> definitions, final boolean createOnly) {
+        level = new ExecutorCompletionService<>(executor);
+        this.createOnly = createOnly;
+        pending.clear();
+        for (final SideContainerDefinition definition : definitions) {
+            final Future<Void> future = level.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    synchronized (workers) {
+                        if (aborted.get()) return null;
+                        workers.add(Thread.currentThread());
+                    }
+                    try {
+                        if (createOnly) {
+                            create(definition);
+                        } else {
+                            launch(definition);
+                        }
+                        return null;
+                    } finally {
+                        synchronized (workers) {
+                            workers.remove(Thread.currentThread());
+                            // don't leak an abort interruption to next task run by this pooled thread
+                            Thread.interrupted();
+                        }
+                    }
+                }
+            });
+            pending.put(future, definition.getName());
+            futures.add(future);
+        }
+    }
+
+    private void create(SideContainerDefinition definition) throws IOException, InterruptedException {
+        final ContainerDefinition sidecar = definition.getSpec();
+        final String image = sidecar.getImage(driver, workspace, listener);
+        // null if not supported by driver
+        final Container container = driver.createSideContainer(listener, image, remotingContainer, sidecar.getHints());
+        if (container != null) {
+            created.put(definition.getName(), container);
+        }
+    }
+
+    private void launch(SideContainerDefinition definition) throws IOException, InterruptedException {
+        final String name = definition.getName();
+        Container container = created.remove(name);
+        listener.getLogger().println("Starting " + name + " container");
+        if (container != null) {
+            containers.put(name, container);
+            driver.startContainer(listener, container);
+        } else {
+            final ContainerDefinition sidecar = definition.getSpec();
+            final String image = sidecar.getImage(driver, workspace, listener);
+            container = driver.launchSideContainer(listener, image, remotingContainer, sidecar.getHints());
+            containers.put(name, container);
+        }
+
+        final ReadinessProbe probe = definition.getReadinessProbe();
+        if (probe != null) {
+            probe.waitUntilReady(name, driver, container, computer, listener);
+            listener.getLogger().println(name + " container is ready");
+        }
+    }
+
+    /**
+     * Wait for all containers of current level to be ready.
+     */
+    void awaitLevel() throws IOException, InterruptedException {
+        for (int i = 0; i < pending.size(); i++) {
+            final Future<Void> future = level.take();
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof AbortException) {
+                    throw (AbortException) cause;
+                }
+                throw new IOException("Failed to " + (createOnly ? "create " : "start ") + pending.get(future) + " container", cause);
+            }
+        }
+    }
+
+    /**
+     * Interrupt containers being created or started, and remove all those already created.
+     */
+    void abort() throws InterruptedException {
+        synchronized (workers) {
+            aborted.set(true);
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ignored) {
+                // failed to start, we only care it's not running anymore
+            }
+        }
+        final List<Container> all = new ArrayList<>(containers.values());
+        all.addAll(created.values());
+        for (Container container : all) {
+            try {
+                driver.removeContainer(listener, container);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to remove container " + container.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Side containers started so far, by name.
+     */
+    Map<String, Container> getContainers() {
+        return containers;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SideContainersLauncher.class.getName());
+}
@@ -0,0 +1,174 @@
+package it.dockins.dockerslaves;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keep workspace volumes on a docker host within {@link DockerSlaves#getWorkspaceVolumesBudget()}, evicting the least
+ * recently used ones first, so jobs building frequently keep their workspace for incremental builds.
+ * <p>
+ * Last use is tracked in memory as pods get provisioned. After a restart, it falls back to the completion time of the
+ * job's last build if it used this volume, then to volume's creation time.
+ * <p>
+ * A workspace volume is also leased to a single pod at a time. Concurrent builds of a job get a copy of the last
+ * workspace instead, and as next build reuses the workspace of last completed one, the copy used by the build which
+ * completes last gets promoted as the job's workspace, while the other one is left for {@link OrphanReaper}.
+ */
+public class WorkspaceVolumeManager {
+
+    private static final long GB = 1024L * 1024 * 1024;
+
+    private static final ConcurrentMap<String, WorkspaceVolumeManager> HOSTS = new ConcurrentHashMap<>();
+
+    public static WorkspaceVolumeManager forHost(String host) {
+        WorkspaceVolumeManager manager = HOSTS.get(host);
+        if (manager == null) {
+            final WorkspaceVolumeManager created = new WorkspaceVolumeManager(host);
+            manager = HOSTS.putIfAbsent(host, created);
+            if (manager == null) {
+                manager = created;
+            }
+        }
+        return manager;
+    }
+
+    private final String host;
+
+    /** Volume name to the last time a pod used it */
+    private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+
+    /** Volume name to the pod using it exclusively */
+    private final ConcurrentMap<String, String> leases = new ConcurrentHashMap<>();
+
+    private WorkspaceVolumeManager(String host) {
+        this.host = host;
+    }
+
+    public void used(String volume) {
+        lastUsed.put(volume, System.currentTimeMillis());
+    }
+
+    /**
+     * Get exclusive use of a workspace volume for a pod, so concurrent builds of a job don't share a workspace.
+     * A lease held by a pod which is gone is taken over.
+     * @return <code>false</code> if volume is already leased by another live pod
+     */
+    public boolean lease(String volume, String pod) {
+        while (true) {
+            final String holder = leases.putIfAbsent(volume, pod);
+            if (holder == null || holder.equals(pod)) {
+                return true;
+            }
+            if (Jenkins.getInstance().getNode(holder) != null) {
+                return false;
+            }
+            // leased by a pod which failed to release it
+            leases.remove(volume, holder);
+        }
+    }
+
+    public void release(String volume, String pod) {
+        leases.remove(volume, pod);
+    }
+
+    /**
+     * Remove least recently used volumes until the ones left fit in budget.
+     * @param volumes plugin's volumes on docker host, with their labels
+     * @param keep volumes which must not be removed, typically as they're in use
+     * @return number of volumes removed
+     */
+    public int enforceBudget(DockerDriver driver, Map<String, Map<String, String>> volumes, Set<String> keep, TaskListener listener) throws IOException, InterruptedException {
+        final long budget = DockerSlaves.get().getWorkspaceVolumesBudget() * GB;
+        if (budget <= 0) {
+            return 0;
+        }
+
+        final Map<String, Long> sizes = driver.getVolumeSizes(listener);
+        long total = 0;
+        final List<String> candidates = new ArrayList<>();
+        final Map<String, Long> lastUse = new HashMap<>();
+        for (Map.Entry<String, Map<String, String>> volume : volumes.entrySet()) {
+            final Long size = sizes.get(volume.getKey());
+            if (size == null) continue; // removed meanwhile, or size unknown
+            total += size;
+            if (keep.contains(volume.getKey())) continue;
+            candidates.add(volume.getKey());
+            lastUse.put(volume.getKey(), getLastUse(volume.getKey(), volume.getValue()));
+        }
+        if (total <= budget) {
+            return 0;
+        }
+
+        Collections.sort(candidates, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(lastUse.get(a), lastUse.get(b));
+            }
+        });
+
+        int removed = 0;
+        for (String volume : candidates) {
+            if (total <= budget) break;
+            try {
+                driver.removeVolume(listener, volume);
+            } catch (IOException e) {
+                // most probably in use by a container we don't know about
+                LOGGER.log(Level.FINE, "Failed to evict workspace volume " + volume, e);
+                continue;
+            }
+            LOGGER.log(Level.FINE, "Evicted workspace volume {0} from {1}", new Object[] {volume, host});
+            total -= sizes.get(volume);
+            lastUsed.remove(volume);
+            removed++;
+        }
+
+        if (total > budget) {
+            LOGGER.log(Level.WARNING, "Workspace volumes on {0} use {1} bytes, above budget, but remaining ones are in use",
+                    new Object[] {host, total});
+        }
+        return removed;
+    }
+
+    private long getLastUse(String volume, Map<String, String> labels) {
+        final Long used = lastUsed.get(volume);
+        if (used != null) {
+            return used;
+        }
+
+        final String jobName = labels.get(ResourceLabels.JOB);
+        final Job job = jobName != null ? Jenkins.getInstance().getItemByFullName(jobName, Job.class) : null;
+        if (job != null) {
+            final Run build = job.getLastCompletedBuild();
+            if (build != null) {
+                final ContainersContext context = build.getAction(ContainersContext.class);
+                if (context != null && volume.equals(context.getWorkdirVolume())) {
+                    return build.getStartTimeInMillis() + build.getDuration();
+                }
+            }
+        }
+
+        try {
+            return Long.parseLong(labels.get(ResourceLabels.CREATED));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspaceVolumeManager.class.getName());
+}
@@ -0,0 +1,148 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.Util;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.apache.tools.tar.TarOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Files to inject into a build container before it starts: <code>jenkins</code> user and group declared in
+ * <code>/etc/passwd</code> and <code>/etc/group</code>, and the <code>/trampoline</code> binary.
+ * <p>
+ * Container's <code>/etc</code> is read once, edits are computed in memory, then all files are sent as a single
+ * tar archive to be extracted at container's root.
+ */
+public class BuildContainerDecoration {
+
+    static final String JENKINS_GROUP = "jenkins:x:10000:\n";
+
+    static final String JENKINS_USER = "jenkins:x:10000:10000::/home/jenkins:/bin/false\n";
+
+    private byte[] passwd = new byte[0];
+
+    private int passwdMode = 0644;
+
+    private byte[] group = new byte[0];
+
+    private int groupMode = 0644;
+
+    private BuildContainerDecoration() {
+    }
+
+    /**
+     * Compute decoration from a tar archive of container's <code>/etc</code> directory, as produced by
+     * <code>docker cp container:/etc -</code>.
+     */
+    public static BuildContainerDecoration fromEtcArchive(InputStream archive) throws IOException {
+        final BuildContainerDecoration decoration = new BuildContainerDecoration();
+        final TarInputStream tar = new TarInputStream(archive);
+        TarEntry entry;
+        while ((entry = tar.getNextEntry()) != null) {
+            final String name = entry.getName();
+            if ("etc/passwd".equals(name)) {
+                decoration.passwd = readEntry(tar);
+                decoration.passwdMode = entry.getMode();
+            } else if ("etc/group".equals(name)) {
+                decoration.group = readEntry(tar);
+                decoration.groupMode = entry.getMode();
+            }
+        }
+        // consume trailing blocks so the producer doesn't get a broken pipe
+        IOUtils.copy(archive, new NullOutputStream());
+        return decoration;
+    }
+
+    private static byte[] readEntry(TarInputStream tar) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tar.copyEntryContents(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the tar archive to be extracted at container's root.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        // Trampoline entry is prebuilt, so we only have to encode the small /etc files
+        out.write(TrampolineEntry.BYTES);
+
+        final TarOutputStream tar = new TarOutputStream(out);
+        putEntry(tar, "etc/passwd", append(passwd, JENKINS_USER), passwdMode);
+        putEntry(tar, "etc/group", append(group, JENKINS_GROUP), groupMode);
+        tar.close();
+    }
+
+    /**
+     * Identify the trampoline binary, so images derived from it can be invalidated on plugin upgrade.
+     */
+    public static String getTrampolineVersion() {
+        return TrampolineEntry.VERSION;
+    }
+
+    private static byte[] append(byte[] content, String line) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + line.length() + 1);
+        out.write(content, 0, content.length);
+        if (content.length > 0 && content[content.length - 1] != '\n') {
+            out.write('\n');
+        }
+        final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+
+    private static void putEntry(TarOutputStream tar, String name, byte[] content, int mode) throws IOException {
+        final TarEntry entry = new TarEntry(name);
+        entry.setUserId(0);
+        entry.setGroupId(0);
+        entry.setSize(content.length);
+        entry.setMode(mode);
+        tar.putNextEntry(entry);
+        tar.write(content);
+        tar.closeEntry();
+    }
+
+    /**
+     * <code>/trampoline</code> tar entry, header and padded content, built once per JVM.
+     */
+    private static final class TrampolineEntry {
+
+        static final byte[] BYTES;
+
+        static final String VERSION;
+
+        static {
+            try {
+                final byte[] trampoline = IOUtils.toByteArray(BuildContainerDecoration.class.getResourceAsStream("/it/dockins/dockerslaves/trampoline"));
+                VERSION = Util.getDigestOf(new ByteArrayInputStream(trampoline));
+
+                final TarEntry entry = new TarEntry("trampoline");
+                entry.setUserId(0);
+                entry.setGroupId(0);
+                entry.setSize(trampoline.length);
+                entry.setMode(0555);
+
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final TarOutputStream tar = new TarOutputStream(out);
+                tar.putNextEntry(entry);
+                tar.write(trampoline);
+                tar.closeEntry();
+                tar.close();
+
+                // keep header and content padded to block size, but not the end-of-archive marker
+                final int blocks = 1 + (trampoline.length + 511) / 512;
+                BYTES = Arrays.copyOf(out.toByteArray(), blocks * 512);
+            } catch (IOException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
+}
@@ -34,28 +34,36 @@ import hudson.util.ArgumentListBuilder;
 import hudson.util.VersionNumber;
 import it.dockins.dockerslaves.Container;
 import it.dockins.dockerslaves.DockerComputer;
-import it.dockins.dockerslaves.DockerSlave;
+import it.dockins.dockerslaves.HostHealth;
 import it.dockins.dockerslaves.ProvisionQueueListener;
+import it.dockins.dockerslaves.ResourceLabels;
 import it.dockins.dockerslaves.hints.MemoryHint;
 import it.dockins.dockerslaves.hints.VolumeHint;
 import it.dockins.dockerslaves.spec.Hint;
 import it.dockins.dockerslaves.spi.DockerDriver;
 import it.dockins.dockerslaves.spi.DockerHostConfig;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.tools.tar.TarEntry;
-import org.apache.tools.tar.TarInputStream;
 import org.apache.tools.tar.TarOutputStream;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static it.dockins.dockerslaves.DockerSlave.SLAVE_ROOT;
 
@@ -67,6 +75,8 @@ public class CliDockerDriver extends DockerDriver {
 
     private final static boolean verbose = Boolean.getBoolean(DockerDriver.class.getName()+".verbose");
 
+    static final long PING_TIMEOUT = Long.getLong(CliDockerDriver.class.getName() + ".pingTimeout", TimeUnit.SECONDS.toMillis(30));
+
     private final DockerHostConfig dockerHost;
 
     private final VersionNumber version;
@@ -74,7 +84,14 @@ public class CliDockerDriver extends DockerDriver {
     public CliDockerDriver(DockerHostConfig dockerHost) throws IOException, InterruptedException {
         this.dockerHost = dockerHost;
         // Also acts as sanity check to ensure host and credentials are well set
-        version = new VersionNumber(serverVersion(TaskListener.NULL));
+        final long start = System.currentTimeMillis();
+        try {
+            version = new VersionNumber(serverVersion(TaskListener.NULL));
+        } catch (IOException e) {
+            HostHealth.forHost(dockerHost.getHost()).failure();
+            throw e;
+        }
+        HostHealth.forHost(dockerHost.getHost()).success(System.currentTimeMillis() - start);
     }
 
     @Override
@@ -85,7 +102,8 @@ public class CliDockerDriver extends DockerDriver {
     @Override
     public String createVolume(TaskListener listener) throws IOException, InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder()
-                .add("volume", "create");
+                .add("volume", "create")
+                .add(labelArgs());
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         Launcher launcher = new Launcher.LocalLauncher(listener);
@@ -98,6 +116,29 @@ public class CliDockerDriver extends DockerDriver {
             throw new IOException("Failed to create docker volume");
         }
 
+        ContainerIndex.forHost(dockerHost.getHost()).volumeCreated(volume);
+        return volume;
+    }
+
+    @Override
+    public String cloneVolume(TaskListener listener, String source, String image) throws IOException, InterruptedException {
+        final String volume = createVolume(listener);
+
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("run", "--rm")
+                .add("--user", "0:0")
+                .add("--volume", source + ":/from:ro")
+                .add("--volume", volume + ":/to")
+                .add(image, "sh", "-c", CLONE_VOLUME_SCRIPT);
+
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        int status = launchDockerCLI(launcher, args)
+                .stdout(launcher.getListener().getLogger()).stderr(launcher.getListener().getLogger()).join();
+
+        if (status != 0) {
+            removeVolume(listener, volume);
+            throw new IOException("Failed to copy volume " + source);
+        }
         return volume;
     }
 
@@ -107,6 +148,12 @@ public class CliDockerDriver extends DockerDriver {
             return false;
         }
 
+        final ContainerIndex index = containerIndex();
+        if (index.isIndexed() && index.hasVolume(name)) {
+            return true;
+        }
+        // not indexed, or volume created before we labelled them
+
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("volume", "inspect", "-f", "'{{.Name}}'", name);
 
@@ -125,6 +172,11 @@ public class CliDockerDriver extends DockerDriver {
             return false;
         }
 
+        final ContainerIndex index = containerIndex();
+        if (index.isIndexed()) {
+            return index.hasContainer(id);
+        }
+
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("inspect", "-f", "'{{.Id}}'", id);
 
@@ -136,12 +188,206 @@ public class CliDockerDriver extends DockerDriver {
         return status == 0;
     }
 
+    @Override
+    public String getHost() {
+        return dockerHost.getHost();
+    }
+
+    @Override
+    public void watchContainer(Container container, DockerComputer computer) throws IOException, InterruptedException {
+        containerIndex().watch(container.getId(), computer);
+    }
+
+    /**
+     * Get index of plugin's containers and volumes, seeding it from docker host if we just (re)connected to host's
+     * event stream.
+     */
+    private ContainerIndex containerIndex() throws IOException, InterruptedException {
+        subscribeEvents();
+        final ContainerIndex index = ContainerIndex.forHost(dockerHost.getHost());
+        final long generation = index.needsSeed();
+        if (generation >= 0) {
+            final Launcher launcher = new Launcher.LocalLauncher(TaskListener.NULL);
+            index.seed(generation,
+                    listLabelled(launcher, new ArgumentListBuilder().add("ps", "--all", "--quiet", "--no-trunc")),
+                    listLabelled(launcher, new ArgumentListBuilder().add("volume", "ls", "--quiet")));
+        }
+        return index;
+    }
+
+    /**
+     * Command line arguments to label a container or volume being created.
+     */
+    private List<String> labelArgs() {
+        final List<String> args = new ArrayList<>();
+        for (Map.Entry<String, String> label : getLabels().entrySet()) {
+            args.add("--label");
+            args.add(label.getKey() + "=" + label.getValue());
+        }
+        return args;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> listContainers(TaskListener listener, String label, String value) throws IOException, InterruptedException {
+        return listWithLabels(listener, new ArgumentListBuilder().add("ps", "--all", "--no-trunc"), "{{.ID}}", label, value);
+    }
+
+    @Override
+    public Map<String, Map<String, String>> listVolumes(TaskListener listener, String label, String value) throws IOException, InterruptedException {
+        return listWithLabels(listener, new ArgumentListBuilder().add("volume", "ls"), "{{.Name}}", label, value);
+    }
+
+    private Map<String, Map<String, String>> listWithLabels(TaskListener listener, ArgumentListBuilder args, String id, String label, String value) throws IOException, InterruptedException {
+        final StringBuilder format = new StringBuilder(id);
+        for (String key : ResourceLabels.ALL) {
+            format.append("\t{{.Label \"").append(key).append("\"}}");
+        }
+        args.add("--filter", "label=" + label + "=" + value)
+            .add("--format", format.toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        int status = launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+        if (status != 0) {
+            throw new IOException("Failed to list labelled docker resources");
+        }
+
+        final Map<String, Map<String, String>> resources = new HashMap<>();
+        for (String line : out.toString(UTF_8).split("\\n")) {
+            if (line.trim().isEmpty()) continue;
+            final String[] fields = line.split("\t", -1);
+            final Map<String, String> labels = new HashMap<>();
+            for (int i = 0; i < ResourceLabels.ALL.size() && i + 1 < fields.length; i++) {
+                if (!fields[i + 1].isEmpty()) labels.put(ResourceLabels.ALL.get(i), fields[i + 1]);
+            }
+            resources.put(fields[0].trim(), labels);
+        }
+        return resources;
+    }
+
+    @Override
+    public Map<String, Long> getVolumeSizes(TaskListener listener) throws IOException, InterruptedException {
+        if (version.isOlderThan(SYSTEM_DF)) {
+            return Collections.emptyMap();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        int status = launchDockerCLI(launcher, new ArgumentListBuilder().add("system", "df", "--verbose"))
+                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+        if (status != 0) {
+            throw new IOException("Failed to get docker disk usage");
+        }
+
+        // Parse "Local Volumes space usage" table: VOLUME NAME, LINKS, SIZE
+        final Map<String, Long> sizes = new HashMap<>();
+        boolean volumes = false;
+        for (String line : out.toString(UTF_8).split("\\n")) {
+            line = line.trim();
+            if (line.startsWith("VOLUME NAME")) {
+                volumes = true;
+            } else if (line.isEmpty()) {
+                volumes = false;
+            } else if (volumes) {
+                final String[] columns = line.split("\\s+");
+                final long size = parseSize(columns[columns.length - 1]);
+                if (columns.length >= 3 && size >= 0) {
+                    sizes.put(columns[0], size);
+                }
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Parse a size as printed by docker CLI, using decimal units, like <code>1.5GB</code>.
+     * @return <code>-1</code> if not a size
+     */
+    static long parseSize(String size) {
+        final Matcher m = SIZE.matcher(size);
+        if (!m.matches()) {
+            return -1;
+        }
+        final int power = "BKMGTP".indexOf(Character.toUpperCase(m.group(2).charAt(0)));
+        return (long) (Double.parseDouble(m.group(1)) * Math.pow(1000, power));
+    }
+
+    @Override
+    public long getMemoryTotal(TaskListener listener) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("info", "--format", "{{.MemTotal}}");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        int status = launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+        if (status != 0) {
+            throw new IOException("Failed to get docker host info");
+        }
+        try {
+            return Long.parseLong(out.toString(UTF_8).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static final Pattern SIZE = Pattern.compile("([0-9.]+)\\s*(B|[kKMGTP]B)");
+
+    @Override
+    public void removeVolume(TaskListener listener, String name) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("volume", "rm", name);
+
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        int status = launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()).join();
+
+        if (status != 0) {
+            throw new IOException("Failed to remove volume " + name);
+        }
+    }
+
+    private List<String> listLabelled(Launcher launcher, ArgumentListBuilder args) throws IOException, InterruptedException {
+        args.add("--filter", "label=" + ContainerIndex.LABEL);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+        if (status != 0) {
+            throw new IOException("Failed to list labelled docker resources");
+        }
+
+        final List<String> ids = new ArrayList<>();
+        for (String line : out.toString(UTF_8).split("\\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) ids.add(line);
+        }
+        return ids;
+    }
+
     @Override
     public Container launchRemotingContainer(TaskListener listener, String image, String volume, DockerComputer computer) throws IOException, InterruptedException {
+        final Container remotingContainer = createRemotingContainer(listener, image, volume);
+        startRemotingContainer(listener, remotingContainer, computer);
+        return remotingContainer;
+    }
+
+    @Override
+    public Container createRemotingContainer(TaskListener listener, String image, String volume) throws IOException, InterruptedException {
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+
+        // Shared volume provides slave.jar for current remoting version
+        final String remotingVolume = prepareRemotingVolume(launcher, image);
 
         // Create a container for remoting
         ArgumentListBuilder args = new ArgumentListBuilder()
             .add("create", "--interactive")
+            .add(labelArgs())
 
             // We disable container logging to sdout as we rely on this one as transport for jenkins remoting
             .add("--log-driver=none")
@@ -150,14 +396,14 @@ public class CliDockerDriver extends DockerDriver {
             .add("--user", "10000:10000")
             .add("--rm")
             .add("--volume", volume+":"+ SLAVE_ROOT)
+            .add("--volume", remotingVolume+":"+ RemotingVolume.MOUNT_POINT+":ro")
             .add(image)
             .add("java")
             // set TMP directory within the /home/jenkins/ volume so it can be shared with other containers
             .add("-Djava.io.tmpdir="+ SLAVE_ROOT+".tmp")
-            .add("-jar").add(SLAVE_ROOT+"slave.jar");
+            .add("-jar").add(RemotingVolume.MOUNT_POINT+"slave.jar");
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        Launcher launcher = new Launcher.LocalLauncher(listener);
         int status = launchDockerCLI(launcher, args)
                 .stdout(out).stderr(launcher.getListener().getLogger()).join();
 
@@ -167,24 +413,156 @@ public class CliDockerDriver extends DockerDriver {
             throw new IOException("Failed to create docker image");
         }
 
-        // Inject current slave.jar to ensure adequate version running
-        putFileContent(launcher, containerId, DockerSlave.SLAVE_ROOT, "slave.jar", new Slave.JnlpJar("slave.jar").readFully());
-        Container remotingContainer = new Container(image, containerId);
+        ContainerIndex.forHost(dockerHost.getHost()).created(containerId);
+        return new Container(image, containerId);
+    }
 
+    @Override
+    public void startRemotingContainer(TaskListener listener, Container remotingContainer, DockerComputer computer) throws IOException, InterruptedException {
         // Run container in interactive mode to establish channel over stdin/stdout
-        args = new ArgumentListBuilder()
+        ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("start")
                 .add("--interactive", "--attach", remotingContainer.getId());
         prependArgs(args);
         new CommandLauncher(args.toString(), dockerHost.getEnvironment()).launch(computer, listener);
-        return remotingContainer;
+    }
+
+    /**
+     * Ensure the shared remoting volume for current remoting version is available on docker host. Volume is
+     * populated once per Jenkins JVM, then volumes for other remoting versions are garbage collected.
+     */
+    protected String prepareRemotingVolume(Launcher launcher, String image) throws IOException, InterruptedException {
+        final RemotingVolume volume = RemotingVolume.forHost(dockerHost.getHost());
+        synchronized (volume) {
+            if (volume.isReady()) {
+                return volume.getName();
+            }
+
+            int status = launchDockerCLI(launcher, new ArgumentListBuilder()
+                    .add("volume", "create")
+                    .add("--name", volume.getName())
+                    .add("--label", RemotingVolume.LABEL + "=" + volume.getVersion()))
+                    .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()).join();
+
+            if (status != 0) {
+                throw new IOException("Failed to create remoting volume");
+            }
+
+            // Use a transient container to copy slave.jar into the volume
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            status = launchDockerCLI(launcher, new ArgumentListBuilder()
+                    .add("create")
+                    .add("--volume", volume.getName() + ":" + RemotingVolume.MOUNT_POINT)
+                    .add(image, "true"))
+                    .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+            if (status != 0) {
+                throw new IOException("Failed to populate remoting volume");
+            }
+
+            final String containerId = out.toString(UTF_8).trim();
+            try {
+                status = putFileContent(launcher, containerId, RemotingVolume.MOUNT_POINT, "slave.jar", new Slave.JnlpJar("slave.jar").readFully());
+                if (status != 0) {
+                    throw new IOException("Failed to populate remoting volume");
+                }
+            } finally {
+                launchDockerCLI(launcher, new ArgumentListBuilder()
+                        .add("rm", "-f", containerId))
+                        .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()).join();
+            }
+
+            // Garbage collect volumes for other remoting versions
+            out = new ByteArrayOutputStream();
+            status = launchDockerCLI(launcher, new ArgumentListBuilder()
+                    .add("volume", "ls", "-q")
+                    .add("--filter", "label=" + RemotingVolume.LABEL))
+                    .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+            if (status == 0) {
+                for (String name : out.toString(UTF_8).split("\\n")) {
+                    name = name.trim();
+                    if (name.isEmpty() || name.equals(volume.getName())) continue;
+                    status = launchDockerCLI(launcher, new ArgumentListBuilder()
+                            .add("volume", "rm", name))
+                            .stdout(new ByteArrayOutputStream()).stderr(new ByteArrayOutputStream()).join();
+                    if (status != 0) {
+                        // most probably still used by a running build
+                        LOGGER.log(Level.FINE, "Failed to remove remoting volume " + name);
+                    }
+                }
+            }
+
+            volume.setReady();
+            return volume.getName();
+        }
     }
 
     @Override
     public Container launchBuildContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
-        Container buildContainer = new Container(image);
+        final Container buildContainer = createBuildContainer(listener, image, remotingContainer, hints);
+        startContainer(listener, buildContainer);
+        return buildContainer;
+    }
+
+    @Override
+    public Container createBuildContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        final DecoratedImageCache cache = DecoratedImageCache.forHost(dockerHost.getHost());
+        if (!cache.isSeeded()) {
+            cache.seed(listDecoratedImages(launcher));
+        }
+
+        final String imageId = inspectImageId(launcher, image);
+        final String decorated = imageId != null ? DecoratedImageCache.decoratedImage(imageId) : null;
+
+        String containerId = null;
+        boolean useDecorated = false;
+        if (decorated != null && cache.contains(decorated)) {
+            try {
+                containerId = doCreateBuildContainer(launcher, decorated, remotingContainer, hints);
+                useDecorated = true;
+            } catch (IOException e) {
+                // decorated image has been removed from docker host
+                LOGGER.log(Level.FINE, "Failed to use decorated image " + decorated, e);
+                cache.forget(decorated);
+            }
+        }
+
+        if (containerId == null) {
+            containerId = doCreateBuildContainer(launcher, image, remotingContainer, hints);
+            decorateBuildContainer(launcher, containerId);
+            if (decorated != null) {
+                useDecorated = commitDecoratedImage(launcher, containerId, imageId, decorated);
+            }
+        }
+
+        if (useDecorated) {
+            for (String evicted : cache.use(image, decorated)) {
+                if (removeImage(launcher, evicted)) {
+                    cache.removed(evicted);
+                }
+            }
+        }
+
+        return new Container(image, containerId);
+    }
+
+    @Override
+    public void startContainer(TaskListener listener, Container container) throws IOException, InterruptedException {
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        int status = launchDockerCLI(launcher, new ArgumentListBuilder()
+                .add("start", container.getId())).stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()).join();
+
+        if (status != 0) {
+            throw new IOException("Failed to run docker image");
+        }
+    }
+
+    private String doCreateBuildContainer(Launcher launcher, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("create")
+                .add(labelArgs())
                 .add("--env", "TMPDIR="+SLAVE_ROOT+".tmp")
                 .add("--workdir", SLAVE_ROOT)
                 .add("--volumes-from", remotingContainer.getId())
@@ -194,34 +572,93 @@ public class CliDockerDriver extends DockerDriver {
 
         applyHints(hints, args);
 
-        args.add(buildContainer.getImageName());
+        args.add(image);
 
         args.add("/trampoline", "wait");
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        Launcher launcher = new Launcher.LocalLauncher(listener);
         int status = launchDockerCLI(launcher, args)
                 .stdout(out).stderr(launcher.getListener().getLogger()).join();
 
-        final String containerId = out.toString(UTF_8).trim();
-        buildContainer.setId(containerId);
-
         if (status != 0) {
             throw new IOException("Failed to run docker image");
         }
 
-        injectJenkinsUnixGroup(launcher, containerId);
-        injectJenkinsUnixUser(launcher, containerId);
-        injectTrampoline(launcher, containerId);
+        final String containerId = out.toString(UTF_8).trim();
+        ContainerIndex.forHost(dockerHost.getHost()).created(containerId);
+        return containerId;
+    }
+
+    /**
+     * Commit a freshly decorated build container as a decorated image, so next build containers for the same
+     * base image don't need any file injection.
+     */
+    protected boolean commitDecoratedImage(Launcher launcher, String containerId, String imageId, String decorated) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("commit")
+                .add("--change", "LABEL " + DecoratedImageCache.LABEL + "=" + imageId)
+                .add(containerId, decorated);
 
-        status = launchDockerCLI(launcher, new ArgumentListBuilder()
-                .add("start", containerId)).stdout(out).stderr(launcher.getListener().getLogger()).join();
+        int status = launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(launcher.getListener().getLogger()).join();
 
         if (status != 0) {
-            throw new IOException("Failed to run docker image");
+            LOGGER.log(Level.WARNING, "Failed to commit decorated image " + decorated);
         }
+        return status == 0;
+    }
 
-        return buildContainer;
+    protected List<String> listDecoratedImages(Launcher launcher) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("images")
+                .add("--filter", "label=" + DecoratedImageCache.LABEL)
+                .add("--format", "{{.Repository}}:{{.Tag}}");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+        final List<String> images = new ArrayList<>();
+        if (status == 0) {
+            for (String line : out.toString(UTF_8).split("\\n")) {
+                if (line.startsWith(DecoratedImageCache.REPOSITORY + ":")) {
+                    images.add(line.trim());
+                }
+            }
+        }
+        return images;
+    }
+
+    protected String inspectImageId(Launcher launcher, String image) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("inspect", "--type", "image")
+                .add("-f", "{{.Id}}")
+                .add(image);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+        return status == 0 ? StringUtils.trimToNull(out.toString(UTF_8)) : null;
+    }
+
+    /**
+     * @return <code>false</code> if image is still on docker host
+     */
+    protected boolean removeImage(Launcher launcher, String image) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("rmi", image);
+
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = launchDockerCLI(launcher, args)
+                .stdout(new ByteArrayOutputStream()).stderr(err).join();
+
+        if (status != 0 && !err.toString(UTF_8).contains("No such image")) {
+            // most probably still used by a container
+            LOGGER.log(Level.FINE, "Failed to remove image " + image);
+            return false;
+        }
+        return true;
     }
 
     private void applyHints(List<Hint> hints, ArgumentListBuilder args) {
@@ -237,42 +674,50 @@ public class CliDockerDriver extends DockerDriver {
         }
     }
 
-    protected void injectJenkinsUnixGroup(Launcher launcher, String containerId) throws IOException, InterruptedException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        getFileContent(launcher, containerId, "/etc/group", out);
-        out.write("jenkins:x:10000:\n".getBytes(StandardCharsets.UTF_8));
-        putFileContent(launcher, containerId, "/etc", "group", out.toByteArray());
-    }
-
-    protected void injectJenkinsUnixUser(Launcher launcher, String containerId) throws IOException, InterruptedException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        getFileContent(launcher, containerId, "/etc/passwd", out);
-        out.write("jenkins:x:10000:10000::/home/jenkins:/bin/false\n".getBytes(StandardCharsets.UTF_8));
-        putFileContent(launcher, containerId, "/etc", "passwd", out.toByteArray());
-    }
-
-    protected void injectTrampoline(Launcher launcher, String containerId) throws IOException, InterruptedException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        IOUtils.copy(getClass().getResourceAsStream("/it/dockins/dockerslaves/trampoline"),out);
-        putFileContent(launcher, containerId, "/", "trampoline", out.toByteArray(), 555);
-    }
-
-    protected void getFileContent(Launcher launcher, String containerId, String filename, OutputStream outputStream) throws IOException, InterruptedException {
-        ArgumentListBuilder args = new ArgumentListBuilder()
-                .add("cp", containerId + ":" + filename, "-");
+    /**
+     * Inject jenkins user and group, as well as <code>/trampoline</code>, into a created build container, using a
+     * single read of container's <code>/etc</code> and a single streamed upload.
+     */
+    protected void decorateBuildContainer(Launcher launcher, String containerId) throws IOException, InterruptedException {
+        Proc read = launchDockerCLI(launcher, new ArgumentListBuilder()
+                .add("cp", containerId + ":/etc", "-"))
+                .readStdout().stderr(launcher.getListener().getLogger()).start();
+
+        final BuildContainerDecoration decoration;
+        boolean completed = false;
+        try {
+            try (InputStream etc = read.getStdout()) {
+                decoration = BuildContainerDecoration.fromEtcArchive(etc);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                // don't leave docker cp running, holding a docker API permit
+                read.kill();
+            }
+        }
+        if (read.join() != 0) {
+            throw new IOException("Failed to read /etc from container " + containerId);
+        }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int status = launchDockerCLI(launcher, args)
-                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+        Proc write = launchDockerCLI(launcher, new ArgumentListBuilder()
+                .add("cp", "-", containerId + ":/"))
+                .writeStdin().stderr(launcher.getListener().getLogger()).start();
 
-        if (status != 0) {
-            throw new IOException("Failed to get file");
+        completed = false;
+        try {
+            try (OutputStream tar = write.getStdin()) {
+                decoration.writeTo(tar);
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                write.kill();
+            }
+        }
+        if (write.join() != 0) {
+            throw new IOException("Failed to decorate container " + containerId);
         }
-
-        TarInputStream tar = new TarInputStream(new ByteArrayInputStream(out.toByteArray()));
-        tar.getNextEntry();
-        tar.copyEntryContents(outputStream);
-        tar.close();
     }
 
     protected int putFileContent(Launcher launcher, String containerId, String path, String filename, byte[] content) throws IOException, InterruptedException {
@@ -333,6 +778,8 @@ public class CliDockerDriver extends DockerDriver {
 
     @Override
     public void removeContainer(TaskListener listener, Container instance) throws IOException, InterruptedException {
+        ContainerIndex.forHost(dockerHost.getHost()).removing(instance.getId());
+
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("rm", "-f", instance.getId());
 
@@ -350,8 +797,16 @@ public class CliDockerDriver extends DockerDriver {
 
     @Override
     public Container launchSideContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
+        final Container container = createSideContainer(listener, image, remotingContainer, hints);
+        startContainer(listener, container);
+        return container;
+    }
+
+    @Override
+    public Container createSideContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("create")
+                .add(labelArgs())
                 .add("--volumes-from", remotingContainer.getId())
                 .add("--net=container:" + remotingContainer.getId())
                 .add("--ipc=container:" + remotingContainer.getId());
@@ -371,15 +826,75 @@ public class CliDockerDriver extends DockerDriver {
         if (status != 0) {
             throw new IOException("Failed to run docker image");
         }
-
-        launchDockerCLI(launcher, new ArgumentListBuilder()
-                .add("start", containerId)).start();
+        ContainerIndex.forHost(dockerHost.getHost()).created(containerId);
 
         return new Container(image, containerId);
     }
 
+    @Override
+    public String getContainerHealth(TaskListener listener, Container container) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder()
+                .add("inspect", "-f", "{{if .State.Health}}{{.State.Health.Status}}{{end}}", container.getId());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        int status = launchDockerCLI(launcher, args)
+                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+
+        if (status != 0) {
+            throw new IOException("Failed to inspect container " + container.getId());
+        }
+        return StringUtils.trimToNull(out.toString(UTF_8));
+    }
+
     @Override
     public void pullImage(TaskListener listener, String image) throws IOException, InterruptedException {
+        pullImage(listener, image, ImagePullCoordinator.Priority.BLOCKING);
+    }
+
+    @Override
+    public void prefetchImage(TaskListener listener, String image) throws IOException, InterruptedException {
+        pullImage(listener, image, ImagePullCoordinator.Priority.SPECULATIVE);
+    }
+
+    private void pullImage(TaskListener listener, String image, ImagePullCoordinator.Priority priority) throws IOException, InterruptedException {
+        ImagePullCoordinator.forHost(dockerHost.getHost()).pull(image, listener, priority, new Puller(dockerHost, image));
+    }
+
+    /**
+     * Run <code>docker pull</code> with keys of it's own, as a coalesced pull may still run once the build which
+     * queued it completed, and closed it's driver.
+     */
+    private static final class Puller implements ImagePullCoordinator.Puller {
+
+        private final DockerHostConfig dockerHost;
+
+        private final String image;
+
+        Puller(DockerHostConfig dockerHost, String image) {
+            this.dockerHost = dockerHost;
+            this.image = image;
+        }
+
+        @Override
+        public void pull(TaskListener listener) throws IOException, InterruptedException {
+            final DockerHostConfig config = dockerHost.copy();
+            final CliDockerDriver driver;
+            try {
+                driver = new CliDockerDriver(config);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                config.close();
+                throw e;
+            }
+            try {
+                driver.doPullImage(listener, image);
+            } finally {
+                driver.close();
+            }
+        }
+    }
+
+    private void doPullImage(TaskListener listener, String image) throws IOException, InterruptedException {
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("pull")
                 .add(image);
@@ -391,10 +906,16 @@ public class CliDockerDriver extends DockerDriver {
         if (status != 0) {
             throw new IOException("Failed to pull image " + image);
         }
+        ImagePresenceCache.forHost(dockerHost.getHost()).present(image);
     }
 
     @Override
     public boolean checkImageExists(TaskListener listener, String image) throws IOException, InterruptedException {
+        final ImagePresenceCache cache = imagePresenceCache();
+        if (cache.isPresent(image)) {
+            return true;
+        }
+
         ArgumentListBuilder args = new ArgumentListBuilder()
                 .add("inspect")
                 .add("-f", "'{{.Id}}'")
@@ -402,8 +923,84 @@ public class CliDockerDriver extends DockerDriver {
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         Launcher launcher = new Launcher.LocalLauncher(listener);
-        return launchDockerCLI(launcher, args)
+        final boolean exists = launchDockerCLI(launcher, args)
                 .stdout(out).stderr(launcher.getListener().getLogger()).join() == 0;
+        if (exists) {
+            cache.present(image);
+        }
+        return exists;
+    }
+
+    private ImagePresenceCache imagePresenceCache() {
+        subscribeEvents();
+        return ImagePresenceCache.forHost(dockerHost.getHost());
+    }
+
+    /**
+     * Follow docker host's events, so per-host caches get invalidated as the daemon reports changes.
+     */
+    private void subscribeEvents() {
+        if (version.isOlderThan(EVENTS_FORMAT)) {
+            // no JSON output for docker events, caches rely on expiration or inspecting resources
+            return;
+        }
+        DockerEventsMonitor.forHost(dockerHost.getHost()).subscribe(new EventsSource(dockerHost));
+    }
+
+    /**
+     * Run <code>docker events</code> with keys of it's own, as monitor keeps reconnecting long after the driver
+     * which registered it has been closed and it's keys deleted.
+     */
+    private static final class EventsSource implements DockerEventsMonitor.Source {
+
+        private final DockerHostConfig dockerHost;
+
+        EventsSource(DockerHostConfig dockerHost) {
+            this.dockerHost = dockerHost;
+        }
+
+        @Override
+        public InputStream open() throws IOException, InterruptedException {
+            ArgumentListBuilder args = new ArgumentListBuilder()
+                    .add("events")
+                    .add("--filter", "type=image")
+                    .add("--filter", "type=container")
+                    .add("--filter", "type=volume")
+                    .add("--format", "{{json .}}");
+
+            final DockerHostConfig config = dockerHost.copy();
+            final CliDockerDriver driver;
+            try {
+                driver = new CliDockerDriver(config);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                config.close();
+                throw e;
+            }
+            final Proc proc;
+            try {
+                proc = driver.launchDockerCLI(new Launcher.LocalLauncher(TaskListener.NULL), args)
+                        .readStdout().start();
+            } catch (IOException | RuntimeException e) {
+                driver.close();
+                throw e;
+            }
+            return new FilterInputStream(proc.getStdout()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        try {
+                            proc.kill();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } finally {
+                            driver.close();
+                        }
+                    }
+                }
+            };
+        }
     }
 
     @Override
@@ -436,8 +1033,10 @@ public class CliDockerDriver extends DockerDriver {
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         Launcher launcher = new Launcher.LocalLauncher(listener);
+        // don't hang on an unresponsive daemon
         int status = launchDockerCLI(launcher, args)
-                .stdout(out).stderr(launcher.getListener().getLogger()).join();
+                .stdout(out).stderr(launcher.getListener().getLogger()).start()
+                .joinWithTimeout(PING_TIMEOUT, TimeUnit.MILLISECONDS, listener);
 
         final String version = out.toString(UTF_8).trim();
 
@@ -450,6 +1049,8 @@ public class CliDockerDriver extends DockerDriver {
 
     VersionNumber SWARM = new VersionNumber("1.12");
     VersionNumber INFO_FORMAT = new VersionNumber("1.13");
+    VersionNumber EVENTS_FORMAT = new VersionNumber("1.13");
+    VersionNumber SYSTEM_DF = new VersionNumber("1.13");
 
     public boolean usesSwarmMode(TaskListener listener) throws IOException, InterruptedException {
         if (version.isOlderThan(SWARM)) return false;
@@ -484,9 +1085,11 @@ public class CliDockerDriver extends DockerDriver {
     }
 
     private Launcher.ProcStarter launchDockerCLI(Launcher launcher, ArgumentListBuilder args) {
+        // limit in-flight calls against docker host, as per the command we run
+        final Launcher limited = DockerApiLimiter.forHost(dockerHost.getHost()).decorate(launcher, args);
         prependArgs(args);
 
-        return launcher.launch()
+        return limited.launch()
                 .envs(dockerHost.getEnvironment())
                 .cmds(args)
                 .quiet(!verbose);
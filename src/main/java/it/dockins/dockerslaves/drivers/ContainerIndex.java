@@ -0,0 +1,198 @@
+package it.dockins.dockerslaves.drivers;
+
+import it.dockins.dockerslaves.DockerComputer;
+import it.dockins.dockerslaves.ResourceLabels;
+import net.sf.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Index of live containers and volumes created by this plugin on a docker host, maintained from container and volume
+ * events reported by {@link DockerEventsMonitor}, so existence checks don't require a round trip to the daemon.
+ * <p>
+ * Index is only trusted while connected to host's event stream, and once seeded by listing resources carrying
+ * {@link #LABEL}, as events may have been missed before. Drivers fall back to inspecting resources otherwise.
+ * <p>
+ * Containers can also be watched by a {@link DockerComputer}, which then gets notified as soon as they die or get
+ * killed by the OOM killer.
+ */
+public class ContainerIndex implements DockerEventsMonitor.Listener {
+
+    /** Label set on containers and volumes created by this plugin. */
+    public static final String LABEL = ResourceLabels.MANAGED;
+
+    private static final ConcurrentMap<String, ContainerIndex> HOSTS = new ConcurrentHashMap<>();
+
+    public static ContainerIndex forHost(String host) {
+        ContainerIndex index = HOSTS.get(host);
+        if (index == null) {
+            final ContainerIndex created = new ContainerIndex(DockerEventsMonitor.forHost(host));
+            index = HOSTS.putIfAbsent(host, created);
+            if (index == null) {
+                index = created;
+                created.monitor.addListener(created);
+            }
+        }
+        return index;
+    }
+
+    private final DockerEventsMonitor monitor;
+
+    private final Set<String> containers = new HashSet<>();
+
+    private final Set<String> volumes = new HashSet<>();
+
+    /** Resources destroyed while seeding, so listed ones don't get resurrected */
+    private final Set<String> destroyed = new HashSet<>();
+
+    private final Map<String, DockerComputer> watchers = new ConcurrentHashMap<>();
+
+    private long generation;
+
+    private boolean seeded;
+
+    private ContainerIndex(DockerEventsMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    /**
+     * Can index be trusted to answer existence checks?
+     */
+    public synchronized boolean isIndexed() {
+        return seeded && monitor.isConnected();
+    }
+
+    /**
+     * Identify current connection to event stream, to be passed to {@link #seed(long, Collection, Collection)}.
+     * @return <code>-1</code> if index doesn't need to be seeded
+     */
+    public synchronized long needsSeed() {
+        return seeded || !monitor.isConnected() ? -1 : generation;
+    }
+
+    /**
+     * Register labelled containers and volumes listed from docker host.
+     * @param generation value returned by {@link #needsSeed()} before listing resources
+     */
+    public synchronized void seed(long generation, Collection<String> containers, Collection<String> volumes) {
+        if (generation != this.generation || seeded) return;
+        for (String id : containers) {
+            if (!destroyed.contains(id)) this.containers.add(id);
+        }
+        for (String name : volumes) {
+            if (!destroyed.contains(name)) this.volumes.add(name);
+        }
+        destroyed.clear();
+        seeded = true;
+    }
+
+    public synchronized boolean hasContainer(String id) {
+        return containers.contains(id);
+    }
+
+    public synchronized boolean hasVolume(String name) {
+        return volumes.contains(name);
+    }
+
+    /**
+     * Register a container or volume just created by driver, before the daemon reports it.
+     */
+    public synchronized void created(String id) {
+        containers.add(id);
+    }
+
+    public synchronized void volumeCreated(String name) {
+        volumes.add(name);
+    }
+
+    /**
+     * Container is about to be removed by driver, so stop watching it.
+     */
+    public void removing(String id) {
+        watchers.remove(id);
+    }
+
+    /**
+     * Notify computer when container dies.
+     */
+    public void watch(String id, DockerComputer computer) {
+        watchers.put(id, computer);
+    }
+
+    @Override
+    public synchronized void onConnected() {
+        containers.clear();
+        volumes.clear();
+        destroyed.clear();
+        seeded = false;
+        generation++;
+    }
+
+    @Override
+    public void onEvent(JSONObject event) {
+        final JSONObject actor = event.optJSONObject("Actor");
+        if (actor == null) return;
+        final String id = actor.optString("ID");
+        final JSONObject attributes = actor.optJSONObject("Attributes");
+
+        switch (event.optString("Type")) {
+            case "container":
+                switch (event.optString("Action")) {
+                    case "create":
+                        if (attributes != null && attributes.has(LABEL)) {
+                            synchronized (this) {
+                                containers.add(id);
+                            }
+                        }
+                        break;
+                    case "destroy":
+                        synchronized (this) {
+                            containers.remove(id);
+                            if (!seeded) destroyed.add(id);
+                        }
+                        watchers.remove(id);
+                        break;
+                    case "oom":
+                        died(id, "has been killed as it ran out of memory");
+                        break;
+                    case "die":
+                        died(id, "exited with code " + (attributes != null ? attributes.optString("exitCode", "?") : "?"));
+                        break;
+                }
+                break;
+            case "volume":
+                // volume events don't carry labels, but indexing other volumes doesn't hurt
+                switch (event.optString("Action")) {
+                    case "create":
+                        synchronized (this) {
+                            volumes.add(id);
+                        }
+                        break;
+                    case "destroy":
+                        synchronized (this) {
+                            volumes.remove(id);
+                            if (!seeded) destroyed.add(id);
+                        }
+                        break;
+                }
+                break;
+        }
+    }
+
+    private void died(String id, String reason) {
+        final DockerComputer computer = watchers.remove(id);
+        if (computer != null) {
+            LOGGER.log(Level.FINE, "Container " + id + " " + reason);
+            computer.containerTerminated(id, reason);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerIndex.class.getName());
+}
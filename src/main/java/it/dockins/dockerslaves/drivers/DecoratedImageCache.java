@@ -0,0 +1,148 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.Util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keep track of "decorated" images on a docker host, i.e. images derived from a build image with jenkins user, group
+ * and <code>/trampoline</code> already injected, so build containers can be created and started without any file
+ * injection.
+ * <p>
+ * Decorated images are content addressed: tag is computed from base image ID and trampoline version, so a moved base
+ * image tag or an upgraded plugin naturally leads to a new decorated image. Stale decorated images are evicted when
+ * base image reference resolves to another image ID, and least recently used ones are evicted above
+ * {@link #MAX_IMAGES} per host. An image can't be removed while a container still uses it, so images are only
+ * forgotten once actually {@link #removed(String) removed}, and eviction is tried again as cache is next used.
+ * <p>
+ * Base image references are only tracked for the {@link #MAX_REFERENCES} most recently used ones, as some are
+ * single use, like images built from a Dockerfile for a build. A forgotten reference only means a moved tag won't be
+ * noticed, and its decorated image gets evicted as least recently used.
+ */
+public class DecoratedImageCache {
+
+    /** Label set on decorated images, with base image ID as value. */
+    public static final String LABEL = "it.dockins.dockerslaves.decorated";
+
+    public static final String REPOSITORY = "dockerslaves/decorated";
+
+    static final int MAX_IMAGES = Integer.getInteger(DecoratedImageCache.class.getName() + ".maxImages", 50);
+
+    static final int MAX_REFERENCES = Integer.getInteger(DecoratedImageCache.class.getName() + ".maxReferences", 500);
+
+    private static final ConcurrentMap<String, DecoratedImageCache> HOSTS = new ConcurrentHashMap<>();
+
+    public static DecoratedImageCache forHost(String host) {
+        DecoratedImageCache cache = HOSTS.get(host);
+        if (cache == null) {
+            final DecoratedImageCache created = new DecoratedImageCache();
+            cache = HOSTS.putIfAbsent(host, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Compute decorated image name for a base image ID.
+     */
+    public static String decoratedImage(String baseImageId) {
+        return REPOSITORY + ":" + Util.getDigestOf(baseImageId + "/" + BuildContainerDecoration.getTrampolineVersion());
+    }
+
+    /** Known decorated images, in access order */
+    private final LinkedHashMap<String, Boolean> images = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Decorated image last used for a base image reference, in access order */
+    private final Map<String, String> references = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_REFERENCES;
+        }
+    };
+
+    /** Decorated images no base image reference resolves to anymore, to be removed */
+    private final Set<String> stale = new LinkedHashSet<>();
+
+    private boolean seeded;
+
+    private DecoratedImageCache() {
+    }
+
+    /**
+     * Do we need to load decorated images already available on docker host, typically after a Jenkins restart?
+     */
+    public synchronized boolean isSeeded() {
+        return seeded;
+    }
+
+    /**
+     * Register decorated images already available on docker host, as least recently used ones.
+     */
+    public synchronized void seed(Collection<String> existing) {
+        if (seeded) return;
+        final Map<String, Boolean> used = new LinkedHashMap<>(images);
+        images.clear();
+        for (String image : existing) {
+            images.put(image, Boolean.TRUE);
+        }
+        images.putAll(used);
+        seeded = true;
+    }
+
+    public synchronized boolean contains(String decorated) {
+        return images.containsKey(decorated);
+    }
+
+    public synchronized void forget(String decorated) {
+        images.remove(decorated);
+        stale.remove(decorated);
+    }
+
+    /**
+     * Record decorated image has been used for base image reference.
+     * @return decorated images to be evicted from docker host, including ones which failed to be removed before
+     */
+    public synchronized List<String> use(String image, String decorated) {
+        images.put(decorated, Boolean.TRUE);
+        stale.remove(decorated);
+
+        final String previous = references.put(image, decorated);
+        if (previous != null && !previous.equals(decorated) && !references.containsValue(previous)
+                && images.containsKey(previous)) {
+            // base image reference has moved to another image ID
+            stale.add(previous);
+        }
+
+        final List<String> evicted = new ArrayList<>(stale);
+        int excess = images.size() - stale.size() - MAX_IMAGES;
+        for (Iterator<String> eldest = images.keySet().iterator(); excess > 0 && eldest.hasNext(); ) {
+            final String e = eldest.next();
+            if (!stale.contains(e)) {
+                evicted.add(e);
+                excess--;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Record an evicted decorated image has been removed from docker host.
+     */
+    public synchronized void removed(String decorated) {
+        images.remove(decorated);
+        stale.remove(decorated);
+        references.values().removeAll(Collections.singleton(decorated));
+    }
+}
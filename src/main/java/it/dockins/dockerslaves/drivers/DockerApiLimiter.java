@@ -0,0 +1,317 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limit in-flight API calls against a docker host, so a burst of pods starting doesn't degrade daemon latency for
+ * everyone.
+ * <p>
+ * Cheap read-only calls (inspect, list) and heavy ones (create, start, remove, copy, pull, build) have distinct
+ * windows, so pod startup doesn't queue behind inspections and the other way around. Each window adapts to observed
+ * latency: it grows by one call per window's worth of calls answered within {@link Kind#target}, and halves when
+ * a call is slower, at most once per target period so a single slow burst doesn't collapse it.
+ * <p>
+ * Calls which duration reflects the work they do rather than daemon responsiveness, like pulling an image, hold a
+ * permit but don't feed latency. Long-lived streams, like events or exec, aren't limited. Waiting for a permit is
+ * bounded by {@link #ACQUIRE_TIMEOUT}, so calls against a daemon which never answers eventually fail.
+ */
+public class DockerApiLimiter {
+
+    public enum Kind {
+        LIGHT(16, 2, 64, TimeUnit.SECONDS.toMillis(1)),
+        HEAVY(4, 1, 32, TimeUnit.SECONDS.toMillis(5));
+
+        final int initial;
+        final int min;
+        final int max;
+        final long target;
+
+        Kind(int initial, int min, int max, long target) {
+            final String prefix = DockerApiLimiter.class.getName() + "." + name().toLowerCase() + ".";
+            this.initial = Integer.getInteger(prefix + "initial", initial);
+            this.min = Integer.getInteger(prefix + "min", min);
+            this.max = Integer.getInteger(prefix + "max", max);
+            this.target = Long.getLong(prefix + "target", target);
+        }
+    }
+
+    /** How long to wait for a permit before giving up on a call */
+    static final long ACQUIRE_TIMEOUT = Long.getLong(DockerApiLimiter.class.getName() + ".acquireTimeout", TimeUnit.MINUTES.toMillis(10));
+
+    private static final ConcurrentMap<String, DockerApiLimiter> HOSTS = new ConcurrentHashMap<>();
+
+    public static DockerApiLimiter forHost(String host) {
+        DockerApiLimiter limiter = HOSTS.get(host);
+        if (limiter == null) {
+            final DockerApiLimiter created = new DockerApiLimiter(host);
+            limiter = HOSTS.putIfAbsent(host, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    private final String host;
+
+    private final Window light;
+
+    private final Window heavy;
+
+    private DockerApiLimiter(String host) {
+        this.host = host;
+        this.light = new Window(host, Kind.LIGHT);
+        this.heavy = new Window(host, Kind.HEAVY);
+    }
+
+    private Window window(Kind kind) {
+        return kind == Kind.LIGHT ? light : heavy;
+    }
+
+    /**
+     * Wait for a permit to run a call.
+     * @return a permit to {@link Permit#release(boolean) release} once daemon answered
+     * @throws IOException if no permit got available within {@link #ACQUIRE_TIMEOUT}
+     */
+    public Permit acquire(Kind kind) throws InterruptedException, IOException {
+        final Window window = window(kind);
+        window.acquire(ACQUIRE_TIMEOUT);
+        return new Permit(window);
+    }
+
+    /**
+     * Same as {@link #acquire(Kind)}, for code paths which can only report an {@link IOException}.
+     */
+    public Permit acquireInterruptibly(Kind kind) throws IOException {
+        try {
+            return acquire(kind);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a docker API slot on " + host);
+        }
+    }
+
+    /**
+     * Current concurrency window.
+     */
+    public int getLimit(Kind kind) {
+        return window(kind).getLimit();
+    }
+
+    /**
+     * Wrap a launcher so docker CLI processes it starts are limited as per the command they run.
+     * @param args docker CLI arguments, without the leading <code>docker</code> and host options
+     */
+    public Launcher decorate(Launcher launcher, ArgumentListBuilder args) {
+        final List<String> cmd = args.toList();
+        final String command = cmd.isEmpty() ? "" : cmd.get(0);
+        switch (command) {
+            case "events":
+            case "exec":
+            case "attach":
+            case "wait":
+                return launcher;
+            case "inspect":
+            case "images":
+            case "ps":
+            case "info":
+            case "version":
+            case "system":
+                return new LimitedLauncher(launcher, Kind.LIGHT, true);
+            case "volume":
+                final String sub = cmd.size() > 1 ? cmd.get(1) : "";
+                return new LimitedLauncher(launcher, sub.equals("inspect") || sub.equals("ls") ? Kind.LIGHT : Kind.HEAVY, true);
+            case "pull":
+            case "build":
+            case "run":
+                return new LimitedLauncher(launcher, Kind.HEAVY, false);
+            default:
+                return new LimitedLauncher(launcher, Kind.HEAVY, true);
+        }
+    }
+
+    public static final class Permit {
+
+        private final Window window;
+
+        private final long start = System.currentTimeMillis();
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Window window) {
+            this.window = window;
+        }
+
+        /**
+         * @param sample whether call duration reflects daemon responsiveness, and should adapt the window
+         */
+        public void release(boolean sample) {
+            if (released.compareAndSet(false, true)) {
+                window.release(sample ? System.currentTimeMillis() - start : -1);
+            }
+        }
+    }
+
+    static final class Window {
+
+        private final String host;
+
+        private final Kind kind;
+
+        private double limit;
+
+        private int inFlight;
+
+        private long decreasedAt;
+
+        Window(String host, Kind kind) {
+            this.host = host;
+            this.kind = kind;
+            this.limit = kind.initial;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized void acquire() throws InterruptedException, IOException {
+            acquire(ACQUIRE_TIMEOUT);
+        }
+
+        /**
+         * @throws IOException if no permit got available within timeout
+         */
+        synchronized void acquire(long timeout) throws InterruptedException, IOException {
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (inFlight >= (int) limit) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Timed out after " + timeout + "ms waiting for a " + kind + " docker API slot on " + host
+                            + ", " + inFlight + " calls still in flight");
+                }
+                wait(remaining);
+            }
+            inFlight++;
+        }
+
+        synchronized void release(long latency) {
+            inFlight--;
+            if (latency >= 0) {
+                final long now = System.currentTimeMillis();
+                if (latency > kind.target) {
+                    if (now - decreasedAt > kind.target && limit > kind.min) {
+                        limit = Math.max(kind.min, limit / 2);
+                        decreasedAt = now;
+                        LOGGER.log(Level.FINE, "Docker host {0} answered {1} call in {2}ms, reducing window to {3}",
+                                new Object[] {host, kind, latency, (int) limit});
+                    }
+                } else if (inFlight + 1 >= (int) limit) {
+                    // only grow while window is actually used
+                    limit = Math.min(kind.max, limit + 1 / limit);
+                }
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Hold a permit from process start until it completes.
+     */
+    private final class LimitedLauncher extends Launcher.DecoratedLauncher {
+
+        private final Kind kind;
+
+        private final boolean sample;
+
+        LimitedLauncher(Launcher inner, Kind kind, boolean sample) {
+            super(inner);
+            this.kind = kind;
+            this.sample = sample;
+        }
+
+        @Override
+        public Proc launch(ProcStarter starter) throws IOException {
+            final Permit permit = acquireInterruptibly(kind);
+            final Proc proc;
+            try {
+                proc = getInner().launch(starter);
+            } catch (IOException | RuntimeException e) {
+                permit.release(false);
+                throw e;
+            }
+            return new LimitedProc(proc, permit, sample);
+        }
+    }
+
+    private static final class LimitedProc extends Proc {
+
+        private final Proc proc;
+
+        private final Permit permit;
+
+        private final boolean sample;
+
+        LimitedProc(Proc proc, Permit permit, boolean sample) {
+            this.proc = proc;
+            this.permit = permit;
+            this.sample = sample;
+        }
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return proc.isAlive();
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            try {
+                proc.kill();
+            } finally {
+                permit.release(false);
+            }
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            boolean completed = false;
+            try {
+                final int status = proc.join();
+                completed = true;
+                return status;
+            } finally {
+                permit.release(sample && completed);
+            }
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return proc.getStdout();
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return proc.getStderr();
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return proc.getStdin();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerApiLimiter.class.getName());
+}
@@ -0,0 +1,156 @@
+package it.dockins.dockerslaves.drivers;
+
+import net.sf.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Follow a docker host's event stream and dispatch events to registered {@link Listener}s, so per-host state can be
+ * kept in memory and invalidated as the daemon reports changes, rather than queried for every build.
+ * <p>
+ * Both <code>docker events --format '{{json .}}'</code> and Engine API <code>/events</code> produce one JSON message
+ * per line, so drivers only have to provide a {@link Source} for this stream. Monitor reconnects on failure, using
+ * the first source registered for this host, so this one must not rely on resources of the driver registering it.
+ */
+public class DockerEventsMonitor implements Runnable {
+
+    private static final long RETRY_DELAY = Long.getLong(DockerEventsMonitor.class.getName() + ".retryDelay", TimeUnit.SECONDS.toMillis(5));
+
+    private static final ConcurrentMap<String, DockerEventsMonitor> HOSTS = new ConcurrentHashMap<>();
+
+    public static DockerEventsMonitor forHost(String host) {
+        DockerEventsMonitor monitor = HOSTS.get(host);
+        if (monitor == null) {
+            final DockerEventsMonitor created = new DockerEventsMonitor(host);
+            monitor = HOSTS.putIfAbsent(host, created);
+            if (monitor == null) {
+                monitor = created;
+            }
+        }
+        return monitor;
+    }
+
+    /**
+     * Receive docker events for a host.
+     */
+    public interface Listener {
+
+        /**
+         * Monitor (re)connected to the event stream. Events may have been missed, so cached state should be dropped.
+         */
+        void onConnected();
+
+        void onEvent(JSONObject event);
+    }
+
+    /**
+     * Open docker host's event stream. Closing the stream should release all underlying resources.
+     */
+    public interface Source {
+        InputStream open() throws IOException, InterruptedException;
+    }
+
+    private final String host;
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private Source source;
+
+    private volatile boolean connected;
+
+    private Thread thread;
+
+    private DockerEventsMonitor(String host) {
+        this.host = host;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Register the source to read events from, unless host already has one, and start monitoring host if not already
+     * running.
+     */
+    public synchronized void subscribe(Source source) {
+        if (this.source == null) {
+            this.source = source;
+        }
+        if (thread == null || !thread.isAlive()) {
+            thread = new Thread(this, "Docker events monitor for " + host);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Are we currently receiving events from docker host? If not, listeners should not trust cached state for long.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    private synchronized Source getSource() {
+        return source;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (InputStream stream = getSource().open()) {
+                connected = true;
+                for (Listener listener : listeners) {
+                    listener.onConnected();
+                }
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) continue;
+                    dispatch(line);
+                }
+                LOGGER.log(Level.FINE, "Docker events stream closed for " + host);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to read docker events for " + host, e);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void dispatch(String line) {
+        final JSONObject event;
+        try {
+            event = JSONObject.fromObject(line);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Unexpected docker event " + line, e);
+            return;
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to process docker event " + line, e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerEventsMonitor.class.getName());
+}
@@ -0,0 +1,783 @@
+package it.dockins.dockerslaves.drivers;
+
+import jenkins.util.Timer;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal HTTP/1.1 client for the Docker Engine API.
+ * <p>
+ * Talks to the daemon over a unix socket or a plain TCP connection from within the Jenkins JVM, and keeps
+ * connections alive in a per-daemon pool, so provisioning a build pod does not fork a <code>docker</code> process
+ * for every single operation.
+ */
+public class EngineAPIClient {
+
+    public static final String API_VERSION = "/v1.25";
+
+    private static final int MAX_IDLE_CONNECTIONS = Integer.getInteger(EngineAPIClient.class.getName() + ".maxIdleConnections", 16);
+
+    private static final int CONNECT_TIMEOUT = Integer.getInteger(EngineAPIClient.class.getName() + ".connectTimeout", 10000);
+
+    /** How long to wait for daemon to answer a request, not including long-polling or streaming ones */
+    private static final long READ_TIMEOUT = Long.getLong(EngineAPIClient.class.getName() + ".readTimeout", TimeUnit.SECONDS.toMillis(60));
+
+    /** How long a write of a streamed payload can block, as daemon stops reading it when hung */
+    private static final long WRITE_TIMEOUT = Long.getLong(EngineAPIClient.class.getName() + ".writeTimeout", TimeUnit.SECONDS.toMillis(60));
+
+    private static final ConcurrentMap<String, EngineAPIClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * Retrieve the (shared) client for the docker daemon designated by this URI.
+     */
+    public static EngineAPIClient forHost(String uri) {
+        EngineAPIClient client = CLIENTS.get(uri);
+        if (client == null) {
+            final EngineAPIClient created = new EngineAPIClient(uri);
+            client = CLIENTS.putIfAbsent(uri, created);
+            if (client == null) {
+                client = created;
+            }
+        }
+        return client;
+    }
+
+    private final URI host;
+
+    private final BlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+
+    private final DockerApiLimiter limiter;
+
+    private EngineAPIClient(String uri) {
+        this.host = URI.create(uri);
+        this.limiter = DockerApiLimiter.forHost(uri);
+    }
+
+    public String getHost() {
+        return host.toString();
+    }
+
+    public Response get(String path) throws IOException {
+        return request("GET", path, null);
+    }
+
+    public Response delete(String path) throws IOException {
+        return request("DELETE", path, null);
+    }
+
+    public Response post(String path, JSONObject json) throws IOException {
+        return request("POST", path, json);
+    }
+
+    /**
+     * Send a request with a small JSON payload (or none). If a pooled connection has been closed by the daemon in
+     * the meantime, it is transparently replaced by a fresh one. Request is only sent again if daemon didn't start
+     * answering, so a non-idempotent one can't run twice.
+     */
+    public Response request(String method, String path, JSONObject json) throws IOException {
+        return request(method, path, json, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Same as {@link #request(String, String, JSONObject)}, with additional request headers, like
+     * <code>X-Registry-Auth</code>.
+     */
+    public Response request(String method, String path, JSONObject json, Map<String, String> headers) throws IOException {
+        final byte[] body = json != null ? json.toString().getBytes(StandardCharsets.UTF_8) : null;
+
+        final DockerApiLimiter.Permit permit = acquire(method, path);
+        // a hung daemon must fail the call, so host health and failover can kick in
+        final long timeout = isLongPolling(path) ? 0 : READ_TIMEOUT;
+        Response response = null;
+        try {
+            Connection connection = idle.pollFirst();
+            if (connection != null) {
+                try {
+                    response = send(connection, method, path, "application/json", headers, body, null, timeout);
+                    return response;
+                } catch (NotAnsweredException e) {
+                    // stale pooled connection, retry on a fresh one
+                }
+            }
+            response = send(connect(), method, path, "application/json", headers, body, null, timeout);
+            return response;
+        } finally {
+            release(permit, path, response, true);
+        }
+    }
+
+    /**
+     * Send a request streaming it's payload using chunked transfer encoding, typically a tar archive. Payload can
+     * take as long as needed to be produced, but a write daemon doesn't accept within {@link #WRITE_TIMEOUT}, or no
+     * answer within {@link #READ_TIMEOUT} once payload is fully sent, fails the call.
+     */
+    public Response stream(String method, String path, String contentType, Payload payload) throws IOException {
+        final DockerApiLimiter.Permit permit = acquire(method, path);
+        Response response = null;
+        try {
+            response = send(connect(), method, path, contentType, Collections.<String, String>emptyMap(), null, payload, READ_TIMEOUT);
+            return response;
+        } finally {
+            // duration depends on payload size
+            release(permit, path, response, false);
+        }
+    }
+
+    /**
+     * Wait for a {@link DockerApiLimiter} permit, held until daemon sent response headers, or until response is
+     * closed for requests which response streams progress of the work, like pulling or building an image.
+     * @return <code>null</code> for long-polling requests, which aren't limited
+     */
+    private DockerApiLimiter.Permit acquire(String method, String path) throws IOException {
+        if (isLongPolling(path)) {
+            return null;
+        }
+        return limiter.acquireInterruptibly("GET".equals(method) ? DockerApiLimiter.Kind.LIGHT : DockerApiLimiter.Kind.HEAVY);
+    }
+
+    /**
+     * Does daemon only answer request once something happens, like a container exiting?
+     */
+    private static boolean isLongPolling(String path) {
+        return path.startsWith("/events") || path.contains("/wait");
+    }
+
+    /**
+     * Release permit once daemon sent response headers, unless response streams progress of the work, in which case
+     * response holds it until closed. Such a request's duration reflects the work, not daemon responsiveness.
+     * @param sample whether duration should adapt window, if daemon did answer
+     */
+    private static void release(DockerApiLimiter.Permit permit, String path, Response response, boolean sample) {
+        if (permit == null) return;
+        if (response != null && (path.startsWith("/images/create") || path.startsWith("/build"))) {
+            response.permit = permit;
+        } else {
+            permit.release(sample && response != null);
+        }
+    }
+
+    /**
+     * Send a request to be upgraded into a raw bidirectional stream, as used to attach to a container's or exec's
+     * stdio. Returned connection is owned by the caller, and never returned to the pool.
+     */
+    public Connection hijack(String path, JSONObject json) throws IOException {
+        final Connection connection = connect();
+        final byte[] body = json != null ? json.toString().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        final ScheduledFuture<?> watchdog = watchdog(connection, READ_TIMEOUT);
+        try {
+            writeHead(connection, "POST", path, "application/json", Collections.<String, String>emptyMap(), body.length, true);
+            connection.out.write(body);
+            connection.out.flush();
+
+            final String statusLine = readLine(connection.in);
+            final int status = parseStatus(statusLine);
+            final Map<String, String> headers = readHeaders(connection.in);
+            if (watchdog != null && !watchdog.cancel(false)) {
+                throw new IOException("Connection closed by watchdog");
+            }
+            if (status != 101 && status != 200) {
+                final Response response = new Response(this, connection, status, headers);
+                throw new IOException(path + " failed: " + response.error());
+            }
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw timedOut(watchdog, e, "POST", path, READ_TIMEOUT);
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * @param timeout how long to wait for response headers before closing connection, <code>0</code> to wait forever.
+     *                With a payload, only starts once payload has been sent.
+     */
+    private Response send(Connection connection, String method, String path, String contentType, Map<String, String> headers, byte[] body, Payload payload, long timeout) throws IOException {
+        ScheduledFuture<?> watchdog = null;
+        StallGuard stallGuard = null;
+        boolean answered = false;
+        try {
+            if (payload != null) {
+                writeHead(connection, method, path, contentType, headers, -1, false);
+                stallGuard = new StallGuard(connection, WRITE_TIMEOUT);
+                final ChunkedOutputStream chunked = new ChunkedOutputStream(stallGuard);
+                payload.writeTo(chunked);
+                chunked.finish();
+                stallGuard.stop();
+                watchdog = watchdog(connection, timeout);
+            } else {
+                watchdog = watchdog(connection, timeout);
+                writeHead(connection, method, path, contentType, headers, body != null ? body.length : 0, false);
+                if (body != null) {
+                    connection.out.write(body);
+                }
+            }
+            connection.out.flush();
+
+            // once daemon starts answering, it did receive the request
+            connection.in.mark(1);
+            if (connection.in.read() == -1) {
+                throw new EOFException("Connection closed by docker daemon");
+            }
+            connection.in.reset();
+            answered = true;
+
+            final int status = parseStatus(readLine(connection.in));
+            final Map<String, String> responseHeaders = readHeaders(connection.in);
+            if (watchdog != null && !watchdog.cancel(false)) {
+                throw new IOException("Connection closed by watchdog");
+            }
+            return new Response(this, connection, status, responseHeaders);
+        } catch (IOException e) {
+            connection.close();
+            if (stallGuard != null && stallGuard.stalled) {
+                final SocketTimeoutException timeoutException = new SocketTimeoutException("Docker daemon " + host + " did not read payload of " + method + " " + path + " for " + WRITE_TIMEOUT + "ms");
+                timeoutException.initCause(e);
+                throw timeoutException;
+            }
+            final IOException failure = timedOut(watchdog, e, method, path, timeout);
+            throw failure == e && !answered ? new NotAnsweredException(e) : failure;
+        } finally {
+            if (stallGuard != null) {
+                stallGuard.stop();
+            }
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Close connection if daemon doesn't answer in time, as this is the only way to interrupt a blocked read on a
+     * unix socket.
+     * @return <code>null</code> if there's no timeout
+     */
+    private static ScheduledFuture<?> watchdog(final Connection connection, long timeout) {
+        if (timeout <= 0) {
+            return null;
+        }
+        return Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                connection.close();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Report a failure caused by watchdog closing the connection as a timeout.
+     */
+    private IOException timedOut(ScheduledFuture<?> watchdog, IOException e, String method, String path, long timeout) {
+        if (watchdog != null && watchdog.isDone() && !watchdog.isCancelled()) {
+            final SocketTimeoutException timeoutException = new SocketTimeoutException("Docker daemon " + host + " did not answer " + method + " " + path + " within " + timeout + "ms");
+            timeoutException.initCause(e);
+            return timeoutException;
+        }
+        return e;
+    }
+
+    private void writeHead(Connection connection, String method, String path, String contentType, Map<String, String> headers, int length, boolean upgrade) throws IOException {
+        final StringBuilder head = new StringBuilder()
+                .append(method).append(' ').append(API_VERSION).append(path).append(" HTTP/1.1\r\n")
+                .append("Host: docker\r\n")
+                .append("User-Agent: docker-slaves-plugin\r\n");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (upgrade) {
+            head.append("Connection: Upgrade\r\n")
+                .append("Upgrade: tcp\r\n");
+        }
+        if (length > 0 || upgrade) {
+            head.append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n");
+        } else if (length < 0) {
+            head.append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Transfer-Encoding: chunked\r\n");
+        } else if (!"GET".equals(method) && !"DELETE".equals(method)) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+        connection.out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private Connection connect() throws IOException {
+        if ("unix".equals(host.getScheme())) {
+            final UnixSocketChannel channel = UnixSocketChannel.open(new UnixSocketAddress(new File(host.getPath())));
+            // Channels streams over a SelectableChannel do serialize reads and writes, which would deadlock a
+            // full-duplex attached stream, so we hide the channel behind a plain ByteChannel.
+            final ByteChannel unselectable = new ByteChannel() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    return channel.read(dst);
+                }
+
+                @Override
+                public int write(ByteBuffer src) throws IOException {
+                    return channel.write(src);
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+            return new Connection(unselectable, Channels.newInputStream(unselectable), Channels.newOutputStream(unselectable));
+        }
+
+        final Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host.getHost(), host.getPort() > 0 ? host.getPort() : 2375), CONNECT_TIMEOUT);
+        socket.setTcpNoDelay(true);
+        return new Connection(socket, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    private void release(Connection connection) {
+        if (idle.size() >= MAX_IDLE_CONNECTIONS || !idle.offerFirst(connection)) {
+            connection.close();
+        }
+    }
+
+    public static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        if (statusLine == null) {
+            throw new EOFException("Connection closed by docker daemon");
+        }
+        final String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("Unexpected response from docker daemon: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected response from docker daemon: " + statusLine);
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        final Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Read a CRLF terminated line, without buffering anything past the line terminator.
+     */
+    static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        final String s = line.toString("ISO-8859-1");
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /**
+     * Daemon closed connection without answering, typically a pooled connection it considered idle, so request can
+     * be sent again.
+     */
+    private static final class NotAnsweredException extends IOException {
+        NotAnsweredException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * A request payload to be streamed to the daemon.
+     */
+    public interface Payload {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A connection to the docker daemon.
+     */
+    public static final class Connection implements Closeable {
+
+        private final Closeable socket;
+
+        final InputStream in;
+
+        final OutputStream out;
+
+        Connection(Closeable socket, InputStream in, OutputStream out) {
+            this.socket = socket;
+            this.in = new BufferedInputStream(in);
+            this.out = new BufferedOutputStream(out);
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Response from docker daemon. Closing a response which body has been fully consumed returns the underlying
+     * connection to the pool.
+     */
+    public static final class Response implements Closeable {
+
+        private final EngineAPIClient client;
+
+        private final Connection connection;
+
+        private final int status;
+
+        private final Map<String, String> headers;
+
+        private final BodyInputStream body;
+
+        /** {@link DockerApiLimiter} permit held until response is closed */
+        private DockerApiLimiter.Permit permit;
+
+        private boolean closed;
+
+        Response(EngineAPIClient client, Connection connection, int status, Map<String, String> headers) {
+            this.client = client;
+            this.connection = connection;
+            this.status = status;
+            this.headers = headers;
+
+            final String contentLength = headers.get("content-length");
+            if (status == 204 || status == 304) {
+                body = new BodyInputStream(connection.in, 0);
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = new BodyInputStream(connection.in, BodyInputStream.CHUNKED);
+            } else if (contentLength != null) {
+                body = new BodyInputStream(connection.in, Long.parseLong(contentLength));
+            } else {
+                body = new BodyInputStream(connection.in, BodyInputStream.UNTIL_CLOSE);
+            }
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public boolean isSuccessful() {
+            return status >= 200 && status < 300;
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        public String text() throws IOException {
+            try {
+                return IOUtils.toString(body, StandardCharsets.UTF_8.name());
+            } finally {
+                close();
+            }
+        }
+
+        public JSONObject json() throws IOException {
+            return JSONObject.fromObject(text());
+        }
+
+        public JSONArray jsonArray() throws IOException {
+            return JSONArray.fromObject(text());
+        }
+
+        /**
+         * Consume the response and extract error message sent by daemon.
+         */
+        public String error() throws IOException {
+            final String text = text();
+            try {
+                final JSONObject json = JSONObject.fromObject(text);
+                if (json.has("message")) {
+                    return status + " " + json.getString("message");
+                }
+            } catch (RuntimeException e) {
+                // not a json error message
+            }
+            return status + " " + text.trim();
+        }
+
+        /**
+         * Fail with adequate error message if daemon did not answer with a successful status code.
+         */
+        public Response check(String operation) throws IOException {
+            if (!isSuccessful()) {
+                throw new IOException(operation + " failed: " + error());
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            final String connectionHeader = headers.get("connection");
+            if (body.isComplete() && !"close".equalsIgnoreCase(connectionHeader)) {
+                client.release(connection);
+            } else {
+                connection.close();
+            }
+            if (permit != null) {
+                permit.release(false);
+            }
+        }
+    }
+
+    /**
+     * Delimits a response body on the connection stream, according to HTTP framing.
+     */
+    private static final class BodyInputStream extends InputStream {
+
+        static final long CHUNKED = -1;
+
+        static final long UNTIL_CLOSE = -2;
+
+        private final InputStream in;
+
+        private final boolean chunked;
+
+        private final boolean untilClose;
+
+        private long remaining;
+
+        private boolean eof;
+
+        BodyInputStream(InputStream in, long length) {
+            this.in = in;
+            this.chunked = length == CHUNKED;
+            this.untilClose = length == UNTIL_CLOSE;
+            this.remaining = chunked || untilClose ? 0 : length;
+            this.eof = length == 0;
+        }
+
+        boolean isComplete() {
+            return eof && !untilClose;
+        }
+
+        private boolean fill() throws IOException {
+            if (eof) return false;
+            if (untilClose) return true;
+            if (remaining > 0) return true;
+            if (!chunked) {
+                eof = true;
+                return false;
+            }
+            String size = readLine(in);
+            if (size != null && size.isEmpty()) {
+                // CRLF terminating previous chunk
+                size = readLine(in);
+            }
+            if (size == null) {
+                throw new EOFException("Unexpected end of chunked stream");
+            }
+            final int semicolon = size.indexOf(';');
+            remaining = Long.parseLong((semicolon > 0 ? size.substring(0, semicolon) : size).trim(), 16);
+            if (remaining == 0) {
+                // skip trailers
+                String trailer;
+                while ((trailer = readLine(in)) != null && trailer.length() > 0) {
+                    // ignore
+                }
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            final int b = in.read();
+            if (b == -1) {
+                eof = true;
+                return -1;
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            final int max = untilClose ? len : (int) Math.min(len, remaining);
+            final int n = in.read(b, off, max);
+            if (n == -1) {
+                eof = true;
+                return -1;
+            }
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Close connection if a write to daemon blocks for longer than timeout. A single periodic check rather than a
+     * watchdog per write, as a large payload means many writes.
+     */
+    private static final class StallGuard extends FilterOutputStream implements Runnable {
+
+        private final Connection connection;
+
+        private final long timeout;
+
+        private final ScheduledFuture<?> check;
+
+        /** when pending write started, <code>0</code> if none */
+        private volatile long writingSince;
+
+        volatile boolean stalled;
+
+        StallGuard(Connection connection, long timeout) {
+            super(connection.out);
+            this.connection = connection;
+            this.timeout = timeout;
+            final long period = Math.max(timeout / 4, 1);
+            this.check = timeout > 0 ? Timer.get().scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS) : null;
+        }
+
+        @Override
+        public void run() {
+            final long since = writingSince;
+            if (since != 0 && System.currentTimeMillis() - since > timeout) {
+                stalled = true;
+                connection.close();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writingSince = System.currentTimeMillis();
+            try {
+                out.write(b, off, len);
+            } finally {
+                writingSince = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writingSince = System.currentTimeMillis();
+            try {
+                out.flush();
+            } finally {
+                writingSince = 0;
+            }
+        }
+
+        void stop() {
+            if (check != null) {
+                check.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Encode written data using HTTP chunked transfer encoding.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b, off, len);
+            out.write(CRLF);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // payload writers may close the stream, underlying connection is managed by client
+            flush();
+        }
+
+        void finish() throws IOException {
+            out.write('0');
+            out.write(CRLF);
+            out.write(CRLF);
+            out.flush();
+        }
+
+        private static final byte[] CRLF = {'\r', '\n'};
+    }
+}
@@ -0,0 +1,967 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Computer;
+import hudson.model.Slave;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.util.DirScanner;
+import hudson.util.io.Archiver;
+import hudson.util.io.ArchiverFactory;
+import it.dockins.dockerslaves.Container;
+import it.dockins.dockerslaves.DockerComputer;
+import it.dockins.dockerslaves.HostHealth;
+import it.dockins.dockerslaves.ResourceLabels;
+import it.dockins.dockerslaves.hints.MemoryHint;
+import it.dockins.dockerslaves.hints.VolumeHint;
+import it.dockins.dockerslaves.spec.Hint;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import it.dockins.dockerslaves.spi.DockerHostConfig;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static it.dockins.dockerslaves.DockerSlave.SLAVE_ROOT;
+
+/**
+ * {@link DockerDriver} implementation relying on Docker Engine API, without need for a <code>docker</code>
+ * executable. All operations, including the remoting channel and build processes stdio, are handled by the
+ * Jenkins JVM over (pooled) connections to the daemon.
+ */
+public class EngineAPIDockerDriver extends DockerDriver {
+
+    private final DockerHostConfig dockerHost;
+
+    private final EngineAPIClient client;
+
+    public EngineAPIDockerDriver(DockerHostConfig dockerHost) throws IOException, InterruptedException {
+        this.dockerHost = dockerHost;
+        this.client = EngineAPIClient.forHost(dockerHost.getHost());
+        // Also acts as sanity check to ensure daemon is reachable
+        final long start = System.currentTimeMillis();
+        try {
+            serverVersion(TaskListener.NULL);
+        } catch (IOException e) {
+            HostHealth.forHost(client.getHost()).failure();
+            throw e;
+        }
+        HostHealth.forHost(client.getHost()).success(System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        dockerHost.close();
+    }
+
+    @Override
+    public String createVolume(TaskListener listener) throws IOException, InterruptedException {
+        final String volume = client.post("/volumes/create", new JSONObject()
+                .element("Labels", labels()))
+                .check("Create docker volume").json().getString("Name");
+        ContainerIndex.forHost(client.getHost()).volumeCreated(volume);
+        return volume;
+    }
+
+    @Override
+    public String cloneVolume(TaskListener listener, String source, String image) throws IOException, InterruptedException {
+        final String volume = createVolume(listener);
+
+        final String containerId = createContainer(new JSONObject()
+                .element("Image", image)
+                .element("User", "0:0")
+                .element("Cmd", new JSONArray().element("sh").element("-c").element(CLONE_VOLUME_SCRIPT))
+                .element("HostConfig", new JSONObject()
+                        .element("Binds", new JSONArray()
+                                .element(source + ":/from:ro")
+                                .element(volume + ":/to"))));
+        final int status;
+        try {
+            startContainer(containerId);
+            status = client.post("/containers/" + containerId + "/wait", null)
+                    .check("Wait for container " + containerId).json().getInt("StatusCode");
+        } finally {
+            client.delete("/containers/" + containerId + "?force=1").close();
+        }
+
+        if (status != 0) {
+            removeVolume(listener, volume);
+            throw new IOException("Failed to copy volume " + source + ", exit code " + status);
+        }
+        return volume;
+    }
+
+    @Override
+    public boolean hasVolume(TaskListener listener, String name) throws IOException, InterruptedException {
+        if (StringUtils.isEmpty(name)) {
+            return false;
+        }
+        final ContainerIndex index = containerIndex();
+        if (index.isIndexed() && index.hasVolume(name)) {
+            return true;
+        }
+        // not indexed, or volume created before we labelled them
+        return exists(client.get("/volumes/" + EngineAPIClient.encode(name)));
+    }
+
+    @Override
+    public boolean hasContainer(TaskListener listener, String id) throws IOException, InterruptedException {
+        if (StringUtils.isEmpty(id)) {
+            return false;
+        }
+        final ContainerIndex index = containerIndex();
+        if (index.isIndexed()) {
+            return index.hasContainer(id);
+        }
+        return exists(client.get("/containers/" + id + "/json"));
+    }
+
+    @Override
+    public String getHost() {
+        return client.getHost();
+    }
+
+    @Override
+    public void watchContainer(Container container, DockerComputer computer) throws IOException, InterruptedException {
+        containerIndex().watch(container.getId(), computer);
+    }
+
+    /**
+     * Get index of plugin's containers and volumes, seeding it from docker host if we just (re)connected to host's
+     * event stream.
+     */
+    private ContainerIndex containerIndex() throws IOException {
+        subscribeEvents();
+        final ContainerIndex index = ContainerIndex.forHost(client.getHost());
+        final long generation = index.needsSeed();
+        if (generation >= 0) {
+            final String filters = EngineAPIClient.encode(new JSONObject()
+                    .element("label", new JSONArray().element(ContainerIndex.LABEL)).toString());
+
+            final List<String> containers = new ArrayList<>();
+            for (Object container : client.get("/containers/json?all=1&filters=" + filters).check("List containers").jsonArray()) {
+                containers.add(((JSONObject) container).getString("Id"));
+            }
+            final List<String> volumes = new ArrayList<>();
+            final JSONArray list = client.get("/volumes?filters=" + filters).check("List volumes").json().optJSONArray("Volumes");
+            if (list != null) {
+                for (Object volume : list) {
+                    volumes.add(((JSONObject) volume).getString("Name"));
+                }
+            }
+            index.seed(generation, containers, volumes);
+        }
+        return index;
+    }
+
+    @Override
+    public Container launchRemotingContainer(TaskListener listener, String image, String volume, DockerComputer computer) throws IOException, InterruptedException {
+        final Container remotingContainer = createRemotingContainer(listener, image, volume);
+        startRemotingContainer(listener, remotingContainer, computer);
+        return remotingContainer;
+    }
+
+    @Override
+    public Container createRemotingContainer(TaskListener listener, String image, String volume) throws IOException, InterruptedException {
+
+        // Shared volume provides slave.jar for current remoting version
+        final String remotingVolume = prepareRemotingVolume(image);
+
+        final JSONObject hostConfig = new JSONObject()
+                // We disable container logging as we rely on attached stdio as transport for jenkins remoting
+                .element("LogConfig", new JSONObject().element("Type", "none"))
+                .element("AutoRemove", true)
+                .element("Binds", new JSONArray()
+                        .element(volume + ":" + SLAVE_ROOT)
+                        .element(remotingVolume + ":" + RemotingVolume.MOUNT_POINT + ":ro"));
+
+        final JSONObject config = new JSONObject()
+                .element("Image", image)
+                .element("User", "10000:10000")
+                .element("Env", new JSONArray().element("TMPDIR=" + SLAVE_ROOT + ".tmp"))
+                .element("OpenStdin", true)
+                .element("StdinOnce", true)
+                .element("AttachStdin", true)
+                .element("AttachStdout", true)
+                .element("AttachStderr", true)
+                // set TMP directory within the /home/jenkins/ volume so it can be shared with other containers
+                .element("Cmd", new JSONArray()
+                        .element("java")
+                        .element("-Djava.io.tmpdir=" + SLAVE_ROOT + ".tmp")
+                        .element("-jar").element(RemotingVolume.MOUNT_POINT + "slave.jar"))
+                .element("HostConfig", hostConfig);
+
+        return new Container(image, createContainer(config));
+    }
+
+    @Override
+    public void startRemotingContainer(TaskListener listener, Container remotingContainer, DockerComputer computer) throws IOException, InterruptedException {
+        final String containerId = remotingContainer.getId();
+
+        // Attach before start so we don't miss any byte, then establish channel over stdin/stdout
+        final EngineAPIClient.Connection connection = client.hijack("/containers/" + containerId + "/attach?stream=1&stdin=1&stdout=1&stderr=1", null);
+        try {
+            startContainer(containerId);
+            computer.setChannel(new DemuxInputStream(connection.getInputStream(), listener.getLogger()),
+                    connection.getOutputStream(), listener.getLogger(), new Channel.Listener() {
+                        @Override
+                        public void onClosed(Channel channel, IOException cause) {
+                            connection.close();
+                        }
+                    });
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Ensure the shared remoting volume for current remoting version is available on docker host. Volume is
+     * populated once per Jenkins JVM, then volumes for other remoting versions are garbage collected.
+     */
+    protected String prepareRemotingVolume(String image) throws IOException, InterruptedException {
+        final RemotingVolume volume = RemotingVolume.forHost(client.getHost());
+        synchronized (volume) {
+            if (volume.isReady()) {
+                return volume.getName();
+            }
+
+            client.post("/volumes/create", new JSONObject()
+                    .element("Name", volume.getName())
+                    .element("Labels", new JSONObject().element(RemotingVolume.LABEL, volume.getVersion())))
+                    .check("Create remoting volume").close();
+
+            // Use a transient container to copy slave.jar into the volume
+            final String containerId = createContainer(new JSONObject()
+                    .element("Image", image)
+                    .element("Cmd", new JSONArray().element("true"))
+                    .element("HostConfig", new JSONObject()
+                            .element("Binds", new JSONArray().element(volume.getName() + ":" + RemotingVolume.MOUNT_POINT))));
+            try {
+                putFileContent(containerId, RemotingVolume.MOUNT_POINT, "slave.jar", new Slave.JnlpJar("slave.jar").readFully(), null);
+            } finally {
+                client.delete("/containers/" + containerId + "?force=1").close();
+            }
+
+            // Garbage collect volumes for other remoting versions
+            final JSONObject filters = new JSONObject().element("label", new JSONArray().element(RemotingVolume.LABEL));
+            final JSONObject volumes = client.get("/volumes?filters=" + EngineAPIClient.encode(filters.toString())).check("List volumes").json();
+            final JSONArray list = volumes.optJSONArray("Volumes");
+            if (list != null) {
+                for (Object o : list) {
+                    final String name = ((JSONObject) o).getString("Name");
+                    if (name.equals(volume.getName())) continue;
+                    try (EngineAPIClient.Response response = client.delete("/volumes/" + EngineAPIClient.encode(name))) {
+                        if (!response.isSuccessful()) {
+                            // most probably still used by a running build
+                            LOGGER.log(Level.FINE, "Failed to remove remoting volume " + name + ": " + response.error());
+                        }
+                    }
+                }
+            }
+
+            volume.setReady();
+            return volume.getName();
+        }
+    }
+
+    @Override
+    public Container launchBuildContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
+        final Container buildContainer = createBuildContainer(listener, image, remotingContainer, hints);
+        startContainer(buildContainer.getId());
+        return buildContainer;
+    }
+
+    @Override
+    public Container createBuildContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
+        final DecoratedImageCache cache = DecoratedImageCache.forHost(client.getHost());
+        if (!cache.isSeeded()) {
+            cache.seed(listDecoratedImages());
+        }
+
+        final String imageId = inspectImageId(image);
+        final String decorated = imageId != null ? DecoratedImageCache.decoratedImage(imageId) : null;
+
+        String containerId = null;
+        boolean useDecorated = false;
+        if (decorated != null && cache.contains(decorated)) {
+            try {
+                containerId = createContainer(buildContainerConfig(decorated, remotingContainer, hints));
+                useDecorated = true;
+            } catch (IOException e) {
+                // decorated image has been removed from docker host
+                LOGGER.log(Level.FINE, "Failed to use decorated image " + decorated, e);
+                cache.forget(decorated);
+            }
+        }
+
+        if (containerId == null) {
+            containerId = createContainer(buildContainerConfig(image, remotingContainer, hints));
+            decorateBuildContainer(containerId);
+            if (decorated != null) {
+                useDecorated = commitDecoratedImage(containerId, imageId, decorated);
+            }
+        }
+
+        if (useDecorated) {
+            for (String evicted : cache.use(image, decorated)) {
+                if (removeImage(evicted)) {
+                    cache.removed(evicted);
+                }
+            }
+        }
+
+        return new Container(image, containerId);
+    }
+
+    @Override
+    public void startContainer(TaskListener listener, Container container) throws IOException, InterruptedException {
+        startContainer(container.getId());
+    }
+
+    private JSONObject buildContainerConfig(String image, Container remotingContainer, List<Hint> hints) {
+        return new JSONObject()
+                .element("Image", image)
+                .element("User", "10000:10000")
+                .element("WorkingDir", SLAVE_ROOT)
+                .element("Env", new JSONArray().element("TMPDIR=" + SLAVE_ROOT + ".tmp"))
+                .element("Cmd", new JSONArray().element("/trampoline").element("wait"))
+                .element("HostConfig", podHostConfig(remotingContainer, hints));
+    }
+
+    /**
+     * Commit a freshly decorated build container as a decorated image, so next build containers for the same
+     * base image don't need any file injection.
+     */
+    protected boolean commitDecoratedImage(String containerId, String imageId, String decorated) throws IOException {
+        final int colon = decorated.lastIndexOf(':');
+        final String query = "container=" + containerId
+                + "&repo=" + EngineAPIClient.encode(decorated.substring(0, colon))
+                + "&tag=" + EngineAPIClient.encode(decorated.substring(colon + 1))
+                + "&changes=" + EngineAPIClient.encode("LABEL " + DecoratedImageCache.LABEL + "=" + imageId);
+        try (EngineAPIClient.Response response = client.post("/commit?" + query, new JSONObject())) {
+            if (!response.isSuccessful()) {
+                LOGGER.log(Level.WARNING, "Failed to commit decorated image " + decorated + ": " + response.error());
+                return false;
+            }
+            return true;
+        }
+    }
+
+    protected List<String> listDecoratedImages() throws IOException {
+        final JSONObject filters = new JSONObject().element("label", new JSONArray().element(DecoratedImageCache.LABEL));
+        final List<String> images = new ArrayList<>();
+        for (Object image : client.get("/images/json?filters=" + EngineAPIClient.encode(filters.toString())).check("List images").jsonArray()) {
+            final JSONArray tags = ((JSONObject) image).optJSONArray("RepoTags");
+            if (tags == null) continue;
+            for (Object tag : tags) {
+                if (String.valueOf(tag).startsWith(DecoratedImageCache.REPOSITORY + ":")) {
+                    images.add(String.valueOf(tag));
+                }
+            }
+        }
+        return images;
+    }
+
+    protected String inspectImageId(String image) throws IOException {
+        try (EngineAPIClient.Response response = client.get("/images/" + image + "/json")) {
+            if (!response.isSuccessful()) {
+                return null;
+            }
+            return response.json().getString("Id");
+        }
+    }
+
+    /**
+     * @return <code>false</code> if image is still on docker host
+     */
+    protected boolean removeImage(String image) throws IOException {
+        try (EngineAPIClient.Response response = client.delete("/images/" + image)) {
+            if (response.getStatus() == 404) {
+                return true;
+            }
+            if (!response.isSuccessful()) {
+                // most probably still used by a container
+                LOGGER.log(Level.FINE, "Failed to remove image " + image + ": " + response.error());
+                return false;
+            }
+            IOUtils.copy(response.getBody(), new NullOutputStream());
+            return true;
+        }
+    }
+
+    @Override
+    public Container launchSideContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
+        final Container container = createSideContainer(listener, image, remotingContainer, hints);
+        startContainer(container.getId());
+        return container;
+    }
+
+    @Override
+    public Container createSideContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
+        final JSONObject config = new JSONObject()
+                .element("Image", image)
+                .element("HostConfig", podHostConfig(remotingContainer, hints));
+
+        return new Container(image, createContainer(config));
+    }
+
+    /**
+     * Configure a container to join the pod, sharing remoting container's volumes, network and ipc namespaces.
+     */
+    private JSONObject podHostConfig(Container remotingContainer, List<Hint> hints) {
+        final JSONObject hostConfig = new JSONObject()
+                .element("VolumesFrom", new JSONArray().element(remotingContainer.getId()))
+                .element("NetworkMode", "container:" + remotingContainer.getId())
+                .element("IpcMode", "container:" + remotingContainer.getId());
+
+        if (hints != null) {
+            final JSONArray binds = new JSONArray();
+            for (Hint hint : hints) {
+                if (hint instanceof MemoryHint) {
+                    hostConfig.element("Memory", ((MemoryHint) hint).getMemoryInBytes());
+                } else if (hint instanceof VolumeHint) {
+                    binds.element(((VolumeHint) hint).getVolume());
+                } else {
+                    // unsupported hint, just ignored
+                }
+            }
+            if (!binds.isEmpty()) {
+                hostConfig.element("Binds", binds);
+            }
+        }
+        return hostConfig;
+    }
+
+    /**
+     * Inject jenkins user and group, as well as <code>/trampoline</code>, into a created build container, using a
+     * single read of container's <code>/etc</code> and a single streamed upload.
+     */
+    protected void decorateBuildContainer(String containerId) throws IOException, InterruptedException {
+        final BuildContainerDecoration decoration;
+        try (EngineAPIClient.Response response = client.get("/containers/" + containerId + "/archive?path=/etc")) {
+            response.check("Read /etc from container " + containerId);
+            decoration = BuildContainerDecoration.fromEtcArchive(response.getBody());
+        }
+
+        client.stream("PUT", "/containers/" + containerId + "/archive?path=/", "application/x-tar", new EngineAPIClient.Payload() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                decoration.writeTo(out);
+            }
+        }).check("Decorate container " + containerId).close();
+    }
+
+    protected void putFileContent(String containerId, String path, final String filename, final byte[] content, final Integer mode) throws IOException, InterruptedException {
+        client.stream("PUT", "/containers/" + containerId + "/archive?path=" + EngineAPIClient.encode(path), "application/x-tar", new EngineAPIClient.Payload() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                TarEntry entry = new TarEntry(filename);
+                entry.setUserId(0);
+                entry.setGroupId(0);
+                entry.setSize(content.length);
+                if (mode != null) {
+                    entry.setMode(mode);
+                }
+
+                TarOutputStream tar = new TarOutputStream(out);
+                tar.putNextEntry(entry);
+                tar.write(content);
+                tar.closeEntry();
+                tar.close();
+            }
+        }).check("Put file " + filename).close();
+    }
+
+    @Override
+    public String getContainerHealth(TaskListener listener, Container container) throws IOException, InterruptedException {
+        final JSONObject state = client.get("/containers/" + container.getId() + "/json")
+                .check("Inspect container " + container.getId()).json().getJSONObject("State");
+        final JSONObject health = state.optJSONObject("Health");
+        return health != null && !health.isNullObject() ? health.getString("Status") : null;
+    }
+
+    @Override
+    public Proc execInContainer(TaskListener listener, String containerId, Launcher.ProcStarter starter) throws IOException, InterruptedException {
+        final JSONArray cmd = new JSONArray();
+        if (starter.pwd() != null) {
+            cmd.element("/trampoline").element("cdexec").element(starter.pwd().getRemote());
+        }
+
+        cmd.element("env");
+        if (starter.envs() != null) {
+            for (String env : starter.envs()) {
+                cmd.element(env);
+            }
+        }
+        for (String arg : starter.cmds()) {
+            cmd.element(arg);
+        }
+
+        final JSONObject config = new JSONObject()
+                .element("AttachStdout", true)
+                .element("AttachStderr", true)
+                .element("Cmd", cmd);
+
+        final String execId = client.post("/containers/" + containerId + "/exec", config)
+                .check("Create exec").json().getString("Id");
+
+        final EngineAPIClient.Connection connection = client.hijack("/exec/" + execId + "/start",
+                new JSONObject().element("Detach", false).element("Tty", false));
+
+        final OutputStream stdout = starter.stdout() != null ? starter.stdout() : new NullOutputStream();
+        final OutputStream stderr = starter.stderr() != null ? starter.stderr() : stdout;
+
+        final Future<?> pump = Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try {
+                    IOUtils.copy(new DemuxInputStream(connection.getInputStream(), stderr), stdout);
+                    stdout.flush();
+                } finally {
+                    connection.close();
+                }
+                return null;
+            }
+        });
+
+        return new ExecProc(execId, connection, pump);
+    }
+
+    /**
+     * A process ran by <code>docker exec</code>, which stdout/stderr are pumped from the attached connection.
+     */
+    private class ExecProc extends Proc {
+
+        private final String execId;
+
+        private final EngineAPIClient.Connection connection;
+
+        private final Future<?> pump;
+
+        ExecProc(String execId, EngineAPIClient.Connection connection, Future<?> pump) {
+            this.execId = execId;
+            this.connection = connection;
+            this.pump = pump;
+        }
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return !pump.isDone();
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            connection.close();
+            pump.cancel(true);
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            try {
+                pump.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to read process output", e.getCause());
+            } catch (CancellationException e) {
+                // process has been killed
+                return -1;
+            }
+
+            final JSONObject exec = client.get("/exec/" + execId + "/json").check("Inspect exec").json();
+            final Object exitCode = exec.opt("ExitCode");
+            return exitCode instanceof Number ? ((Number) exitCode).intValue() : -1;
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+
+    @Override
+    public void removeContainer(TaskListener listener, Container instance) throws IOException, InterruptedException {
+        ContainerIndex.forHost(client.getHost()).removing(instance.getId());
+        try (EngineAPIClient.Response response = client.delete("/containers/" + instance.getId() + "?force=1")) {
+            if (!response.isSuccessful() && response.getStatus() != 404) {
+                throw new IOException("Failed to remove container " + instance.getId() + ": " + response.error());
+            }
+        }
+    }
+
+    @Override
+    public void pullImage(TaskListener listener, String image) throws IOException, InterruptedException {
+        pullImage(listener, image, ImagePullCoordinator.Priority.BLOCKING);
+    }
+
+    @Override
+    public void prefetchImage(TaskListener listener, String image) throws IOException, InterruptedException {
+        pullImage(listener, image, ImagePullCoordinator.Priority.SPECULATIVE);
+    }
+
+    private void pullImage(TaskListener listener, String image, ImagePullCoordinator.Priority priority) throws IOException, InterruptedException {
+        final String auth = RegistryAuth.forImage(image, dockerHost.getEnvironment().get("DOCKER_CONFIG", System.getenv("DOCKER_CONFIG")));
+        ImagePullCoordinator.forHost(client.getHost()).pull(image, listener, priority, new Puller(client, image, auth));
+    }
+
+    /**
+     * Only relies on the shared client, not on this driver, as a coalesced pull may still run once the build which
+     * queued it completed, and closed it's driver.
+     */
+    private static final class Puller implements ImagePullCoordinator.Puller {
+
+        private final EngineAPIClient client;
+
+        private final String image;
+
+        /** <code>X-Registry-Auth</code> header, resolved while driver is still open */
+        private final String auth;
+
+        Puller(EngineAPIClient client, String image, String auth) {
+            this.client = client;
+            this.image = image;
+            this.auth = auth;
+        }
+
+        @Override
+        public void pull(TaskListener listener) throws IOException, InterruptedException {
+            doPullImage(client, listener, image, auth);
+        }
+    }
+
+    /**
+     * @param auth <code>X-Registry-Auth</code> header, <code>null</code> to pull anonymously
+     */
+    private static void doPullImage(EngineAPIClient client, TaskListener listener, String image, String auth) throws IOException, InterruptedException {
+        final Map<String, String> headers = auth != null
+                ? Collections.singletonMap("X-Registry-Auth", auth)
+                : Collections.<String, String>emptyMap();
+        try (EngineAPIClient.Response response = client.request("POST", "/images/create?" + imageQuery(image), null, headers)) {
+            response.check("Pull image " + image);
+            consumeProgress(response.getBody(), listener.getLogger(), "Failed to pull image " + image);
+        }
+        ImagePresenceCache.forHost(client.getHost()).present(image);
+    }
+
+    /**
+     * Split image reference into <code>fromImage</code> and <code>tag</code> parameters, so the daemon does not
+     * pull all tags for a repository when none is set.
+     */
+    private static String imageQuery(String image) {
+        if (image.contains("@")) {
+            return "fromImage=" + EngineAPIClient.encode(image);
+        }
+        final int colon = image.lastIndexOf(':');
+        if (colon > image.lastIndexOf('/')) {
+            return "fromImage=" + EngineAPIClient.encode(image.substring(0, colon))
+                    + "&tag=" + EngineAPIClient.encode(image.substring(colon + 1));
+        }
+        return "fromImage=" + EngineAPIClient.encode(image) + "&tag=latest";
+    }
+
+    @Override
+    public boolean checkImageExists(TaskListener listener, String image) throws IOException, InterruptedException {
+        final ImagePresenceCache cache = imagePresenceCache();
+        if (cache.isPresent(image)) {
+            return true;
+        }
+        final boolean exists = exists(client.get("/images/" + image + "/json"));
+        if (exists) {
+            cache.present(image);
+        }
+        return exists;
+    }
+
+    private ImagePresenceCache imagePresenceCache() {
+        subscribeEvents();
+        return ImagePresenceCache.forHost(client.getHost());
+    }
+
+    /**
+     * Follow docker host's events, so per-host caches get invalidated as the daemon reports changes.
+     */
+    private void subscribeEvents() {
+        // only relies on host's shared client, so source remains usable once this driver is closed
+        DockerEventsMonitor.forHost(client.getHost()).subscribe(new DockerEventsMonitor.Source() {
+            @Override
+            public InputStream open() throws IOException {
+                final JSONObject filters = new JSONObject().element("type", new JSONArray()
+                        .element("image").element("container").element("volume"));
+                final EngineAPIClient.Response response = client.get("/events?filters=" + EngineAPIClient.encode(filters.toString()));
+                if (!response.isSuccessful()) {
+                    throw new IOException("Failed to subscribe to docker events: " + response.error());
+                }
+                return new FilterInputStream(response.getBody()) {
+                    @Override
+                    public void close() {
+                        response.close();
+                    }
+                };
+            }
+        });
+    }
+
+    @Override
+    public void buildDockerfile(TaskListener listener, String dockerfilePath, String tag, boolean pull) throws IOException, InterruptedException {
+        final File context = new File(dockerfilePath);
+        try (EngineAPIClient.Response response = client.stream("POST", "/build?t=" + EngineAPIClient.encode(tag) + "&pull=" + (pull ? 1 : 0),
+                "application/x-tar", new EngineAPIClient.Payload() {
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        Archiver archiver = ArchiverFactory.TAR.create(out);
+                        try {
+                            new DirScanner.Full().scan(context, archiver);
+                        } finally {
+                            archiver.close();
+                        }
+                    }
+                })) {
+            response.check("Build docker image from Dockerfile " + dockerfilePath);
+            consumeProgress(response.getBody(), listener.getLogger(), "Failed to build docker image from Dockerfile " + dockerfilePath);
+        }
+    }
+
+    /**
+     * Daemon reports progress for long running operations as a stream of JSON messages. Dump them in build log
+     * and detect errors, as HTTP status code has already been sent when the operation actually fails.
+     */
+    private static void consumeProgress(InputStream in, PrintStream logger, String failure) throws IOException {
+        String line;
+        while ((line = EngineAPIClient.readLine(in)) != null) {
+            if (StringUtils.isBlank(line)) continue;
+            final JSONObject message;
+            try {
+                message = JSONObject.fromObject(line);
+            } catch (RuntimeException e) {
+                logger.println(line);
+                continue;
+            }
+            if (message.has("error")) {
+                throw new IOException(failure + ": " + message.getString("error"));
+            }
+            if (message.has("stream")) {
+                logger.print(message.getString("stream"));
+            } else if (message.has("status")) {
+                if (message.has("progressDetail") && !message.getJSONObject("progressDetail").isEmpty()) {
+                    // skip download progress bars
+                    continue;
+                }
+                logger.println(message.has("id") ? message.getString("id") + ": " + message.getString("status") : message.getString("status"));
+            }
+        }
+    }
+
+    @Override
+    public String serverVersion(TaskListener listener) throws IOException, InterruptedException {
+        try {
+            return client.get("/version").check("Get version").json().getString("Version");
+        } catch (IOException e) {
+            throw new IOException("Failed to connect to docker API", e);
+        }
+    }
+
+    /**
+     * Labels for a container or volume being created.
+     */
+    private JSONObject labels() {
+        final JSONObject labels = new JSONObject();
+        for (Map.Entry<String, String> label : getLabels().entrySet()) {
+            labels.element(label.getKey(), label.getValue());
+        }
+        return labels;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> listContainers(TaskListener listener, String label, String value) throws IOException, InterruptedException {
+        final Map<String, Map<String, String>> containers = new HashMap<>();
+        for (Object container : client.get("/containers/json?all=1&filters=" + labelFilter(label, value)).check("List containers").jsonArray()) {
+            containers.put(((JSONObject) container).getString("Id"), resourceLabels(((JSONObject) container).optJSONObject("Labels")));
+        }
+        return containers;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> listVolumes(TaskListener listener, String label, String value) throws IOException, InterruptedException {
+        final Map<String, Map<String, String>> volumes = new HashMap<>();
+        final JSONArray list = client.get("/volumes?filters=" + labelFilter(label, value)).check("List volumes").json().optJSONArray("Volumes");
+        if (list != null) {
+            for (Object volume : list) {
+                volumes.put(((JSONObject) volume).getString("Name"), resourceLabels(((JSONObject) volume).optJSONObject("Labels")));
+            }
+        }
+        return volumes;
+    }
+
+    @Override
+    public Map<String, Long> getVolumeSizes(TaskListener listener) throws IOException, InterruptedException {
+        final Map<String, Long> sizes = new HashMap<>();
+        final JSONArray volumes = client.get("/system/df").check("Get disk usage").json().optJSONArray("Volumes");
+        if (volumes != null) {
+            for (Object o : volumes) {
+                final JSONObject volume = (JSONObject) o;
+                final JSONObject usage = volume.optJSONObject("UsageData");
+                if (usage == null || usage.isNullObject()) continue;
+                final long size = usage.optLong("Size", -1);
+                if (size >= 0) {
+                    sizes.put(volume.getString("Name"), size);
+                }
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public long getMemoryTotal(TaskListener listener) throws IOException, InterruptedException {
+        return client.get("/info").check("Get system info").json().optLong("MemTotal", -1);
+    }
+
+    private static String labelFilter(String label, String value) {
+        return EngineAPIClient.encode(new JSONObject()
+                .element("label", new JSONArray().element(label + "=" + value)).toString());
+    }
+
+    private static Map<String, String> resourceLabels(JSONObject labels) {
+        final Map<String, String> map = new HashMap<>();
+        if (labels != null && !labels.isNullObject()) {
+            for (String key : ResourceLabels.ALL) {
+                if (labels.has(key)) map.put(key, labels.getString(key));
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public void removeVolume(TaskListener listener, String name) throws IOException, InterruptedException {
+        try (EngineAPIClient.Response response = client.delete("/volumes/" + EngineAPIClient.encode(name))) {
+            if (!response.isSuccessful() && response.getStatus() != 404) {
+                throw new IOException("Failed to remove volume " + name + ": " + response.error());
+            }
+        }
+    }
+
+    private String createContainer(JSONObject config) throws IOException {
+        config.element("Labels", labels());
+        final String containerId = client.post("/containers/create", config)
+                .check("Create container from " + config.getString("Image")).json().getString("Id");
+        ContainerIndex.forHost(client.getHost()).created(containerId);
+        return containerId;
+    }
+
+    private void startContainer(String containerId) throws IOException {
+        client.post("/containers/" + containerId + "/start", null).check("Start container " + containerId).close();
+    }
+
+    private static boolean exists(EngineAPIClient.Response response) throws IOException {
+        try {
+            if (response.getStatus() == 404) {
+                return false;
+            }
+            response.check("Inspect");
+            return true;
+        } finally {
+            IOUtils.copy(response.getBody(), new NullOutputStream());
+            response.close();
+        }
+    }
+
+    /**
+     * Demultiplex attached stdout/stderr streams of a non-tty container. Each frame starts with an 8 bytes header:
+     * stream type, 3 padding bytes, then frame size as a big-endian uint32.
+     */
+    private static final class DemuxInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final OutputStream stderr;
+
+        private final byte[] header = new byte[8];
+
+        private int remaining;
+
+        DemuxInputStream(InputStream in, OutputStream stderr) {
+            this.in = in;
+            this.stderr = stderr;
+        }
+
+        private boolean nextStdoutFrame() throws IOException {
+            while (remaining == 0) {
+                int n = 0;
+                while (n < header.length) {
+                    final int r = in.read(header, n, header.length - n);
+                    if (r == -1) return false;
+                    n += r;
+                }
+                final int size = ((header[4] & 0xff) << 24) | ((header[5] & 0xff) << 16) | ((header[6] & 0xff) << 8) | (header[7] & 0xff);
+                if (header[0] == 2) {
+                    final byte[] frame = new byte[size];
+                    IOUtils.readFully(in, frame);
+                    stderr.write(frame);
+                    stderr.flush();
+                } else {
+                    remaining = size;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextStdoutFrame()) return -1;
+            final int b = in.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!nextStdoutFrame()) return -1;
+            final int n = in.read(b, off, Math.min(len, remaining));
+            if (n != -1) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(EngineAPIDockerDriver.class.getName());
+
+    @Override
+    public String toString() {
+        return "Docker Engine API on " + client.getHost();
+    }
+}
@@ -0,0 +1,78 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.Extension;
+import hudson.model.Job;
+import it.dockins.dockerslaves.DefaultDockerHostSource;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import it.dockins.dockerslaves.spi.DockerDriverFactory;
+import it.dockins.dockerslaves.spi.DockerDriverFactoryDescriptor;
+import it.dockins.dockerslaves.spi.DockerHostConfig;
+import it.dockins.dockerslaves.spi.DockerHostRequest;
+import it.dockins.dockerslaves.spi.DockerHostSource;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A ${@link DockerDriverFactory} talking to Docker Engine API from within Jenkins JVM, over a unix socket
+ * or a plain TCP connection.
+ */
+public class EngineAPIDockerDriverFactory extends DockerDriverFactory {
+
+    private final DockerHostSource dockerHostSource;
+
+    @DataBoundConstructor
+    public EngineAPIDockerDriverFactory(DockerHostSource dockerHostSource) {
+        this.dockerHostSource = dockerHostSource;
+    }
+
+    public DockerHostSource getDockerHostSource() {
+        return dockerHostSource != null ? dockerHostSource : new DefaultDockerHostSource();
+    }
+
+    @Override
+    public List<String> getDockerHosts() {
+        return getDockerHostSource().getHosts();
+    }
+
+    @Override
+    public DockerDriver forJob(Job context) throws IOException, InterruptedException {
+        return forJob(context, DockerHostRequest.NONE);
+    }
+
+    @Override
+    public DockerDriver forJob(Job context, DockerHostRequest request) throws IOException, InterruptedException {
+        return forDockerHost(getDockerHostSource().getDockerHost(context, request));
+    }
+
+    @Override
+    public DockerDriver forHost(Job context, String host) throws IOException, InterruptedException {
+        final DockerHostConfig dockerHost = getDockerHostSource().getDockerHost(context, host);
+        return dockerHost != null ? forDockerHost(dockerHost) : null;
+    }
+
+    private DockerDriver forDockerHost(DockerHostConfig dockerHost) throws IOException, InterruptedException {
+        if (StringUtils.isNotBlank(dockerHost.getEndpoint().getCredentialsId())) {
+            // TLS client authentication relies on docker CLI support for DOCKER_CERT_PATH
+            LOGGER.fine("Docker host " + dockerHost.getEndpoint().getUri() + " requires TLS, using docker CLI");
+            return new CliDockerDriver(dockerHost);
+        }
+        return new EngineAPIDockerDriver(dockerHost);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends DockerDriverFactoryDescriptor {
+
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Docker Engine API (unix socket or plain TCP)";
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(EngineAPIDockerDriverFactory.class.getName());
+}
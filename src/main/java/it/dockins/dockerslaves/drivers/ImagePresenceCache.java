@@ -0,0 +1,106 @@
+package it.dockins.dockerslaves.drivers;
+
+import net.sf.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remember images known to be available on a docker host, so checking build and side container images doesn't
+ * require a round trip to the daemon for every build.
+ * <p>
+ * Cache is invalidated by image events reported by {@link DockerEventsMonitor}. As events can be missed, entries
+ * also expire after {@link #TTL}, or much sooner when we're not connected to host's event stream.
+ */
+public class ImagePresenceCache implements DockerEventsMonitor.Listener {
+
+    static final long TTL = Long.getLong(ImagePresenceCache.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(10));
+
+    static final long UNMONITORED_TTL = Long.getLong(ImagePresenceCache.class.getName() + ".unmonitoredTtl", TimeUnit.SECONDS.toMillis(30));
+
+    private static final ConcurrentMap<String, ImagePresenceCache> HOSTS = new ConcurrentHashMap<>();
+
+    public static ImagePresenceCache forHost(String host) {
+        ImagePresenceCache cache = HOSTS.get(host);
+        if (cache == null) {
+            final ImagePresenceCache created = new ImagePresenceCache(DockerEventsMonitor.forHost(host));
+            cache = HOSTS.putIfAbsent(host, created);
+            if (cache == null) {
+                cache = created;
+                created.monitor.addListener(created);
+            }
+        }
+        return cache;
+    }
+
+    private final DockerEventsMonitor monitor;
+
+    /** Image reference to the time it was last known to be present */
+    private final Map<String, Long> images = new ConcurrentHashMap<>();
+
+    private ImagePresenceCache(DockerEventsMonitor monitor) {
+        this.monitor = monitor;
+    }
+
+    public boolean isPresent(String image) {
+        final Long checked = images.get(normalize(image));
+        if (checked == null) {
+            return false;
+        }
+        final long ttl = monitor.isConnected() ? TTL : UNMONITORED_TTL;
+        return System.currentTimeMillis() - checked < ttl;
+    }
+
+    public void present(String image) {
+        images.put(normalize(image), System.currentTimeMillis());
+    }
+
+    public void invalidate(String image) {
+        images.remove(normalize(image));
+    }
+
+    @Override
+    public void onConnected() {
+        images.clear();
+    }
+
+    @Override
+    public void onEvent(JSONObject event) {
+        if (!"image".equals(event.optString("Type"))) return;
+        final JSONObject actor = event.optJSONObject("Actor");
+        if (actor == null) return;
+
+        switch (event.optString("Action")) {
+            case "pull":
+                present(actor.optString("ID"));
+                break;
+            case "tag":
+                final JSONObject attributes = actor.optJSONObject("Attributes");
+                if (attributes != null && attributes.has("name")) {
+                    present(attributes.getString("name"));
+                }
+                break;
+            case "untag":
+            case "delete":
+                // event only reports image ID, not the references we have cached
+                images.clear();
+                break;
+        }
+    }
+
+    /**
+     * Use the same image reference as docker daemon does in events, i.e. with an explicit tag.
+     */
+    static String normalize(String image) {
+        if (image.contains("@")) {
+            return image;
+        }
+        final int slash = image.lastIndexOf('/');
+        if (image.indexOf(':', slash + 1) < 0) {
+            return image + ":latest";
+        }
+        return image;
+    }
+}
@@ -0,0 +1,338 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import it.dockins.dockerslaves.DockerSlaves;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedule image pulls on a docker host.
+ * <p>
+ * Concurrent pulls for the same image are coalesced: first build to request an image triggers the pull, others just
+ * wait for it to complete and share the result. Pull progress is sent to all waiting builds' logs.
+ * <p>
+ * Pulls are queued so no more than {@link DockerSlaves#getMaxConcurrentPulls()} run at a time on a host, pulls
+ * blocking a started build running before speculative ones. Pull runs on a background thread, so an aborted build
+ * doesn't fail the pull for others waiting for the same image.
+ * <p>
+ * Pull statistics are reported by {@link ImagePullsLink}.
+ */
+public class ImagePullCoordinator {
+
+    private static final ConcurrentMap<String, ImagePullCoordinator> HOSTS = new ConcurrentHashMap<>();
+
+    public static ImagePullCoordinator forHost(String host) {
+        ImagePullCoordinator coordinator = HOSTS.get(host);
+        if (coordinator == null) {
+            final ImagePullCoordinator created = new ImagePullCoordinator(host);
+            coordinator = HOSTS.putIfAbsent(host, created);
+            if (coordinator == null) {
+                coordinator = created;
+            }
+        }
+        return coordinator;
+    }
+
+    /**
+     * Coordinators of all docker hosts images have been pulled on, sorted by host.
+     */
+    public static List<ImagePullCoordinator> all() {
+        final List<ImagePullCoordinator> all = new ArrayList<>(HOSTS.values());
+        Collections.sort(all, new Comparator<ImagePullCoordinator>() {
+            @Override
+            public int compare(ImagePullCoordinator a, ImagePullCoordinator b) {
+                return a.host.compareTo(b.host);
+            }
+        });
+        return all;
+    }
+
+    public enum Priority {
+        /** A started build is waiting for this image. */
+        BLOCKING,
+        /** Image is expected to be required by a build soon. */
+        SPECULATIVE
+    }
+
+    /**
+     * Actually pull an image, reporting progress to listener. A pull may run, or still be running, once the build
+     * which queued it completed, so implementation must not rely on that build's driver.
+     */
+    public interface Puller {
+        void pull(TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    private final String host;
+
+    /** Runs pulls in background */
+    private final Executor executor;
+
+    /** Pulls queued or running, by normalized image reference */
+    private final Map<String, Pull> pulls = new HashMap<>();
+
+    private final PriorityQueue<Pull> queue = new PriorityQueue<>();
+
+    private int running;
+
+    private long sequence;
+
+    private long completed;
+
+    private long failed;
+
+    private long totalPullDuration;
+
+    private long maxPullDuration;
+
+    private long totalQueueDuration;
+
+    private ImagePullCoordinator(String host) {
+        this(host, Computer.threadPoolForRemoting);
+    }
+
+    ImagePullCoordinator(String host, Executor executor) {
+        this.host = host;
+        this.executor = executor;
+    }
+
+    /**
+     * Pull image, or wait for an equivalent pull already queued or running to complete.
+     */
+    public void pull(final String image, TaskListener listener, Priority priority, final Puller puller) throws IOException, InterruptedException {
+        final String key = ImagePresenceCache.normalize(image);
+        final PrintStream logger = listener.getLogger();
+
+        final Pull pull;
+        synchronized (this) {
+            Pull p = pulls.get(key);
+            if (p == null) {
+                p = new Pull(key, priority, sequence++, puller);
+                pulls.put(key, p);
+                queue.add(p);
+                if (running >= getMaxConcurrentPulls()) {
+                    logger.println("Waiting for " + running + " docker image pull(s) to complete before pulling " + image);
+                }
+            } else {
+                logger.println("Waiting for pull of docker image " + image + " already in progress");
+                if (priority.compareTo(p.priority) < 0 && queue.remove(p)) {
+                    // a build now depends on this pull, move it ahead of speculative ones
+                    p.priority = priority;
+                    queue.add(p);
+                }
+            }
+            pull = p;
+            pull.log.attach(logger);
+            dispatch();
+        }
+
+        try {
+            pull.await();
+        } finally {
+            pull.log.detach(logger);
+        }
+
+        if (pull.failure != null) {
+            throw new IOException("Failed to pull docker image " + image, pull.failure);
+        }
+    }
+
+    /**
+     * Start queued pulls as long as we're under concurrency limit.
+     */
+    private synchronized void dispatch() {
+        while (running < getMaxConcurrentPulls() && !queue.isEmpty()) {
+            final Pull pull = queue.poll();
+            running++;
+            pull.started = System.currentTimeMillis();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable failure = null;
+                    try {
+                        pull.puller.pull(new StreamTaskListener(pull.log));
+                    } catch (Throwable t) {
+                        failure = t;
+                    } finally {
+                        completed(pull, failure);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void completed(Pull pull, Throwable failure) {
+        final long now = System.currentTimeMillis();
+        final long duration = now - pull.started;
+        running--;
+        pulls.remove(pull.image);
+        if (failure == null) {
+            completed++;
+        } else {
+            failed++;
+        }
+        totalPullDuration += duration;
+        maxPullDuration = Math.max(maxPullDuration, duration);
+        totalQueueDuration += pull.started - pull.queued;
+        LOGGER.log(Level.FINE, "Pulled {0} on {1} in {2} after {3} in queue", new Object[] {pull.image, host,
+                Util.getTimeSpanString(duration), Util.getTimeSpanString(pull.started - pull.queued)});
+
+        pull.complete(failure);
+        dispatch();
+    }
+
+    int getMaxConcurrentPulls() {
+        final DockerSlaves plugin = DockerSlaves.get();
+        return plugin != null ? Math.max(1, plugin.getMaxConcurrentPulls()) : DockerSlaves.DEFAULT_MAX_CONCURRENT_PULLS;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /** Number of pulls waiting for a slot. */
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Number of pulls currently running. */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized long getCompletedPulls() {
+        return completed;
+    }
+
+    public synchronized long getFailedPulls() {
+        return failed;
+    }
+
+    /** Average time spent pulling an image, in milliseconds. */
+    public synchronized long getAveragePullDuration() {
+        final long count = completed + failed;
+        return count > 0 ? totalPullDuration / count : 0;
+    }
+
+    public synchronized long getMaxPullDuration() {
+        return maxPullDuration;
+    }
+
+    /** Average time a pull has been waiting in queue before it started, in milliseconds. */
+    public synchronized long getAverageQueueDuration() {
+        final long count = completed + failed;
+        return count > 0 ? totalQueueDuration / count : 0;
+    }
+
+    private static final class Pull implements Comparable<Pull> {
+
+        private final String image;
+
+        private final long sequence;
+
+        private final Puller puller;
+
+        private final long queued = System.currentTimeMillis();
+
+        private Priority priority;
+
+        private long started;
+
+        private final FanOutLog log = new FanOutLog();
+
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private volatile Throwable failure;
+
+        Pull(String image, Priority priority, long sequence, Puller puller) {
+            this.image = image;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.puller = puller;
+        }
+
+        @Override
+        public int compareTo(Pull o) {
+            final int c = priority.compareTo(o.priority);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+
+        void complete(Throwable failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            done.await();
+        }
+    }
+
+    /**
+     * Copy pull output to all attached build logs. Output is retained (up to a limit) so builds joining an ongoing
+     * pull get the full log.
+     */
+    private static final class FanOutLog extends OutputStream {
+
+        private static final int MAX_REPLAY = 1024 * 1024;
+
+        private final List<PrintStream> targets = new CopyOnWriteArrayList<>();
+
+        private final ByteArrayOutputStream replay = new ByteArrayOutputStream();
+
+        synchronized void attach(PrintStream target) {
+            if (replay.size() > 0) {
+                target.write(replay.toByteArray(), 0, replay.size());
+                target.flush();
+            }
+            targets.add(target);
+        }
+
+        void detach(PrintStream target) {
+            targets.remove(target);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (replay.size() + len <= MAX_REPLAY) {
+                replay.write(b, off, len);
+            }
+            for (PrintStream target : targets) {
+                // PrintStream does not throw, a closed build log just won't get output
+                target.write(b, off, len);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            for (PrintStream target : targets) {
+                target.flush();
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ImagePullCoordinator.class.getName());
+}
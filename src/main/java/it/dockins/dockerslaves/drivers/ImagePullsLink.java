@@ -0,0 +1,43 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.ManagementLink;
+
+import java.util.List;
+
+/**
+ * Report {@link ImagePullCoordinator} statistics for each docker host, so administrators can tell pulls are a
+ * bottleneck and tune {@link it.dockins.dockerslaves.DockerSlaves#getMaxConcurrentPulls()}.
+ */
+@Extension
+public class ImagePullsLink extends ManagementLink {
+
+    public List<ImagePullCoordinator> getCoordinators() {
+        return ImagePullCoordinator.all();
+    }
+
+    public String formatDuration(long duration) {
+        return duration > 0 ? Util.getTimeSpanString(duration) : "N/A";
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "/plugin/docker-slaves/images/48x48/docker-logo.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Docker Image Pulls";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Image pulls queued, running and completed on each docker host.";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "docker-image-pulls";
+    }
+}
@@ -6,12 +6,15 @@ import it.dockins.dockerslaves.DefaultDockerHostSource;
 import it.dockins.dockerslaves.spi.DockerDriver;
 import it.dockins.dockerslaves.spi.DockerDriverFactory;
 import it.dockins.dockerslaves.spi.DockerDriverFactoryDescriptor;
+import it.dockins.dockerslaves.spi.DockerHostConfig;
+import it.dockins.dockerslaves.spi.DockerHostRequest;
 import it.dockins.dockerslaves.spi.DockerHostSource;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * A ${@link DockerDriverFactory} relying on plain good old Docker API usage.
@@ -36,11 +39,27 @@ public class PlainDockerAPIDockerDriverFactory extends DockerDriverFactory {
         return dockerHostSource;
     }
 
+    @Override
+    public List<String> getDockerHosts() {
+        return dockerHostSource.getHosts();
+    }
+
     @Override
     public DockerDriver forJob(Job context) throws IOException, InterruptedException {
         return new CliDockerDriver(dockerHostSource.getDockerHost(context));
     }
 
+    @Override
+    public DockerDriver forJob(Job context, DockerHostRequest request) throws IOException, InterruptedException {
+        return new CliDockerDriver(dockerHostSource.getDockerHost(context, request));
+    }
+
+    @Override
+    public DockerDriver forHost(Job context, String host) throws IOException, InterruptedException {
+        final DockerHostConfig dockerHost = dockerHostSource.getDockerHost(context, host);
+        return dockerHost != null ? new CliDockerDriver(dockerHost) : null;
+    }
+
     @Extension
     public static class DescriptorImp extends DockerDriverFactoryDescriptor {
 
@@ -0,0 +1,105 @@
+package it.dockins.dockerslaves.drivers;
+
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry credentials sent as Engine API <code>X-Registry-Auth</code> header, so images from a private registry
+ * can be pulled without a <code>docker</code> executable.
+ * <p>
+ * Credentials are read from the docker CLI configuration of the Jenkins master (<code>docker login</code>), from
+ * <code>$DOCKER_CONFIG/config.json</code> or <code>~/.docker/config.json</code>. Credentials kept by a credential
+ * helper can't be retrieved without running it, so images from such a registry are pulled anonymously.
+ */
+class RegistryAuth {
+
+    static final String DOCKER_HUB = "index.docker.io";
+
+    /**
+     * @param configDir docker CLI configuration directory, <code>null</code> for the default one
+     * @return header value, <code>null</code> if there's no credentials for image's registry
+     */
+    static String forImage(String image, String configDir) {
+        final File config = new File(configDir != null ? new File(configDir) : new File(System.getProperty("user.home"), ".docker"), "config.json");
+        if (!config.isFile()) {
+            return null;
+        }
+        try {
+            return forImage(image, JSONObject.fromObject(FileUtils.readFileToString(config, StandardCharsets.UTF_8.name())));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to read registry credentials from " + config, e);
+            return null;
+        }
+    }
+
+    static String forImage(String image, JSONObject config) {
+        final JSONObject auths = config.optJSONObject("auths");
+        if (auths == null) {
+            return null;
+        }
+        final String registry = getRegistry(image);
+        for (Object key : auths.keySet()) {
+            final String address = (String) key;
+            if (registry.equals(getHost(address))) {
+                return encode(address, auths.getJSONObject(address));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registry an image reference designates, as docker CLI resolves it.
+     */
+    static String getRegistry(String image) {
+        final int slash = image.indexOf('/');
+        if (slash > 0) {
+            final String first = image.substring(0, slash);
+            if (first.contains(".") || first.contains(":") || first.equals("localhost")) {
+                return getHost(first);
+            }
+        }
+        return DOCKER_HUB;
+    }
+
+    /**
+     * Registry host a <code>config.json</code> entry is for, which can be a plain host or a URL.
+     */
+    static String getHost(String address) {
+        String host = StringUtils.substringAfter(address, "://");
+        if (host.isEmpty()) {
+            host = address;
+        }
+        host = StringUtils.substringBefore(host, "/");
+        return host.equals("docker.io") || host.equals("registry-1.docker.io") ? DOCKER_HUB : host;
+    }
+
+    private static String encode(String address, JSONObject entry) {
+        final JSONObject auth = new JSONObject();
+        if (StringUtils.isNotEmpty(entry.optString("identitytoken"))) {
+            auth.element("identitytoken", entry.getString("identitytoken"));
+        } else {
+            final String credentials = new String(DatatypeConverter.parseBase64Binary(entry.optString("auth")), StandardCharsets.UTF_8);
+            final int colon = credentials.indexOf(':');
+            if (colon < 0) {
+                // credentials are kept by a credential helper
+                return null;
+            }
+            auth.element("username", credentials.substring(0, colon))
+                .element("password", credentials.substring(colon + 1));
+        }
+        auth.element("serveraddress", address);
+        // daemon expects base64url
+        return DatatypeConverter.printBase64Binary(auth.toString().getBytes(StandardCharsets.UTF_8))
+                .replace('+', '-').replace('/', '_');
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RegistryAuth.class.getName());
+}
@@ -0,0 +1,61 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.remoting.Launcher;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A named volume holding <code>slave.jar</code> for current Jenkins remoting version, created once per docker host
+ * and mounted read-only into every remoting container, so we don't need to upload it for every build.
+ * <p>
+ * Volume is populated on first use by a Jenkins JVM, so a partially populated volume (Jenkins crash) gets fixed on
+ * restart. Volumes for other remoting versions are then removed.
+ */
+public class RemotingVolume {
+
+    /** Label set on remoting volumes, with remoting version as value. */
+    public static final String LABEL = "it.dockins.dockerslaves.remoting";
+
+    /** Where remoting volume is mounted in remoting container. */
+    public static final String MOUNT_POINT = "/usr/share/dockerslaves/";
+
+    private static final ConcurrentMap<String, RemotingVolume> HOSTS = new ConcurrentHashMap<>();
+
+    public static RemotingVolume forHost(String host) {
+        RemotingVolume volume = HOSTS.get(host);
+        if (volume == null) {
+            final RemotingVolume created = new RemotingVolume();
+            volume = HOSTS.putIfAbsent(host, created);
+            if (volume == null) {
+                volume = created;
+            }
+        }
+        return volume;
+    }
+
+    private boolean ready;
+
+    private RemotingVolume() {
+    }
+
+    public String getVersion() {
+        return Launcher.VERSION;
+    }
+
+    public String getName() {
+        return "dockerslaves-remoting-" + getVersion().replaceAll("[^a-zA-Z0-9_.-]", "_");
+    }
+
+    /**
+     * Has volume already been populated by this JVM? Callers are expected to hold this object's monitor while
+     * populating the volume so concurrent builds wait for it.
+     */
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    public synchronized void setReady() {
+        this.ready = true;
+    }
+}
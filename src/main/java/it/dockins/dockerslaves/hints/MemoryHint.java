@@ -5,6 +5,8 @@ import it.dockins.dockerslaves.spec.Hint;
 import it.dockins.dockerslaves.spec.HintDescriptor;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.util.Locale;
+
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
  */
@@ -21,6 +23,39 @@ public class MemoryHint extends Hint{
         return memory;
     }
 
+    /**
+     * Memory requirement in bytes, parsed from <code>&lt;number&gt;&lt;unit&gt;</code> format as used by
+     * <code>docker run -m</code>.
+     */
+    public long getMemoryInBytes() {
+        return parseMemory(memory);
+    }
+
+    public static long parseMemory(String memory) {
+        if (memory == null || memory.trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing memory specification");
+        }
+        String value = memory.trim().toLowerCase(Locale.ENGLISH);
+        if (value.length() > 1 && value.endsWith("b") && !Character.isDigit(value.charAt(value.length() - 2))) {
+            // accept "512mb" as well as "512m"
+            value = value.substring(0, value.length() - 1);
+        }
+        long unit = 1;
+        // cases deliberately fall through to multiply up to the unit
+        switch (value.charAt(value.length() - 1)) {
+            case 'g': unit *= 1024;
+            case 'm': unit *= 1024;
+            case 'k': unit *= 1024;
+            case 'b':
+                value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value.trim()) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid memory specification: " + memory);
+        }
+    }
+
     @Extension
     public static class DescriptorImpl extends HintDescriptor {
 
@@ -26,8 +26,6 @@ package it.dockins.dockerslaves.pipeline;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.model.queue.QueueListener;
-import it.dockins.dockerslaves.DockerSlave;
-import it.dockins.dockerslaves.DockerSlaves;
 import it.dockins.dockerslaves.spec.ContainerSetDefinition;
 import it.dockins.dockerslaves.spec.DockerSocketContainerDefinition;
 import it.dockins.dockerslaves.spec.ImageIdContainerDefinition;
@@ -128,18 +126,6 @@ public class DockerNodeStepExecution extends AbstractStepExecutionImpl {
     @Override
     public boolean start() throws Exception {
         final String label = "docker_" + Long.toHexString(System.nanoTime());
-        final PlaceholderTask task = new PlaceholderTask(getContext(), label, run);
-
-        final DockerSlaves cloud = DockerSlaves.get();
-
-        String slaveName = "Container for " + run.toString() + "." + flowNode.getId();
-        String description = "Container building " + run.getParent().getFullName();
-
-        Queue.Item item = Queue.getInstance().schedule2(task, 0).getCreateItem();
-        if (item == null) {
-            // There can be no duplicates. But could be refused if a QueueDecisionHandler rejects it for some odd reason.
-            throw new IllegalStateException("failed to schedule task");
-        }
 
         List<SideContainerDefinition> sideContainers = new ArrayList<>();
         if (step.getSideContainers() != null) {
@@ -155,10 +141,17 @@ public class DockerNodeStepExecution extends AbstractStepExecutionImpl {
         ContainerSetDefinition spec = new ContainerSetDefinition(
                 new ImageIdContainerDefinition(step.getImage(), false), sideContainers);
 
-        final Node node = new DockerSlave(slaveName, description, label,
-                cloud.createProvisionerForPipeline(run.getParent(), spec), item);
+        String slaveName = "Container for " + run.toString() + "." + flowNode.getId();
+        String description = "Container building " + run.getParent().getFullName();
+
+        // DockerSlave is created by ProvisionQueueListener once ProvisionScheduler admitted the task
+        final PlaceholderTask task = new PlaceholderTask(getContext(), label, run, spec, slaveName, description);
 
-        Jenkins.getInstance().addNode(node);
+        Queue.Item item = Queue.getInstance().schedule2(task, 0).getCreateItem();
+        if (item == null) {
+            // There can be no duplicates. But could be refused if a QueueDecisionHandler rejects it for some odd reason.
+            throw new IllegalStateException("failed to schedule task");
+        }
 
         Timer.get().schedule(new Runnable() {
             @Override public void run() {
@@ -303,11 +296,34 @@ public class DockerNodeStepExecution extends AbstractStepExecutionImpl {
          * and allows {@link Launcher#kill} to work.
          */
         private String cookie;
+        /** Containers to run the block in, null for a task scheduled by a former version */
+        private final ContainerSetDefinition spec;
+        private final String slaveName;
+        private final String slaveDescription;
 
-        PlaceholderTask(StepContext context, String label, Run<?,?> run) {
+        PlaceholderTask(StepContext context, String label, Run<?,?> run, ContainerSetDefinition spec, String slaveName, String slaveDescription) {
             this.context = context;
             this.label = label;
             runId = run.getExternalizableId();
+            this.spec = spec;
+            this.slaveName = slaveName;
+            this.slaveDescription = slaveDescription;
+        }
+
+        public @CheckForNull ContainerSetDefinition getSpec() {
+            return spec;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getSlaveName() {
+            return slaveName;
+        }
+
+        public String getSlaveDescription() {
+            return slaveDescription;
         }
 
         private Object readResolve() {
@@ -0,0 +1,42 @@
+package it.dockins.dockerslaves.placement;
+
+import hudson.Extension;
+import it.dockins.dockerslaves.spi.DockerHostRequest;
+import it.dockins.dockerslaves.spi.HostCapacity;
+import it.dockins.dockerslaves.spi.PlacementStrategy;
+import it.dockins.dockerslaves.spi.PlacementStrategyDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Place pod on the docker host which already has most of the images it runs, so it doesn't wait for pulls, then on
+ * the one running the fewest pods.
+ */
+public class ImageLocalityStrategy extends PlacementStrategy {
+
+    @DataBoundConstructor
+    public ImageLocalityStrategy() {
+    }
+
+    @Override
+    protected int compare(HostCapacity a, HostCapacity b, DockerHostRequest request) {
+        final int compare = Integer.compare(countImages(b, request), countImages(a, request));
+        return compare != 0 ? compare : Integer.compare(a.getPods(), b.getPods());
+    }
+
+    private static int countImages(HostCapacity host, DockerHostRequest request) {
+        int count = 0;
+        for (String image : request.getImages()) {
+            if (host.hasImage(image)) count++;
+        }
+        return count;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends PlacementStrategyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Prefer hosts having images";
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package it.dockins.dockerslaves.placement;
+
+import hudson.Extension;
+import it.dockins.dockerslaves.spi.DockerHostRequest;
+import it.dockins.dockerslaves.spi.HostCapacity;
+import it.dockins.dockerslaves.spi.PlacementStrategy;
+import it.dockins.dockerslaves.spi.PlacementStrategyDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Place pod on the docker host running the fewest pods.
+ */
+public class LeastPodsStrategy extends PlacementStrategy {
+
+    @DataBoundConstructor
+    public LeastPodsStrategy() {
+    }
+
+    @Override
+    protected int compare(HostCapacity a, HostCapacity b, DockerHostRequest request) {
+        return Integer.compare(a.getPods(), b.getPods());
+    }
+
+    @Extension(ordinal = 100)
+    public static class DescriptorImpl extends PlacementStrategyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Least running pods";
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package it.dockins.dockerslaves.placement;
+
+import hudson.Extension;
+import it.dockins.dockerslaves.hints.MemoryHint;
+import it.dockins.dockerslaves.spi.DockerHostRequest;
+import it.dockins.dockerslaves.spi.HostCapacity;
+import it.dockins.dockerslaves.spi.PlacementStrategy;
+import it.dockins.dockerslaves.spi.PlacementStrategyDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Place pod on the docker host with most memory not reserved by pods' {@link MemoryHint}s. Hosts which memory is
+ * unknown come last.
+ */
+public class MostFreeMemoryStrategy extends PlacementStrategy {
+
+    @DataBoundConstructor
+    public MostFreeMemoryStrategy() {
+    }
+
+    @Override
+    protected int compare(HostCapacity a, HostCapacity b, DockerHostRequest request) {
+        final int compare = Long.compare(b.getFreeMemory(), a.getFreeMemory());
+        return compare != 0 ? compare : Integer.compare(a.getPods(), b.getPods());
+    }
+
+    @Extension
+    public static class DescriptorImpl extends PlacementStrategyDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Most free memory";
+        }
+    }
+}
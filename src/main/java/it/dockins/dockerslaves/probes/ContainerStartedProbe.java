@@ -0,0 +1,34 @@
+package it.dockins.dockerslaves.probes;
+
+import hudson.Extension;
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.Container;
+import it.dockins.dockerslaves.DockerComputer;
+import it.dockins.dockerslaves.spec.ReadinessProbe;
+import it.dockins.dockerslaves.spec.ReadinessProbeDescriptor;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Consider container ready as soon as it has been started.
+ */
+public class ContainerStartedProbe extends ReadinessProbe {
+
+    @DataBoundConstructor
+    public ContainerStartedProbe() {
+    }
+
+    @Override
+    public boolean isReady(DockerDriver driver, Container container, DockerComputer computer, TaskListener listener) {
+        return true;
+    }
+
+    @Extension(ordinal = 100)
+    public static class DescriptorImpl extends ReadinessProbeDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "None, container started";
+        }
+    }
+}
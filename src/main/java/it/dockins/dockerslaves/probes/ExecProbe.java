@@ -0,0 +1,50 @@
+package it.dockins.dockerslaves.probes;
+
+import hudson.Extension;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.Container;
+import it.dockins.dockerslaves.DockerComputer;
+import it.dockins.dockerslaves.spec.ReadinessProbe;
+import it.dockins.dockerslaves.spec.ReadinessProbeDescriptor;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import org.apache.commons.io.output.NullOutputStream;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+
+/**
+ * Consider container ready when a command executed inside it completes successfully.
+ */
+public class ExecProbe extends ReadinessProbe {
+
+    private final String command;
+
+    @DataBoundConstructor
+    public ExecProbe(String command) {
+        this.command = command;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    @Override
+    public boolean isReady(DockerDriver driver, Container container, DockerComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        final Launcher.ProcStarter starter = new Launcher.LocalLauncher(listener).launch()
+                .cmds(Util.tokenize(command))
+                .envs(new String[0])
+                .stdout(new NullOutputStream());
+        return driver.execInContainer(listener, container.getId(), starter).join() == 0;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends ReadinessProbeDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Command succeeds in container";
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package it.dockins.dockerslaves.probes;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.Container;
+import it.dockins.dockerslaves.DockerComputer;
+import it.dockins.dockerslaves.spec.ReadinessProbe;
+import it.dockins.dockerslaves.spec.ReadinessProbeDescriptor;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+
+/**
+ * Rely on <code>HEALTHCHECK</code> declared by container's image: container is ready once docker reports it healthy.
+ */
+public class HealthcheckProbe extends ReadinessProbe {
+
+    @DataBoundConstructor
+    public HealthcheckProbe() {
+    }
+
+    @Override
+    public boolean isReady(DockerDriver driver, Container container, DockerComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        final String health = driver.getContainerHealth(listener, container);
+        if (health == null) {
+            listener.getLogger().println("Image " + container.getImageName() + " doesn't declare a HEALTHCHECK, considering container ready");
+            return true;
+        }
+        if ("unhealthy".equals(health)) {
+            throw new AbortException("Container " + container.getImageName() + " is unhealthy");
+        }
+        return "healthy".equals(health);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends ReadinessProbeDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "Docker HEALTHCHECK reports healthy";
+        }
+    }
+}
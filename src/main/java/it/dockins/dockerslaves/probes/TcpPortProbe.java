@@ -0,0 +1,75 @@
+package it.dockins.dockerslaves.probes;
+
+import hudson.Extension;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import it.dockins.dockerslaves.Container;
+import it.dockins.dockerslaves.DockerComputer;
+import it.dockins.dockerslaves.spec.ReadinessProbe;
+import it.dockins.dockerslaves.spec.ReadinessProbeDescriptor;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import jenkins.security.MasterToSlaveCallable;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Consider container ready when it accepts TCP connections on a port.
+ * <p>
+ * Containers share the remoting container's network namespace, so the check runs on the pod's remoting agent and
+ * connects to <code>localhost</code>.
+ */
+public class TcpPortProbe extends ReadinessProbe {
+
+    private final int port;
+
+    @DataBoundConstructor
+    public TcpPortProbe(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public boolean isReady(DockerDriver driver, Container container, DockerComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        final VirtualChannel channel = computer != null ? computer.getChannel() : null;
+        if (channel == null) {
+            throw new IOException("Remoting container is not connected");
+        }
+        return channel.call(new PortCheck(port));
+    }
+
+    private static final class PortCheck extends MasterToSlaveCallable<Boolean, IOException> {
+
+        private final int port;
+
+        PortCheck(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public Boolean call() {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 1000);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends ReadinessProbeDescriptor {
+
+        @Override
+        public String getDisplayName() {
+            return "TCP port accepts connections";
+        }
+    }
+}
@@ -53,5 +53,18 @@ public abstract class ContainerDefinition extends AbstractDescribableImpl<Contai
 
     public abstract String getImage(DockerDriver driver, FilePath workspace, TaskListener listener) throws IOException, InterruptedException;
 
+    /**
+     * Does resolving image require build workspace? If not, image can be resolved, and container prepared, ahead of
+     * SCM checkout.
+     */
+    public boolean requiresWorkspace() {
+        return true;
+    }
+
+    /**
+     * Pull image ahead of time while build is still in queue, when it can be determined without a workspace.
+     */
+    public void prefetchImage(DockerDriver driver, TaskListener listener) throws IOException, InterruptedException {}
+
     public void setupEnvironment(EnvVars env) {}
 }
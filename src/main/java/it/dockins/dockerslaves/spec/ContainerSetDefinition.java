@@ -33,6 +33,7 @@ import hudson.model.Job;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import it.dockins.dockerslaves.DockerSlaves;
+import it.dockins.dockerslaves.hints.MemoryHint;
 import it.dockins.dockerslaves.spi.DockerProvisionerFactory;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -85,6 +86,35 @@ public class ContainerSetDefinition extends JobProperty {
         return sideContainers;
     }
 
+    /**
+     * Memory reserved by build and side containers, in bytes, as set by their {@link MemoryHint}, or
+     * {@link DockerSlaves#getDefaultContainerMemory() default} for containers without one.
+     */
+    public long getMemoryReservation() {
+        final long defaultMemory = DockerSlaves.get().getDefaultContainerMemoryInBytes();
+        long memory = getMemoryReservation(buildHostImage, defaultMemory);
+        for (SideContainerDefinition definition : sideContainers) {
+            memory += getMemoryReservation(definition.getSpec(), defaultMemory);
+        }
+        return memory;
+    }
+
+    private static long getMemoryReservation(ContainerDefinition definition, long defaultMemory) {
+        if (definition.getHints() != null) {
+            for (Hint hint : definition.getHints()) {
+                if (hint instanceof MemoryHint) {
+                    try {
+                        return ((MemoryHint) hint).getMemoryInBytes();
+                    } catch (IllegalArgumentException e) {
+                        // docker will reject it when container is created, don't break admission meanwhile
+                        return defaultMemory;
+                    }
+                }
+            }
+        }
+        return defaultMemory;
+    }
+
     @Extension
     public static class DescriptorImpl extends JobPropertyDescriptor {
 
@@ -33,6 +33,7 @@ import it.dockins.dockerslaves.hints.VolumeHint;
 import it.dockins.dockerslaves.spi.DockerDriver;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
@@ -51,6 +52,16 @@ public class DockerSocketContainerDefinition extends ContainerDefinition {
         return "dockins/dockersock";
     }
 
+    @Override
+    public boolean requiresWorkspace() {
+        return false;
+    }
+
+    @Override
+    public void prefetchImage(DockerDriver driver, TaskListener listener) throws IOException, InterruptedException {
+        driver.prefetchImageIfMissing(listener, getImage(driver, null, listener));
+    }
+
     @Override
     public List<Hint> getHints() {
         return Collections.singletonList((Hint) new VolumeHint("/var/run/docker.sock:/var/run/docker.sock"));
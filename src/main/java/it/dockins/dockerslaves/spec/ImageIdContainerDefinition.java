@@ -71,6 +71,16 @@ public class ImageIdContainerDefinition extends ContainerDefinition {
         return image;
     }
 
+    @Override
+    public boolean requiresWorkspace() {
+        return false;
+    }
+
+    @Override
+    public void prefetchImage(DockerDriver driver, TaskListener listener) throws IOException, InterruptedException {
+        driver.prefetchImageIfMissing(listener, image);
+    }
+
     public boolean isForcePull() {
         return forcePull;
     }
@@ -0,0 +1,63 @@
+package it.dockins.dockerslaves.spec;
+
+import hudson.AbortException;
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.TaskListener;
+import it.dockins.dockerslaves.Container;
+import it.dockins.dockerslaves.DockerComputer;
+import it.dockins.dockerslaves.spi.DockerDriver;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check a side container is ready to serve the build, so dependent containers and build steps don't race against a
+ * service still starting.
+ */
+public abstract class ReadinessProbe extends AbstractDescribableImpl<ReadinessProbe> implements ExtensionPoint {
+
+    /** Maximum time to wait for container to get ready, in seconds */
+    private int timeout = 60;
+
+    /** Delay between checks, in seconds */
+    private int interval = 1;
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    @DataBoundSetter
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    @DataBoundSetter
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Check container readiness once.
+     * @param computer the pod's computer, which channel can be used to reach container's network
+     */
+    public abstract boolean isReady(DockerDriver driver, Container container, DockerComputer computer, TaskListener listener) throws IOException, InterruptedException;
+
+    /**
+     * Check container readiness until it succeeds or timeout expires.
+     */
+    public void waitUntilReady(String name, DockerDriver driver, Container container, DockerComputer computer, TaskListener listener) throws IOException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout);
+        while (!isReady(driver, container, computer, listener)) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new AbortException(name + " container is not ready after " + timeout + " seconds");
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(Math.max(1, interval)));
+        }
+    }
+}
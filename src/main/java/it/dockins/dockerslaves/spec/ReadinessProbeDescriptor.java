@@ -0,0 +1,6 @@
+package it.dockins.dockerslaves.spec;
+
+import hudson.model.Descriptor;
+
+public abstract class ReadinessProbeDescriptor extends Descriptor<ReadinessProbe> {
+}
@@ -28,7 +28,12 @@ package it.dockins.dockerslaves.spec;
 import hudson.Extension;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
+import hudson.Util;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -38,6 +43,11 @@ public class SideContainerDefinition extends AbstractDescribableImpl<SideContain
     private final String name;
     private final ContainerDefinition spec;
 
+    /** Names of side containers which have to be ready before this one starts, comma or space separated */
+    private String dependsOn;
+
+    private ReadinessProbe readinessProbe;
+
     @DataBoundConstructor
     public SideContainerDefinition(String name, ContainerDefinition spec) {
         this.name = name;
@@ -52,6 +62,39 @@ public class SideContainerDefinition extends AbstractDescribableImpl<SideContain
         return spec;
     }
 
+    public String getDependsOn() {
+        return dependsOn;
+    }
+
+    @DataBoundSetter
+    public void setDependsOn(String dependsOn) {
+        this.dependsOn = Util.fixEmptyAndTrim(dependsOn);
+    }
+
+    public List<String> getDependencies() {
+        final List<String> dependencies = new ArrayList<>();
+        if (dependsOn != null) {
+            for (String name : dependsOn.split("[,\\s]+")) {
+                if (!name.isEmpty()) {
+                    dependencies.add(name);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * @return <code>null</code> if container is considered ready once started
+     */
+    public ReadinessProbe getReadinessProbe() {
+        return readinessProbe;
+    }
+
+    @DataBoundSetter
+    public void setReadinessProbe(ReadinessProbe readinessProbe) {
+        this.readinessProbe = readinessProbe;
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<SideContainerDefinition> {
 
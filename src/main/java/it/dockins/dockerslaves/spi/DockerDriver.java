@@ -5,11 +5,16 @@ import hudson.Proc;
 import hudson.model.TaskListener;
 import it.dockins.dockerslaves.Container;
 import it.dockins.dockerslaves.DockerComputer;
+import it.dockins.dockerslaves.ResourceLabels;
 import it.dockins.dockerslaves.spec.Hint;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manage Docker resources creation and access so docker-slaves can run a build.
@@ -18,6 +23,8 @@ import java.util.List;
  */
 public abstract class DockerDriver implements Closeable {
 
+    private final Map<String, String> labels = new ConcurrentHashMap<>();
+
     public abstract boolean hasVolume(TaskListener listener, String name) throws IOException, InterruptedException;
 
     public abstract String createVolume(TaskListener listener) throws IOException, InterruptedException;
@@ -26,20 +33,189 @@ public abstract class DockerDriver implements Closeable {
 
     public abstract Container launchRemotingContainer(TaskListener listener, String image, String workdir, DockerComputer computer) throws IOException, InterruptedException;
 
+    /**
+     * Create a remoting container without starting it, so it can be prepared ahead of time.
+     * @return <code>null</code> if driver doesn't support this, so remoting container can only be
+     * {@link #launchRemotingContainer(TaskListener, String, String, DockerComputer) launched}
+     */
+    public Container createRemotingContainer(TaskListener listener, String image, String workdir) throws IOException, InterruptedException {
+        return null;
+    }
+
+    /**
+     * Start a remoting container prepared by {@link #createRemotingContainer(TaskListener, String, String)} and
+     * establish computer's channel. Drivers supporting creation must override this as well.
+     */
+    public void startRemotingContainer(TaskListener listener, Container remotingContainer, DockerComputer computer) throws IOException, InterruptedException {
+        throw new IOException(getClass().getName() + " doesn't support starting a prepared remoting container");
+    }
+
     public abstract Container launchBuildContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException;
 
+    /**
+     * Create a build container without starting it, so it can be prepared ahead of time.
+     * @return <code>null</code> if driver doesn't support this, so build container can only be
+     * {@link #launchBuildContainer(TaskListener, String, Container, List) launched}
+     */
+    public Container createBuildContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
+        return null;
+    }
+
+    /**
+     * Start a container prepared by {@link #createBuildContainer(TaskListener, String, Container, List)}. Drivers
+     * supporting creation must override this as well.
+     */
+    public void startContainer(TaskListener listener, Container container) throws IOException, InterruptedException {
+        throw new IOException(getClass().getName() + " doesn't support starting a prepared container");
+    }
+
     public abstract Container launchSideContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException;
 
+    /**
+     * Create a side container without starting it, so it can be prepared while SCM checkout runs and only started
+     * with the build container. Drivers supporting this must also support
+     * {@link #startContainer(TaskListener, Container)}.
+     * @return <code>null</code> if driver doesn't support this, so side container can only be
+     * {@link #launchSideContainer(TaskListener, String, Container, List) launched}
+     */
+    public Container createSideContainer(TaskListener listener, String image, Container remotingContainer, List<Hint> hints) throws IOException, InterruptedException {
+        return null;
+    }
+
+    /**
+     * Retrieve container's health status as reported by image's <code>HEALTHCHECK</code>: <code>starting</code>,
+     * <code>healthy</code> or <code>unhealthy</code>.
+     * @return <code>null</code> if container has no health check
+     */
+    public String getContainerHealth(TaskListener listener, Container container) throws IOException, InterruptedException {
+        return null;
+    }
+
     public abstract Proc execInContainer(TaskListener listener, String containerId, Launcher.ProcStarter starter) throws IOException, InterruptedException;
 
     public abstract void removeContainer(TaskListener listener, Container instance) throws IOException, InterruptedException;
 
     public abstract void pullImage(TaskListener listener, String image) throws IOException, InterruptedException;
 
+    /**
+     * Pull an image a build is expected to require soon. Implementation can run such pulls with lower priority than
+     * the ones a started build is waiting for.
+     */
+    public void prefetchImage(TaskListener listener, String image) throws IOException, InterruptedException {
+        pullImage(listener, image);
+    }
+
+    /**
+     * {@link #prefetchImage(TaskListener, String) Prefetch} an image, unless docker host already has it.
+     */
+    public void prefetchImageIfMissing(TaskListener listener, String image) throws IOException, InterruptedException {
+        if (!checkImageExists(listener, image)) {
+            prefetchImage(listener, image);
+        }
+    }
+
     public abstract boolean checkImageExists(TaskListener listener, String image) throws IOException, InterruptedException;
 
     public abstract void buildDockerfile(TaskListener listener, String dockerfilePath, String tag, boolean pull) throws IOException, InterruptedException;
 
+    /**
+     * Identify the docker host this driver is connected to, so state can be shared between builds using the same
+     * one.
+     * @return <code>null</code> if unknown
+     */
+    public String getHost() {
+        return null;
+    }
+
+    /**
+     * Notify computer as soon as one of its containers dies, so the build fails immediately rather than on next
+     * command. Drivers not following docker host's events just let next command fail.
+     */
+    public void watchContainer(Container container, DockerComputer computer) throws IOException, InterruptedException {
+    }
+
+    /**
+     * Set a label on all containers and volumes created from now on, typically one of {@link ResourceLabels}.
+     */
+    public void setLabel(String key, String value) {
+        labels.put(key, value);
+    }
+
+    /**
+     * Labels to set on a container or volume being created. All {@link ResourceLabels} are set, so none gets
+     * inherited from a decorated image committed from another build's container.
+     */
+    protected Map<String, String> getLabels() {
+        final Map<String, String> all = new TreeMap<>();
+        for (String key : ResourceLabels.ALL) {
+            all.put(key, "");
+        }
+        all.putAll(labels);
+        all.put(ResourceLabels.MANAGED, "true");
+        all.put(ResourceLabels.CREATED, String.valueOf(System.currentTimeMillis()));
+        return all;
+    }
+
+    /**
+     * List containers carrying a label, with their {@link ResourceLabels#ALL} labels.
+     * @return container IDs to labels
+     */
+    public Map<String, Map<String, String>> listContainers(TaskListener listener, String label, String value) throws IOException, InterruptedException {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * List volumes carrying a label, with their {@link ResourceLabels#ALL} labels.
+     * @return volume names to labels
+     */
+    public Map<String, Map<String, String>> listVolumes(TaskListener listener, String label, String value) throws IOException, InterruptedException {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Remove a volume. Only used on volumes reported by {@link #listVolumes(TaskListener, String, String)} or
+     * {@link #getVolumeSizes(TaskListener)}, or created by {@link #createVolume(TaskListener)} for a prepared
+     * container, so drivers not supporting these don't need to override it.
+     * @throws IOException if volume can't be removed, or driver doesn't support this
+     */
+    public void removeVolume(TaskListener listener, String name) throws IOException, InterruptedException {
+        throw new IOException(getClass().getName() + " doesn't support removing volumes");
+    }
+
+    /**
+     * Disk space used by volumes on docker host, as reported by <code>docker system df</code>.
+     * @return volume names to size in bytes, empty if not supported
+     */
+    public Map<String, Long> getVolumeSizes(TaskListener listener) throws IOException, InterruptedException {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Total memory available on docker host, in bytes.
+     * @return <code>-1</code> if not supported
+     */
+    public long getMemoryTotal(TaskListener listener) throws IOException, InterruptedException {
+        return -1;
+    }
+
+    /**
+     * Create a new volume as a copy of an existing one, so a concurrent build can start from a warm workspace.
+     * Implementations backed by a volume driver supporting snapshots should override this to clone it copy-on-write.
+     * @param image image providing <code>sh</code>, <code>find</code>, <code>xargs</code> and <code>tar</code>, used
+     *              to copy volume content with {@link #CLONE_VOLUME_SCRIPT}
+     * @return name of the new volume, <code>null</code> if not supported
+     */
+    public String cloneVolume(TaskListener listener, String source, String image) throws IOException, InterruptedException {
+        return null;
+    }
+
+    /**
+     * Copy <code>/from</code> into <code>/to</code>, preserving ownership and permissions, with top level entries
+     * copied in parallel.
+     */
+    protected static final String CLONE_VOLUME_SCRIPT =
+            "cd /from && find . -mindepth 1 -maxdepth 1 -print0 | xargs -0 -r -P 4 -n 1 sh -c 'tar cf - \"$0\" | tar xpf - -C /to'";
+
     /**
      * Return server version string, used actually to check connectivity with backend
      */
@@ -5,9 +5,39 @@ import hudson.model.AbstractDescribableImpl;
 import hudson.model.Job;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 public abstract class DockerDriverFactory extends AbstractDescribableImpl<DockerDriverFactory> implements ExtensionPoint {
 
     public abstract DockerDriver forJob(Job context) throws IOException, InterruptedException;
 
+    /**
+     * Create a driver for a docker host selected considering hints about hosts holding caches the build can reuse.
+     */
+    public DockerDriver forJob(Job context, DockerHostRequest request) throws IOException, InterruptedException {
+        return forJob(context);
+    }
+
+    /**
+     * Create a driver for a specific docker host, as identified by {@link DockerDriver#getHost()}, whatever host
+     * selection would pick for a new build. Factories selecting among several docker hosts should override this.
+     * @return <code>null</code> if factory can't connect to this docker host
+     */
+    public DockerDriver forHost(Job context, String host) throws IOException, InterruptedException {
+        final DockerDriver driver = forJob(context);
+        if (host.equals(driver.getHost())) {
+            return driver;
+        }
+        driver.close();
+        return null;
+    }
+
+    /**
+     * Docker hosts drivers created by this factory can connect to, empty if unknown.
+     */
+    public List<String> getDockerHosts() {
+        return Collections.emptyList();
+    }
+
 }
@@ -5,6 +5,7 @@ import hudson.FilePath;
 import hudson.model.Item;
 import hudson.security.ACL;
 import hudson.security.ACLContext;
+import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
 
@@ -22,14 +23,20 @@ import java.io.IOException;
  */
 public class DockerHostConfig implements Closeable {
 
+    public static final String DEFAULT_HOST = "unix:///var/run/docker.sock";
+
     /** Docker Host's daemon endpoint */
     private final DockerServerEndpoint endpoint;
 
     /** Docker API access keys  */
     private final KeyMaterial keys;
 
+    /** Item credentials have been resolved for */
+    private final Item context;
+
     public DockerHostConfig(DockerServerEndpoint endpoint, Item context) throws IOException, InterruptedException {
         this.endpoint = endpoint;
+        this.context = context;
         try (ACLContext oldContext = ACL.as(ACL.SYSTEM)) {
             keys = endpoint.newKeyMaterialFactory(context, FilePath.localChannel).materialize();
         }
@@ -39,6 +46,33 @@ public class DockerHostConfig implements Closeable {
         return endpoint;
     }
 
+    /**
+     * Docker daemon URI, resolved the same way docker CLI does when endpoint doesn't define one. Used as a key to
+     * share per-host state between builds.
+     */
+    public String getHost() {
+        return getHost(endpoint);
+    }
+
+    public static String getHost(DockerServerEndpoint endpoint) {
+        String uri = endpoint.getUri();
+        if (StringUtils.isBlank(uri)) {
+            uri = System.getenv("DOCKER_HOST");
+        }
+        if (StringUtils.isBlank(uri)) {
+            uri = DEFAULT_HOST;
+        }
+        return uri;
+    }
+
+    /**
+     * Access the same docker host with keys of it's own, for a user which outlives the one this config was created
+     * for. Closing either config doesn't affect the other.
+     */
+    public DockerHostConfig copy() throws IOException, InterruptedException {
+        return new DockerHostConfig(endpoint, context);
+    }
+
     public EnvVars getEnvironment() {
         return keys.env();
     }
@@ -0,0 +1,94 @@
+package it.dockins.dockerslaves.spi;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hints passed to {@link DockerHostSource} about the docker host a build would better run on, so caches kept on docker
+ * hosts get reused. A source managing a single docker host can safely ignore them.
+ */
+public class DockerHostRequest {
+
+    public static final DockerHostRequest NONE = new DockerHostRequest(null, Collections.<String>emptyList());
+
+    private final String preferredHost;
+
+    private final List<String> images;
+
+    private final long memory;
+
+    private final Set<String> excludedHosts;
+
+    private final long queueItemId;
+
+    public DockerHostRequest(String preferredHost, List<String> images) {
+        this(preferredHost, images, 0);
+    }
+
+    public DockerHostRequest(String preferredHost, List<String> images, long memory) {
+        this(preferredHost, images, memory, Collections.<String>emptySet(), -1);
+    }
+
+    private DockerHostRequest(String preferredHost, List<String> images, long memory, Set<String> excludedHosts, long queueItemId) {
+        this.preferredHost = preferredHost;
+        this.images = images;
+        this.memory = memory;
+        this.excludedHosts = excludedHosts;
+        this.queueItemId = queueItemId;
+    }
+
+    /**
+     * Same request, for the pod of a queue item which docker slot is already reserved.
+     */
+    public DockerHostRequest forQueueItem(long queueItemId) {
+        return new DockerHostRequest(preferredHost, images, memory, excludedHosts, queueItemId);
+    }
+
+    /**
+     * Same request, asking not to select some docker hosts, typically as provisioning just failed on them.
+     */
+    public DockerHostRequest excluding(Collection<String> hosts) {
+        final Set<String> excluded = new HashSet<>(excludedHosts);
+        excluded.addAll(hosts);
+        return new DockerHostRequest(excluded.contains(preferredHost) ? null : preferredHost, images, memory, excluded, queueItemId);
+    }
+
+    /**
+     * Docker host holding job's warm workspace volume, as returned by {@link DockerHostConfig#getHost()}.
+     * @return <code>null</code> if job has no workspace to reuse
+     */
+    public String getPreferredHost() {
+        return preferredHost;
+    }
+
+    /**
+     * Images build will run, so a host which already has their layers can be preferred.
+     */
+    public List<String> getImages() {
+        return images;
+    }
+
+    /**
+     * Memory reserved by pod's containers, in bytes.
+     */
+    public long getMemory() {
+        return memory;
+    }
+
+    public Set<String> getExcludedHosts() {
+        return excludedHosts;
+    }
+
+    /**
+     * Queue item pod is created for, so a source selecting among several docker hosts can
+     * {@link it.dockins.dockerslaves.DockerSlotRegistry#move(long, String) account} for its slot on the selected one
+     * right away.
+     * @return <code>-1</code> if unknown
+     */
+    public long getQueueItemId() {
+        return queueItemId;
+    }
+}
@@ -5,6 +5,8 @@ import hudson.model.AbstractDescribableImpl;
 import hudson.model.Job;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A DockerHostSource is responsible to determine (or provision) the dockerhost to host a build for the specified job.
@@ -22,4 +24,34 @@ public abstract class DockerHostSource extends AbstractDescribableImpl<DockerHos
      * @return
      */
     public abstract DockerHostConfig getDockerHost(Job job) throws IOException, InterruptedException;
+
+    /**
+     * Allocate / Determine best Docker host to use to build this Job, considering hints about hosts holding caches
+     * the build can reuse. Sources managing a single docker host don't need to override this.
+     */
+    public DockerHostConfig getDockerHost(Job job, DockerHostRequest request) throws IOException, InterruptedException {
+        return getDockerHost(job);
+    }
+
+    /**
+     * Configuration to access a specific docker host, as identified by {@link DockerHostConfig#getHost()}, typically
+     * to manage resources previously created there. Sources selecting among several docker hosts should override this.
+     * @return <code>null</code> if host isn't one of this source's
+     */
+    public DockerHostConfig getDockerHost(Job job, String host) throws IOException, InterruptedException {
+        final DockerHostConfig config = getDockerHost(job);
+        if (host.equals(config.getHost())) {
+            return config;
+        }
+        config.close();
+        return null;
+    }
+
+    /**
+     * Docker hosts this source selects from, as used for {@link it.dockins.dockerslaves.ContainersContext#getDockerHost()}.
+     * Empty if unknown.
+     */
+    public List<String> getHosts() {
+        return Collections.emptyList();
+    }
 }
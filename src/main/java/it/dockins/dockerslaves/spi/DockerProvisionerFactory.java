@@ -2,11 +2,14 @@ package it.dockins.dockerslaves.spi;
 
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Job;
+import hudson.model.TaskListener;
 import it.dockins.dockerslaves.spec.ContainerDefinitionDescriptor;
 import it.dockins.dockerslaves.spec.ContainerSetDefinition;
 import it.dockins.dockerslaves.spec.DockerSocketContainerDefinition;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This component is responsible to orchestrate the provisioning of a build environment based on configured
@@ -20,6 +23,36 @@ public abstract class DockerProvisionerFactory extends AbstractDescribableImpl<D
 
     public abstract DockerProvisioner createProvisionerForPipeline(Job job, ContainerSetDefinition spec) throws IOException, InterruptedException;
 
+    /**
+     * Same as {@link #createProvisionerForClassicJob(Job, ContainerSetDefinition)}, for a queue item which docker
+     * slot is reserved, so it can be accounted for on the docker host pod gets placed on.
+     */
+    public DockerProvisioner createProvisionerForClassicJob(Job job, ContainerSetDefinition spec, long queueItemId) throws IOException, InterruptedException {
+        return createProvisionerForClassicJob(job, spec);
+    }
+
+    /**
+     * Same as {@link #createProvisionerForPipeline(Job, ContainerSetDefinition)}, for a queue item which docker
+     * slot is reserved, so it can be accounted for on the docker host pod gets placed on.
+     */
+    public DockerProvisioner createProvisionerForPipeline(Job job, ContainerSetDefinition spec, long queueItemId) throws IOException, InterruptedException {
+        return createProvisionerForPipeline(job, spec);
+    }
+
+    /**
+     * Pull images required to provision a build for this job ahead of time, typically while it's waiting in queue.
+     * Default implementation does nothing.
+     */
+    public void prefetchImages(Job job, ContainerSetDefinition spec, TaskListener listener) throws IOException, InterruptedException {
+    }
+
+    /**
+     * Docker hosts pods can be placed on, so admission control can check they have a free slot. Empty if unknown.
+     */
+    public List<String> getDockerHosts() {
+        return Collections.emptyList();
+    }
+
     public boolean canBeUsedAsMainContainer(ContainerDefinitionDescriptor d) {
         return d.clazz != DockerSocketContainerDefinition.class;
     }
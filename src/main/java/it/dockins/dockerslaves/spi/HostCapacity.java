@@ -0,0 +1,68 @@
+package it.dockins.dockerslaves.spi;
+
+import it.dockins.dockerslaves.drivers.ImagePresenceCache;
+
+/**
+ * Snapshot of a docker host's load, as used by {@link PlacementStrategy} to select a host for a new pod.
+ */
+public class HostCapacity {
+
+    private final String host;
+
+    private final int pods;
+
+    private final long reservedMemory;
+
+    private final long totalMemory;
+
+    public HostCapacity(String host, int pods, long reservedMemory, long totalMemory) {
+        this.host = host;
+        this.pods = pods;
+        this.reservedMemory = reservedMemory;
+        this.totalMemory = totalMemory;
+    }
+
+    /**
+     * Docker host, as returned by {@link DockerHostConfig#getHost()}.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Pods running on docker host, or just placed on it.
+     */
+    public int getPods() {
+        return pods;
+    }
+
+    /**
+     * Memory reserved by pods' containers, in bytes.
+     */
+    public long getReservedMemory() {
+        return reservedMemory;
+    }
+
+    /**
+     * Memory pods can reserve on docker host, in bytes.
+     * @return <code>-1</code> if unknown
+     */
+    public long getTotalMemory() {
+        return totalMemory;
+    }
+
+    /**
+     * Memory not reserved by a pod yet, in bytes.
+     * @return <code>-1</code> if unknown
+     */
+    public long getFreeMemory() {
+        return totalMemory < 0 ? -1 : Math.max(0, totalMemory - reservedMemory);
+    }
+
+    /**
+     * Is image known to be present on docker host, so a pod using it won't need to pull it?
+     */
+    public boolean hasImage(String image) {
+        return ImagePresenceCache.forHost(host).isPresent(image);
+    }
+}
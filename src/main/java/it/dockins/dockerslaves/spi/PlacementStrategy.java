@@ -0,0 +1,48 @@
+package it.dockins.dockerslaves.spi;
+
+import hudson.ExtensionPoint;
+import hudson.model.AbstractDescribableImpl;
+
+import java.util.List;
+
+/**
+ * Select the docker host a new pod will run on, among the ones a {@link DockerHostSource} manages.
+ * <p>
+ * Host holding job's warm workspace is selected as long as it can fit the pod. Otherwise, hosts which can fit the pod
+ * are ranked by {@link #compare(HostCapacity, HostCapacity, DockerHostRequest)}, then all hosts if none can.
+ */
+public abstract class PlacementStrategy extends AbstractDescribableImpl<PlacementStrategy> implements ExtensionPoint {
+
+    public HostCapacity select(List<HostCapacity> hosts, DockerHostRequest request) {
+        for (HostCapacity host : hosts) {
+            if (host.getHost().equals(request.getPreferredHost()) && canHost(host, request)) {
+                return host;
+            }
+        }
+
+        HostCapacity best = null;
+        boolean fits = false;
+        for (HostCapacity host : hosts) {
+            final boolean canHost = canHost(host, request);
+            if (best == null || (canHost && !fits) || (canHost == fits && compare(host, best, request) < 0)) {
+                best = host;
+                fits = canHost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Can host fit the pod? Hosts which memory is unknown are assumed to.
+     */
+    protected boolean canHost(HostCapacity host, DockerHostRequest request) {
+        final long free = host.getFreeMemory();
+        return free < 0 || free >= request.getMemory();
+    }
+
+    /**
+     * Rank hosts for a pod.
+     * @return a negative value if <code>a</code> is a better choice than <code>b</code>, <code>0</code> if equivalent
+     */
+    protected abstract int compare(HostCapacity a, HostCapacity b, DockerHostRequest request);
+}
@@ -0,0 +1,6 @@
+package it.dockins.dockerslaves.spi;
+
+import hudson.model.Descriptor;
+
+public abstract class PlacementStrategyDescriptor extends Descriptor<PlacementStrategy> {
+}
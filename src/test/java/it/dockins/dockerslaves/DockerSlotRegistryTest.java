@@ -0,0 +1,87 @@
+package it.dockins.dockerslaves;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DockerSlotRegistryTest {
+
+    private final DockerSlotRegistry registry = new DockerSlotRegistry();
+
+    @Test
+    public void countSlotsGloballyAndPerItem() {
+        registry.reserve(1, "node-1", "team/app/master", 0);
+        registry.reserve(2, "node-2", "team/lib", 0);
+        registry.reserve(3, "node-3", null, 0);
+
+        assertEquals(3, registry.getCount());
+        assertEquals(2, registry.getItemCount("team"));
+        assertEquals(1, registry.getItemCount("team/app"));
+        assertEquals(1, registry.getItemCount("team/app/master"));
+        assertEquals(1, registry.getItemCount("team/lib"));
+        assertTrue(registry.hasSlot(3));
+
+        registry.release(1, "node-1");
+        assertEquals(2, registry.getCount());
+        assertEquals(1, registry.getItemCount("team"));
+        assertEquals(0, registry.getItemCount("team/app"));
+        assertFalse(registry.hasSlot(1));
+    }
+
+    @Test
+    public void reserveOncePerQueueItem() {
+        registry.reserve(1, "node-1", "job", 0);
+        final long changes = registry.getChanges();
+        registry.reserve(1, "node-1", "job", 0);
+        assertEquals(1, registry.getCount());
+        assertEquals(1, registry.getItemCount("job"));
+        assertEquals(changes, registry.getChanges());
+    }
+
+    @Test
+    public void onlyReleaseSlotOfTheSameNode() {
+        registry.reserve(1, "node-1", "job", 0);
+        registry.release(1, "node-2");
+        assertEquals(1, registry.getCount());
+
+        registry.release(1, "node-1");
+        registry.release(1, "node-1");
+        assertEquals(0, registry.getCount());
+        assertEquals(0, registry.getItemCount("job"));
+    }
+
+    @Test
+    public void accountForPodOnTheHostItIsPlacedOn() {
+        registry.reserve(1, "node-1", "job", 512);
+        registry.reserve(2, "node-2", "job", 256);
+        // not placed yet
+        assertEquals(0, registry.getCount("host-a"));
+        assertEquals(0, registry.getReservedMemory("host-a"));
+
+        registry.move(1, "host-a");
+        registry.move(2, "host-a");
+        assertEquals(2, registry.getCount("host-a"));
+        assertEquals(768, registry.getReservedMemory("host-a"));
+
+        // failover, then provisioner reporting the same host again
+        registry.move(2, "host-b");
+        registry.move(2, "host-b");
+        assertEquals(1, registry.getCount("host-a"));
+        assertEquals(512, registry.getReservedMemory("host-a"));
+        assertEquals(1, registry.getCount("host-b"));
+        assertEquals(256, registry.getReservedMemory("host-b"));
+
+        registry.release(2, "node-2");
+        assertEquals(0, registry.getCount("host-b"));
+        assertEquals(0, registry.getReservedMemory("host-b"));
+        assertEquals(512, registry.getReservedMemory("host-a"));
+    }
+
+    @Test
+    public void ignoreMoveOfUnknownSlot() {
+        registry.move(1, "host-a");
+        assertEquals(0, registry.getCount("host-a"));
+    }
+}
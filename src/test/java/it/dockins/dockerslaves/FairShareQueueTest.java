@@ -0,0 +1,96 @@
+package it.dockins.dockerslaves;
+
+import it.dockins.dockerslaves.FairShareQueue.Pending;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class FairShareQueueTest {
+
+    @Test
+    public void sameGroupIsServedInQueueOrder() {
+        final Pending first = new Pending("a", 1, 0, 1);
+        final Pending second = new Pending("a", 1, 0, 2);
+        final Pending third = new Pending("a", 1, 0, 3);
+
+        rank(new HashMap<String, Integer>(), third, first, second);
+
+        assertEquals(0, first.getPosition());
+        assertEquals(1, second.getPosition());
+        assertEquals(2, third.getPosition());
+    }
+
+    @Test
+    public void batchDoesNotStarveOtherGroups() {
+        final Pending a1 = new Pending("a", 1, 0, 1);
+        final Pending a2 = new Pending("a", 1, 0, 2);
+        final Pending a3 = new Pending("a", 1, 0, 3);
+        final Pending b1 = new Pending("b", 1, 0, 4);
+        final Pending b2 = new Pending("b", 1, 0, 5);
+
+        rank(new HashMap<String, Integer>(), a1, a2, a3, b1, b2);
+
+        assertEquals(0, a1.getPosition());
+        assertEquals(1, b1.getPosition());
+        assertEquals(2, a2.getPosition());
+        assertEquals(3, b2.getPosition());
+        assertEquals(4, a3.getPosition());
+    }
+
+    @Test
+    public void slotsInUseCountAgainstGroupShare() {
+        final Pending a = new Pending("a", 1, 0, 1);
+        final Pending b = new Pending("b", 1, 0, 2);
+        final Map<String, Integer> used = new HashMap<>();
+        used.put("a", 2);
+
+        rank(used, a, b);
+
+        assertEquals(0, b.getPosition());
+        assertEquals(1, a.getPosition());
+        assertEquals(3, (int) used.get("a"));
+        assertEquals(1, (int) used.get("b"));
+    }
+
+    @Test
+    public void groupsShareSlotsByWeight() {
+        final Pending a1 = new Pending("a", 2, 0, 1);
+        final Pending a2 = new Pending("a", 2, 0, 2);
+        final Pending a3 = new Pending("a", 2, 0, 3);
+        final Pending b1 = new Pending("b", 1, 0, 4);
+        final Pending b2 = new Pending("b", 1, 0, 5);
+
+        rank(new HashMap<String, Integer>(), a1, a2, a3, b1, b2);
+
+        // "a" gets two slots for each one "b" gets
+        assertEquals(0, a1.getPosition());
+        assertEquals(1, b1.getPosition());
+        assertEquals(2, a2.getPosition());
+        assertEquals(3, a3.getPosition());
+        assertEquals(4, b2.getPosition());
+    }
+
+    @Test
+    public void higherPriorityComesFirst() {
+        final Pending low = new Pending("a", 1, 0, 1);
+        final Pending high = new Pending("b", 1, 10, 2);
+        final Map<String, Integer> used = new HashMap<>();
+        used.put("b", 5);
+
+        rank(used, low, high);
+
+        assertEquals(0, high.getPosition());
+        assertEquals(1, low.getPosition());
+    }
+
+    private static void rank(Map<String, Integer> used, Pending... pending) {
+        final List<Pending> line = new ArrayList<>(Arrays.asList(pending));
+        FairShareQueue.rank(line, used);
+    }
+}
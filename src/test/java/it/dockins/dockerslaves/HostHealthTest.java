@@ -0,0 +1,75 @@
+package it.dockins.dockerslaves;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestName;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostHealthTest {
+
+    @Rule
+    public TestName name = new TestName();
+
+    /** Health of a docker host no other test uses */
+    private HostHealth health() {
+        return HostHealth.forHost(getClass().getName() + "." + name.getMethodName());
+    }
+
+    @Test
+    public void opensOnceFailureRateIsReached() {
+        final HostHealth health = health();
+        for (int i = 0; i < HostHealth.WINDOW / 2; i++) {
+            health.success();
+        }
+        for (int i = 0; i < HostHealth.WINDOW / 2 - 1; i++) {
+            health.failure();
+            assertTrue(health.isAvailable());
+        }
+        health.failure();
+        assertFalse(health.isAvailable());
+        assertEquals(HostHealth.State.OPEN, health.getState());
+    }
+
+    @Test
+    public void doesNotOpenBeforeMinimumCalls() {
+        final HostHealth health = health();
+        for (int i = 0; i < HostHealth.MIN_CALLS - 1; i++) {
+            health.failure();
+        }
+        assertTrue(health.isAvailable());
+        health.failure();
+        assertFalse(health.isAvailable());
+    }
+
+    @Test
+    public void slowCallCountsAsFailure() {
+        final HostHealth health = health();
+        for (int i = 0; i < HostHealth.MIN_CALLS; i++) {
+            health.success(HostHealth.SLOW_CALL + 1);
+        }
+        assertFalse(health.isAvailable());
+    }
+
+    @Test
+    public void tracksLatency() {
+        final HostHealth health = health();
+        assertEquals(-1, health.getLatency());
+        health.success(100);
+        assertEquals(100, health.getLatency());
+        health.success(500);
+        assertEquals(200, health.getLatency());
+    }
+
+    @Test
+    public void successDoesNotCloseOpenCircuit() {
+        final HostHealth health = health();
+        for (int i = 0; i < HostHealth.MIN_CALLS; i++) {
+            health.failure();
+        }
+        health.success();
+        assertEquals(HostHealth.State.OPEN, health.getState());
+    }
+}
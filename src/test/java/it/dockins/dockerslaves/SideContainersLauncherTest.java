@@ -0,0 +1,64 @@
+package it.dockins.dockerslaves;
+
+import hudson.AbortException;
+import it.dockins.dockerslaves.spec.SideContainerDefinition;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SideContainersLauncherTest {
+
+    @Test
+    public void independentContainersShareALevel() throws Exception {
+        assertEquals(Arrays.asList(Arrays.asList("db", "cache")),
+                names(SideContainersLauncher.levels(Arrays.asList(side("db", null), side("cache", null)))));
+    }
+
+    @Test
+    public void dependenciesBelongToPreviousLevels() throws Exception {
+        final List<SideContainerDefinition> definitions = Arrays.asList(
+                side("app", "db, cache"),
+                side("db", null),
+                side("proxy", "app"),
+                side("cache", "db"));
+        assertEquals(Arrays.asList(Arrays.asList("db"), Arrays.asList("cache"), Arrays.asList("app"), Arrays.asList("proxy")),
+                names(SideContainersLauncher.levels(definitions)));
+    }
+
+    @Test(expected = AbortException.class)
+    public void rejectDuplicateNames() throws Exception {
+        SideContainersLauncher.levels(Arrays.asList(side("db", null), side("db", null)));
+    }
+
+    @Test(expected = AbortException.class)
+    public void rejectUnknownDependency() throws Exception {
+        SideContainersLauncher.levels(Arrays.asList(side("app", "db")));
+    }
+
+    @Test(expected = AbortException.class)
+    public void rejectCyclicDependencies() throws Exception {
+        SideContainersLauncher.levels(Arrays.asList(side("db", null), side("a", "b db"), side("b", "a")));
+    }
+
+    private static SideContainerDefinition side(String name, String dependsOn) {
+        final SideContainerDefinition definition = new SideContainerDefinition(name, null);
+        definition.setDependsOn(dependsOn);
+        return definition;
+    }
+
+    private static List<List<String>> names(List<List<SideContainerDefinition>> levels) {
+        final List<List<String>> names = new ArrayList<>();
+        for (List<SideContainerDefinition> level : levels) {
+            final List<String> n = new ArrayList<>();
+            for (SideContainerDefinition definition : level) {
+                n.add(definition.getName());
+            }
+            names.add(n);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,81 @@
+package it.dockins.dockerslaves.drivers;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarInputStream;
+import org.apache.tools.tar.TarOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BuildContainerDecorationTest {
+
+    @Test
+    public void appendJenkinsUserAndGroup() throws Exception {
+        final ByteArrayOutputStream etc = new ByteArrayOutputStream();
+        final TarOutputStream tar = new TarOutputStream(etc);
+        putEntry(tar, "etc/", null, 0755);
+        putEntry(tar, "etc/hostname", "localhost\n", 0644);
+        // no trailing newline
+        putEntry(tar, "etc/passwd", "root:x:0:0:root:/root:/bin/sh", 0644);
+        putEntry(tar, "etc/group", "root:x:0:\n", 0600);
+        tar.close();
+
+        final Map<String, TarEntry> entries = new HashMap<>();
+        final Map<String, String> contents = new HashMap<>();
+        decorate(new ByteArrayInputStream(etc.toByteArray()), entries, contents);
+
+        assertEquals("root:x:0:0:root:/root:/bin/sh\n" + BuildContainerDecoration.JENKINS_USER, contents.get("etc/passwd"));
+        assertEquals(0644, entries.get("etc/passwd").getMode());
+        assertEquals("root:x:0:\n" + BuildContainerDecoration.JENKINS_GROUP, contents.get("etc/group"));
+        assertEquals(0600, entries.get("etc/group").getMode());
+        assertEquals(0555, entries.get("trampoline").getMode());
+        assertTrue(entries.get("trampoline").getSize() > 0);
+        assertEquals(3, entries.size());
+    }
+
+    @Test
+    public void createMissingFiles() throws Exception {
+        final ByteArrayOutputStream etc = new ByteArrayOutputStream();
+        new TarOutputStream(etc).close();
+
+        final Map<String, TarEntry> entries = new HashMap<>();
+        final Map<String, String> contents = new HashMap<>();
+        decorate(new ByteArrayInputStream(etc.toByteArray()), entries, contents);
+
+        assertEquals(BuildContainerDecoration.JENKINS_USER, contents.get("etc/passwd"));
+        assertEquals(BuildContainerDecoration.JENKINS_GROUP, contents.get("etc/group"));
+        assertEquals(0644, entries.get("etc/passwd").getMode());
+    }
+
+    private static void decorate(ByteArrayInputStream etc, Map<String, TarEntry> entries, Map<String, String> contents) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BuildContainerDecoration.fromEtcArchive(etc).writeTo(out);
+
+        final TarInputStream tar = new TarInputStream(new ByteArrayInputStream(out.toByteArray()));
+        TarEntry entry;
+        while ((entry = tar.getNextEntry()) != null) {
+            final ByteArrayOutputStream content = new ByteArrayOutputStream();
+            tar.copyEntryContents(content);
+            entries.put(entry.getName(), entry);
+            contents.put(entry.getName(), content.toString(StandardCharsets.UTF_8.name()));
+        }
+    }
+
+    private static void putEntry(TarOutputStream tar, String name, String content, int mode) throws IOException {
+        final TarEntry entry = new TarEntry(name);
+        entry.setMode(mode);
+        final byte[] bytes = content != null ? content.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        entry.setSize(bytes.length);
+        tar.putNextEntry(entry);
+        tar.write(bytes);
+        tar.closeEntry();
+    }
+}
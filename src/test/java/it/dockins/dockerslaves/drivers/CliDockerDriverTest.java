@@ -0,0 +1,25 @@
+package it.dockins.dockerslaves.drivers;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CliDockerDriverTest {
+
+    @Test
+    public void parseSize() {
+        assertEquals(0, CliDockerDriver.parseSize("0B"));
+        assertEquals(512, CliDockerDriver.parseSize("512B"));
+        assertEquals(12300, CliDockerDriver.parseSize("12.3kB"));
+        assertEquals(45000000, CliDockerDriver.parseSize("45MB"));
+        assertEquals(1500000000L, CliDockerDriver.parseSize("1.5GB"));
+        assertEquals(2000000000000L, CliDockerDriver.parseSize("2TB"));
+    }
+
+    @Test
+    public void parseSizeRejectsOtherValues() {
+        assertEquals(-1, CliDockerDriver.parseSize("N/A"));
+        assertEquals(-1, CliDockerDriver.parseSize("12"));
+        assertEquals(-1, CliDockerDriver.parseSize(""));
+    }
+}
@@ -0,0 +1,72 @@
+package it.dockins.dockerslaves.drivers;
+
+import it.dockins.dockerslaves.drivers.DockerApiLimiter.Kind;
+import it.dockins.dockerslaves.drivers.DockerApiLimiter.Window;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DockerApiLimiterTest {
+
+    @Test
+    public void growsWhileFullyUsedAndFast() throws Exception {
+        final Window window = new Window("test", Kind.HEAVY);
+        int inFlight = 0;
+        for (int i = 0; i < 20; i++) {
+            while (inFlight < window.getLimit()) {
+                window.acquire();
+                inFlight++;
+            }
+            window.release(0);
+            inFlight--;
+        }
+        assertTrue(window.getLimit() > Kind.HEAVY.initial);
+    }
+
+    @Test
+    public void doesNotGrowWhileUnderused() throws Exception {
+        final Window window = new Window("test", Kind.HEAVY);
+        for (int i = 0; i < 20; i++) {
+            window.acquire();
+            window.release(0);
+        }
+        assertEquals(Kind.HEAVY.initial, window.getLimit());
+    }
+
+    @Test
+    public void halvesOncePerTargetPeriodOnSlowCalls() throws Exception {
+        final Window window = new Window("test", Kind.LIGHT);
+        window.acquire();
+        window.release(Kind.LIGHT.target + 1);
+        assertEquals(Math.max(Kind.LIGHT.min, Kind.LIGHT.initial / 2), window.getLimit());
+
+        // same slow burst
+        window.acquire();
+        window.release(Kind.LIGHT.target + 1);
+        assertEquals(Math.max(Kind.LIGHT.min, Kind.LIGHT.initial / 2), window.getLimit());
+    }
+
+    @Test
+    public void unsampledCallsDoNotAdapt() throws Exception {
+        final Window window = new Window("test", Kind.HEAVY);
+        for (int i = 0; i < Kind.HEAVY.initial; i++) {
+            window.acquire();
+        }
+        for (int i = 0; i < Kind.HEAVY.initial; i++) {
+            window.release(-1);
+        }
+        assertEquals(Kind.HEAVY.initial, window.getLimit());
+    }
+
+    @Test(expected = IOException.class)
+    public void giveUpWaitingOnceTimedOut() throws Exception {
+        final Window window = new Window("test", Kind.HEAVY);
+        for (int i = 0; i < Kind.HEAVY.initial; i++) {
+            window.acquire();
+        }
+        window.acquire(10);
+    }
+}
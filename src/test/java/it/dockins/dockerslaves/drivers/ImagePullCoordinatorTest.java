@@ -0,0 +1,150 @@
+package it.dockins.dockerslaves.drivers;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import it.dockins.dockerslaves.drivers.ImagePullCoordinator.Priority;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImagePullCoordinatorTest {
+
+    /** Pulls dispatched by coordinator, run by test thread one at a time */
+    private final BlockingQueue<Runnable> dispatched = new LinkedBlockingQueue<>();
+
+    /** Images actually pulled, in order */
+    private final List<String> pulled = new ArrayList<>();
+
+    private final List<Thread> builds = new ArrayList<>();
+
+    private final ImagePullCoordinator coordinator = new ImagePullCoordinator("test", new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            dispatched.add(command);
+        }
+    }) {
+        @Override
+        int getMaxConcurrentPulls() {
+            return 1;
+        }
+    };
+
+    @After
+    public void joinBuilds() throws InterruptedException {
+        for (Thread build : builds) {
+            build.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Test
+    public void coalesceConcurrentPullsOfAnImage() throws Exception {
+        pull("ubuntu", Priority.BLOCKING);
+        awaitQueueDepth(0);
+        final ByteArrayOutputStream second = pull("ubuntu:latest", Priority.BLOCKING);
+        awaitLog(second, "already in progress");
+
+        runNext();
+        joinBuilds();
+        assertEquals(Arrays.asList("ubuntu"), pulled);
+        assertEquals(1, coordinator.getCompletedPulls());
+        // progress is reported to both builds
+        assertTrue(second.toString(StandardCharsets.UTF_8.name()).contains("pulling ubuntu"));
+    }
+
+    @Test
+    public void blockingPullOvertakesSpeculativeOnes() throws Exception {
+        pull("running", Priority.BLOCKING);
+        awaitQueueDepth(0);
+        pull("speculative", Priority.SPECULATIVE);
+        awaitQueueDepth(1);
+        pull("blocking", Priority.BLOCKING);
+        awaitQueueDepth(2);
+
+        runNext();
+        runNext();
+        runNext();
+        assertEquals(Arrays.asList("running", "blocking", "speculative"), pulled);
+    }
+
+    @Test
+    public void speculativePullIsUpgradedOnceABuildWaitsForIt() throws Exception {
+        pull("running", Priority.BLOCKING);
+        awaitQueueDepth(0);
+        pull("speculative", Priority.SPECULATIVE);
+        awaitQueueDepth(1);
+        pull("blocking", Priority.BLOCKING);
+        awaitQueueDepth(2);
+        awaitLog(pull("speculative", Priority.BLOCKING), "already in progress");
+
+        runNext();
+        runNext();
+        runNext();
+        // upgraded pull was queued first
+        assertEquals(Arrays.asList("running", "speculative", "blocking"), pulled);
+    }
+
+    /**
+     * Wait for pulls queued behind the running one.
+     */
+    private void awaitQueueDepth(int depth) throws InterruptedException {
+        while (coordinator.getQueueDepth() != depth || coordinator.getRunning() != 1) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Request a pull from a build thread, as caller blocks until pull completed.
+     * @return build log
+     */
+    private ByteArrayOutputStream pull(final String image, final Priority priority) {
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final TaskListener listener = new StreamTaskListener(log);
+        final Thread build = new Thread("build pulling " + image) {
+            @Override
+            public void run() {
+                try {
+                    coordinator.pull(image, listener, priority, new ImagePullCoordinator.Puller() {
+                        @Override
+                        public void pull(TaskListener listener) throws IOException, InterruptedException {
+                            synchronized (pulled) {
+                                pulled.add(image);
+                            }
+                            listener.getLogger().println("pulling " + image);
+                        }
+                    });
+                } catch (IOException | InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        build.start();
+        builds.add(build);
+        return log;
+    }
+
+    private void runNext() throws InterruptedException {
+        final Runnable pull = dispatched.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no pull dispatched", pull);
+        pull.run();
+    }
+
+    private static void awaitLog(ByteArrayOutputStream log, String text) throws Exception {
+        while (!log.toString(StandardCharsets.UTF_8.name()).contains(text)) {
+            Thread.sleep(10);
+        }
+    }
+}
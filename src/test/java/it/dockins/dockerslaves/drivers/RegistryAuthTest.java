@@ -0,0 +1,52 @@
+package it.dockins.dockerslaves.drivers;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RegistryAuthTest {
+
+    @Test
+    public void getRegistry() {
+        assertEquals(RegistryAuth.DOCKER_HUB, RegistryAuth.getRegistry("ubuntu"));
+        assertEquals(RegistryAuth.DOCKER_HUB, RegistryAuth.getRegistry("jenkins/slave:2.62"));
+        assertEquals(RegistryAuth.DOCKER_HUB, RegistryAuth.getRegistry("docker.io/library/ubuntu"));
+        assertEquals("registry.example.com", RegistryAuth.getRegistry("registry.example.com/team/app:1.0"));
+        assertEquals("localhost:5000", RegistryAuth.getRegistry("localhost:5000/app"));
+    }
+
+    @Test
+    public void credentialsForImageRegistry() {
+        final JSONObject config = JSONObject.fromObject("{\"auths\": {"
+                + "\"https://index.docker.io/v1/\": {\"auth\": \"" + base64("hub:secret") + "\"},"
+                + "\"registry.example.com\": {\"auth\": \"" + base64("user:pa:ss") + "\"}}}");
+
+        final JSONObject auth = decode(RegistryAuth.forImage("registry.example.com/team/app", config));
+        assertEquals("user", auth.getString("username"));
+        assertEquals("pa:ss", auth.getString("password"));
+        assertEquals("registry.example.com", auth.getString("serveraddress"));
+
+        assertEquals("hub", decode(RegistryAuth.forImage("jenkins/slave", config)).getString("username"));
+        assertNull(RegistryAuth.forImage("other.example.com/app", config));
+    }
+
+    @Test
+    public void anonymousWithCredentialHelper() {
+        final JSONObject config = JSONObject.fromObject("{\"auths\": {\"registry.example.com\": {}}, \"credsStore\": \"osxkeychain\"}");
+        assertNull(RegistryAuth.forImage("registry.example.com/app", config));
+    }
+
+    private static String base64(String s) {
+        return DatatypeConverter.printBase64Binary(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static JSONObject decode(String header) {
+        final String base64 = header.replace('-', '+').replace('_', '/');
+        return JSONObject.fromObject(new String(DatatypeConverter.parseBase64Binary(base64), StandardCharsets.UTF_8));
+    }
+}